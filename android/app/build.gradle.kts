@@ -44,6 +44,11 @@ android {
         jvmTarget = "17"
     }
 
+    testOptions {
+        // android.util.Log and friends return defaults instead of throwing
+        unitTests.isReturnDefaultValues = true
+    }
+
     packaging {
         resources {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
@@ -59,6 +64,9 @@ dependencies {
     // React Native dependencies are added via autolinking
     implementation("com.facebook.react:react-android")
     implementation("com.facebook.react:hermes-android")
+
+    testImplementation(libs.junit)
+    testImplementation(libs.mockito.core)
 }
 
 apply(from = file("../../node_modules/@react-native-community/cli-platform-android/native_modules.gradle"))
@@ -0,0 +1,294 @@
+package com.fire.firewall;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cached list of installed apps with their labels, UIDs, flags and whether they
+ * request network access. The cache is persisted, so a cold start serves the stored
+ * list right away while a background scan checks it against the package manager,
+ * resolving labels only for packages updated since. While the process runs,
+ * package broadcasts keep it current one package at a time.
+ *
+ * Each change also publishes a new {@link UidPackageIndex}, which the packet,
+ * logging and usage paths use instead of asking the package manager.
+ */
+public class AppCatalog {
+    private static final String TAG = "AppCatalog";
+    private static final String PREFS_NAME = "fire_app_catalog";
+    private static final String KEY_APPS = "apps";
+    private static final String INTERNET_PERMISSION = "android.permission.INTERNET";
+
+    private static final Comparator<InstalledApp> BY_LABEL = (a, b) -> {
+        int c = String.CASE_INSENSITIVE_ORDER.compare(a.getLabel(), b.getLabel());
+        return c != 0 ? c : a.getPackageName().compareTo(b.getPackageName());
+    };
+
+    private static AppCatalog instance;
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Only touched on the executor
+    private final Map<String, InstalledApp> byPackage = new HashMap<>();
+    // Sorted by label and replaced as a whole; null until first loaded
+    private volatile List<InstalledApp> apps;
+    private volatile UidPackageIndex index = UidPackageIndex.empty();
+    private final List<Runnable> waiting = new ArrayList<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName == null) {
+                return;
+            }
+            String action = intent.getAction();
+            // An update sends REMOVED and ADDED with EXTRA_REPLACING, then REPLACED
+            if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+                    && (Intent.ACTION_PACKAGE_ADDED.equals(action) || Intent.ACTION_PACKAGE_REMOVED.equals(action))) {
+                return;
+            }
+            executor.execute(() -> update(packageName));
+        }
+    };
+
+    private AppCatalog(Context context) {
+        this.context = context.getApplicationContext();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        this.context.registerReceiver(packageReceiver, filter);
+
+        executor.execute(this::load);
+        executor.execute(this::scan);
+    }
+
+    public static synchronized AppCatalog getInstance(Context context) {
+        if (instance == null) {
+            instance = new AppCatalog(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Runs action once the catalog has contents: right away on the caller's thread
+     * if it has, otherwise on the catalog's thread after the first load or scan.
+     */
+    public void whenReady(Runnable action) {
+        synchronized (waiting) {
+            if (apps == null) {
+                waiting.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Runs listener on the catalog's thread every time the set of apps or their
+     * UIDs may have changed.
+     */
+    public void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Current UID and package index; empty until the catalog is ready.
+     */
+    public UidPackageIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * All apps sorted by label; empty until the catalog is ready.
+     */
+    public List<InstalledApp> getApps() {
+        List<InstalledApp> current = apps;
+        return current != null ? current : Collections.emptyList();
+    }
+
+    /**
+     * One page of the apps whose label or package name contains query, ignoring
+     * case, sorted by label. total is the number of matches over all pages.
+     */
+    public WritableMap getPage(int offset, int limit, String query, boolean includeSystem) {
+        String needle = query == null || query.isEmpty() ? null : query.toLowerCase(Locale.ROOT);
+        WritableArray page = Arguments.createArray();
+        int total = 0;
+        for (InstalledApp app : getApps()) {
+            if (!includeSystem && !app.isUserVisible()) {
+                continue;
+            }
+            if (needle != null && !app.getLabel().toLowerCase(Locale.ROOT).contains(needle)
+                    && !app.getPackageName().contains(needle)) {
+                continue;
+            }
+            if (total >= offset && total - offset < limit) {
+                page.pushMap(app.toMap());
+            }
+            total++;
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putInt("total", total);
+        result.putArray("apps", page);
+        return result;
+    }
+
+    private void load() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        try {
+            JSONArray array = new JSONArray(prefs.getString(KEY_APPS, "[]"));
+            for (int i = 0; i < array.length(); i++) {
+                InstalledApp app = InstalledApp.fromJson(array.getJSONObject(i));
+                if (app != null) {
+                    byPackage.put(app.getPackageName(), app);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading app catalog", e);
+        }
+        if (!byPackage.isEmpty()) {
+            publish();
+            Log.i(TAG, "Loaded " + byPackage.size() + " cached apps");
+        }
+    }
+
+    // Checks the cache against the package manager, keeping the labels of packages
+    // not updated since they were cached
+    private void scan() {
+        long startedAt = SystemClock.elapsedRealtime();
+        PackageManager pm = context.getPackageManager();
+        List<PackageInfo> packages;
+        try {
+            packages = pm.getInstalledPackages(PackageManager.GET_PERMISSIONS);
+        } catch (Exception e) {
+            Log.e(TAG, "Error listing installed packages", e);
+            publish();
+            return;
+        }
+
+        Map<String, InstalledApp> scanned = new HashMap<>();
+        int labelled = 0;
+        for (PackageInfo info : packages) {
+            if (info.applicationInfo == null) {
+                continue;
+            }
+            InstalledApp known = byPackage.get(info.packageName);
+            String label = null;
+            if (known != null && known.getUpdatedAt() == info.lastUpdateTime) {
+                label = known.getLabel();
+            } else {
+                labelled++;
+            }
+            scanned.put(info.packageName, create(pm, info, label));
+        }
+        int removed = 0;
+        for (String packageName : byPackage.keySet()) {
+            if (!scanned.containsKey(packageName)) {
+                removed++;
+            }
+        }
+
+        byPackage.clear();
+        byPackage.putAll(scanned);
+        save();
+        publish();
+        Log.i(TAG, "Scanned " + scanned.size() + " apps in " + (SystemClock.elapsedRealtime() - startedAt) +
+            " ms: " + labelled + " new or updated, " + removed + " removed");
+    }
+
+    private void update(String packageName) {
+        PackageManager pm = context.getPackageManager();
+        try {
+            PackageInfo info = pm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+            if (info.applicationInfo == null) {
+                return;
+            }
+            byPackage.put(packageName, create(pm, info, null));
+        } catch (PackageManager.NameNotFoundException e) {
+            if (byPackage.remove(packageName) == null) {
+                return;
+            }
+        }
+        save();
+        publish();
+        Log.d(TAG, "Updated " + packageName);
+    }
+
+    // label is resolved if null, which is the slow part of a scan
+    private static InstalledApp create(PackageManager pm, PackageInfo info, String label) {
+        if (label == null) {
+            CharSequence resolved = pm.getApplicationLabel(info.applicationInfo);
+            label = resolved != null ? resolved.toString() : info.packageName;
+        }
+        boolean internet = false;
+        if (info.requestedPermissions != null) {
+            for (String permission : info.requestedPermissions) {
+                if (INTERNET_PERMISSION.equals(permission)) {
+                    internet = true;
+                    break;
+                }
+            }
+        }
+        return new InstalledApp(info.packageName, label, info.applicationInfo.uid,
+            info.applicationInfo.flags, internet, info.lastUpdateTime);
+    }
+
+    private void save() {
+        JSONArray array = new JSONArray();
+        for (InstalledApp app : byPackage.values()) {
+            array.put(app.toJson());
+        }
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putString(KEY_APPS, array.toString()).apply();
+    }
+
+    private void publish() {
+        List<InstalledApp> sorted = new ArrayList<>(byPackage.values());
+        Collections.sort(sorted, BY_LABEL);
+        index = UidPackageIndex.build(sorted);
+        List<Runnable> ready;
+        synchronized (waiting) {
+            apps = Collections.unmodifiableList(sorted);
+            ready = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Runnable action : ready) {
+            action.run();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
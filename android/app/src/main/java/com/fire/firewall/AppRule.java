@@ -2,6 +2,8 @@ package com.fire.firewall;
 
 import org.json.JSONObject;
 
+import java.util.Objects;
+
 public class AppRule {
     private final String packageName;
     private final boolean blockWifi;
@@ -33,6 +35,21 @@ public class AppRule {
         return isWifi ? blockWifi : blockMobile;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AppRule)) {
+            return false;
+        }
+        AppRule other = (AppRule) o;
+        return packageName.equals(other.packageName) && blockWifi == other.blockWifi
+            && blockMobile == other.blockMobile;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(packageName, blockWifi, blockMobile);
+    }
+
     public JSONObject toJson() {
         try {
             JSONObject obj = new JSONObject();
@@ -2,36 +2,94 @@ package com.fire.firewall;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class BlockListManager {
     private static final String TAG = "BlockListManager";
     private static final String PREFS_NAME = "fire_blocklist";
     private static final String KEY_BLOCKED_DOMAINS = "blocked_domains";
+    private static final String COMPILED_FILE = "blocklist.trie";
+    private static final String FILTER_FILE = "blocklist.filter";
+    private static final int FILTER_SAMPLES = 100_000;
+    private static final String KEY_SUBSCRIPTIONS = "subscriptions";
+    private static final String SOURCES_DIR = "blocklists";
+    // Domains added by hand are kept as a source of their own
+    private static final int MANUAL_SOURCE = 0;
+    private static final int FETCH_THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
 
     private static BlockListManager instance;
     private final Context context;
-    private final Set<String> blockedDomains = new HashSet<>();
+    private final File compiledFile;
+    private final File filterFile;
+    private final File sourcesDir;
+    // The compiled trie is the union of all sources. Each source's own domains are
+    // kept in a compiled file under sourcesDir so a refresh can work out what it
+    // added and removed. Edits and refreshes run on the executor.
+    private volatile DomainTrie blockedTrie = DomainTrie.empty();
+    // Size of the last compiled list before compaction
+    private volatile int listedCount = 0;
+    private volatile long listedBytes = 0;
+    private final List<BlockListSubscription> subscriptions = new ArrayList<>();
     private final DomainMatcher domainMatcher = new DomainMatcher();
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Downloads and parses lists concurrently during a refresh
+    private final ExecutorService fetchPool = Executors.newFixedThreadPool(FETCH_THREADS);
+
+    // Outcome of downloading one subscription
+    private static final class Refresh {
+        final BlockListSubscription subscription;
+        // Null if the list was not modified
+        DomainTrie next;
+        DomainTrie added;
+        DomainTrie removed;
+        String etag;
+        String lastModified;
+        Exception error;
+
+        Refresh(BlockListSubscription subscription) {
+            this.subscription = subscription;
+        }
+    }
 
     public interface LoadCallback {
         void onSuccess(int count);
         void onError(String error);
     }
 
-    private BlockListManager(Context context) {
+    BlockListManager(Context context) {
         this.context = context.getApplicationContext();
-        loadFromPrefs();
+        this.compiledFile = new File(this.context.getFilesDir(), COMPILED_FILE);
+        this.filterFile = new File(this.context.getFilesDir(), FILTER_FILE);
+        this.sourcesDir = new File(this.context.getFilesDir(), SOURCES_DIR);
+        // Mapping the list and possibly rebuilding its filter is too slow for the
+        // caller's thread; lookups see an empty list until it is published
+        executor.execute(this::load);
     }
 
     public static synchronized BlockListManager getInstance(Context context) {
@@ -41,134 +99,547 @@ public class BlockListManager {
         return instance;
     }
 
-    public void reload() {
-        loadFromPrefs();
+    private void load() {
+        loadSubscriptions();
+        if (!compiledFile.exists()) {
+            migrateFromPrefs();
+        } else {
+            try {
+                DomainTrie trie = DomainTrie.map(compiledFile);
+                // Usable right away; the filter only speeds up misses
+                blockedTrie = trie;
+                blockedTrie = trie.withFilter(loadFilter(trie));
+                listedCount = trie.size();
+                listedBytes = trie.getSizeBytes();
+                Log.i(TAG, "Mapped " + trie.size() + " blocked domains");
+            } catch (IOException e) {
+                Log.e(TAG, "Error mapping compiled block list", e);
+            }
+        }
+
+        // Lists compiled before sources were tracked are attributed to the manual
+        // source, so they are kept until removed by hand
+        if (!sourcesDir.exists() && blockedTrie.size() > 0) {
+            try {
+                writeSource(MANUAL_SOURCE, blockedTrie);
+            } catch (IOException e) {
+                Log.e(TAG, "Error migrating block list sources", e);
+            }
+        }
     }
 
-    private void loadFromPrefs() {
+    private void loadSubscriptions() {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        Set<String> saved = prefs.getStringSet(KEY_BLOCKED_DOMAINS, new HashSet<>());
-        synchronized (blockedDomains) {
-            blockedDomains.clear();
-            blockedDomains.addAll(saved);
+        synchronized (subscriptions) {
+            subscriptions.clear();
+            try {
+                JSONArray array = new JSONArray(prefs.getString(KEY_SUBSCRIPTIONS, "[]"));
+                for (int i = 0; i < array.length(); i++) {
+                    BlockListSubscription subscription = BlockListSubscription.fromJson(array.getJSONObject(i));
+                    if (subscription != null) {
+                        subscriptions.add(subscription);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error loading subscriptions", e);
+            }
         }
-        Log.i(TAG, "Loaded " + blockedDomains.size() + " blocked domains from preferences");
     }
 
-    private void saveToPrefs() {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        synchronized (blockedDomains) {
-            prefs.edit().putStringSet(KEY_BLOCKED_DOMAINS, new HashSet<>(blockedDomains)).apply();
+    private void saveSubscriptions() {
+        JSONArray array = new JSONArray();
+        synchronized (subscriptions) {
+            for (BlockListSubscription subscription : subscriptions) {
+                array.put(subscription.toJson());
+            }
         }
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putString(KEY_SUBSCRIPTIONS, array.toString()).apply();
     }
 
-    public boolean isBlocked(String domain) {
-        synchronized (blockedDomains) {
-            // Check exact match first
-            if (blockedDomains.contains(domain)) {
-                return true;
-            }
-
-            // Check parent domains
-            String[] parts = domain.split("\\.");
-            for (int i = 1; i < parts.length; i++) {
-                StringBuilder parent = new StringBuilder();
-                for (int j = i; j < parts.length; j++) {
-                    if (parent.length() > 0) parent.append(".");
-                    parent.append(parts[j]);
-                }
-                if (blockedDomains.contains(parent.toString())) {
-                    return true;
+    // Maps the stored filter, or rebuilds it if it is missing or belongs to an
+    // older list, e.g. after a crash between writing the two files
+    private DomainFilter loadFilter(DomainTrie trie) {
+        if (filterFile.exists()) {
+            try {
+                DomainFilter filter = DomainFilter.map(filterFile);
+                if (filter.isFor(trie)) {
+                    return filter;
                 }
+            } catch (IOException e) {
+                Log.w(TAG, "Error mapping domain filter", e);
             }
         }
-        return false;
+        return writeFilter(trie);
+    }
+
+    private DomainFilter writeFilter(DomainTrie trie) {
+        DomainFilter filter = DomainFilter.build(trie);
+        Log.i(TAG, String.format(Locale.US, "Domain filter: %d entries, %d KB, %.1f bits/entry, %.3f%% false positives",
+            filter.getEntries(), filter.getSizeBytes() / 1024, filter.getBitsPerEntry(),
+            filter.measureFalsePositiveRate(FILTER_SAMPLES) * 100));
+        try {
+            filter.writeTo(filterFile);
+            return DomainFilter.map(filterFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing domain filter", e);
+            return filter;
+        }
+    }
+
+    // Older versions kept the list as a StringSet in SharedPreferences
+    private void migrateFromPrefs() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains(KEY_BLOCKED_DOMAINS)) {
+            return;
+        }
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        for (String domain : prefs.getStringSet(KEY_BLOCKED_DOMAINS, new HashSet<>())) {
+            builder.add(domain);
+        }
+        if (publish(builder)) {
+            prefs.edit().remove(KEY_BLOCKED_DOMAINS).apply();
+        }
+        Log.i(TAG, "Migrated " + builder.size() + " blocked domains from preferences");
+    }
+
+    /**
+     * Compiles builder, compacts it, writes it and its filter to their files and
+     * switches lookups to the mapped copies. If writing fails the heap copy stays in
+     * use until the next start.
+     */
+    private boolean publish(DomainTrie.Builder builder) {
+        DomainTrie listed = builder.build();
+        DomainTrie trie = listed.compact();
+        listedCount = listed.size();
+        listedBytes = listed.getSizeBytes();
+        Log.i(TAG, "Compacted block list from " + listed.size() + " to " + trie.size() + " domains, " +
+            listed.getSizeBytes() / 1024 + " KB to " + trie.getSizeBytes() / 1024 + " KB");
+        blockedTrie = trie;
+        try {
+            trie.writeTo(compiledFile);
+            DomainTrie mapped = DomainTrie.map(compiledFile);
+            blockedTrie = mapped.withFilter(writeFilter(mapped));
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing compiled block list", e);
+            return false;
+        }
+    }
+
+    public boolean isBlocked(String domain) {
+        return blockedTrie.matches(domain);
+    }
+
+    public boolean isBlocked(ByteBuffer packet, int[] labelStarts, int labelCount) {
+        return blockedTrie.matches(packet, labelStarts, labelCount);
     }
 
     public void addDomain(String domain) {
-        synchronized (blockedDomains) {
-            blockedDomains.add(domain.toLowerCase());
+        String name = BlockListParser.normalize(domain);
+        if (name == null) {
+            Log.w(TAG, "Ignoring invalid domain " + domain);
+            return;
         }
-        saveToPrefs();
+        executor.execute(() -> editManual(name, true));
     }
 
     public void removeDomain(String domain) {
-        synchronized (blockedDomains) {
-            blockedDomains.remove(domain.toLowerCase());
+        String name = BlockListParser.normalize(domain);
+        if (name == null) {
+            return;
+        }
+        executor.execute(() -> editManual(name, false));
+    }
+
+    // A domain removed by hand is dropped from the compiled list even if a
+    // subscription also lists it. Listed subdomains it covered come back.
+    private void editManual(String domain, boolean add) {
+        DomainTrie.Builder manualBuilder = new DomainTrie.Builder(mapSource(MANUAL_SOURCE));
+        boolean manualChanged = add ? manualBuilder.add(domain) : manualBuilder.remove(domain);
+        DomainTrie manual = manualBuilder.build();
+
+        DomainTrie.Builder builder = new DomainTrie.Builder(blockedTrie);
+        if (add) {
+            // Nothing to compile if a parent already blocks it
+            if (!blockedTrie.matches(domain) && builder.add(domain)) {
+                publish(builder);
+            }
+        } else if (builder.remove(domain)) {
+            DomainTrie.Builder removed = new DomainTrie.Builder();
+            removed.add(domain);
+            Map<Integer, DomainTrie> sources = currentSources();
+            sources.put(MANUAL_SOURCE, manual);
+            restoreUnder(builder, removed.build(), sources);
+            publish(builder);
+        }
+
+        if (manualChanged) {
+            try {
+                writeSource(MANUAL_SOURCE, manual);
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving manual block list", e);
+            }
+        }
+    }
+
+    // Stored contents of every source by id
+    private Map<Integer, DomainTrie> currentSources() {
+        Map<Integer, DomainTrie> sources = new HashMap<>();
+        sources.put(MANUAL_SOURCE, mapSource(MANUAL_SOURCE));
+        synchronized (subscriptions) {
+            for (BlockListSubscription subscription : subscriptions) {
+                sources.put(subscription.getId(), mapSource(subscription.getId()));
+            }
         }
-        saveToPrefs();
+        return sources;
     }
 
+    /**
+     * The compiled list drops domains below another listed domain. Once such a
+     * parent is removed, adds back what the sources list below it.
+     */
+    static void restoreUnder(DomainTrie.Builder builder, DomainTrie removed, Map<Integer, DomainTrie> sources) {
+        if (removed.size() == 0) {
+            return;
+        }
+        for (DomainTrie source : sources.values()) {
+            builder.addUnder(source, removed);
+        }
+    }
+
+    /**
+     * Kept for callers that load a single list by URL; the URL doubles as the name
+     * of its subscription.
+     */
     public void loadFromUrl(String urlString, LoadCallback callback) {
+        addSubscription(urlString, urlString, callback);
+    }
+
+    /**
+     * Adds a named subscription, or points an existing one at a new URL, and
+     * downloads it. Reports the number of domains in the list.
+     */
+    public void addSubscription(String name, String url, LoadCallback callback) {
         executor.execute(() -> {
-            try {
-                URL url = new URL(urlString);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("GET");
-                connection.setConnectTimeout(10000);
-                connection.setReadTimeout(30000);
-
-                int responseCode = connection.getResponseCode();
-                if (responseCode != HttpURLConnection.HTTP_OK) {
-                    callback.onError("HTTP error: " + responseCode);
-                    return;
+            BlockListSubscription subscription;
+            synchronized (subscriptions) {
+                subscription = findSubscription(name);
+                if (subscription == null) {
+                    subscription = new BlockListSubscription(nextSourceId(), name, url);
+                    subscriptions.add(subscription);
+                } else {
+                    subscription.setUrl(url);
                 }
+            }
+            saveSubscriptions();
 
-                Set<String> newDomains = new HashSet<>();
-                try (BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        String domain = parseHostsLine(line);
-                        if (domain != null) {
-                            newDomains.add(domain);
-                        }
-                    }
-                }
+            Refresh refresh = fetch(subscription);
+            if (refresh.error != null) {
+                Log.e(TAG, "Error loading block list", refresh.error);
+                callback.onError(refresh.error.getMessage());
+                return;
+            }
+            apply(Collections.singletonList(refresh));
+            callback.onSuccess(subscription.getDomainCount());
+        });
+    }
 
-                synchronized (blockedDomains) {
-                    blockedDomains.addAll(newDomains);
+    /**
+     * Drops a subscription and every domain no other source lists.
+     */
+    public void removeSubscription(String name, LoadCallback callback) {
+        executor.execute(() -> {
+            BlockListSubscription subscription;
+            synchronized (subscriptions) {
+                subscription = findSubscription(name);
+                if (subscription != null) {
+                    subscriptions.remove(subscription);
                 }
-                saveToPrefs();
+            }
+            if (subscription == null) {
+                callback.onError("Unknown subscription: " + name);
+                return;
+            }
 
-                Log.i(TAG, "Loaded " + newDomains.size() + " domains from URL");
-                callback.onSuccess(newDomains.size());
+            // Applied as a download of an empty list
+            Refresh refresh = new Refresh(subscription);
+            refresh.next = DomainTrie.empty();
+            diff(refresh, mapSource(subscription.getId()));
+            int changes = apply(Collections.singletonList(refresh));
+            sourceFile(subscription.getId()).delete();
+            saveSubscriptions();
+            callback.onSuccess(changes);
+        });
+    }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Error loading block list", e);
+    /**
+     * Refreshes every subscription with conditional requests. Lists are downloaded,
+     * parsed and diffed concurrently on the fetch pool, then all changes are merged
+     * into the compiled list and published once. Reports how many lists had
+     * changed; fails only if every refresh failed.
+     */
+    public void refreshSubscriptions(LoadCallback callback) {
+        executor.execute(() -> {
+            List<Callable<Refresh>> tasks = new ArrayList<>();
+            synchronized (subscriptions) {
+                for (BlockListSubscription subscription : subscriptions) {
+                    tasks.add(() -> fetch(subscription));
+                }
+            }
+
+            long startedAt = SystemClock.elapsedRealtime();
+            List<Refresh> refreshes = new ArrayList<>();
+            String error = null;
+            try {
+                for (Future<Refresh> future : fetchPool.invokeAll(tasks)) {
+                    Refresh refresh = future.get();
+                    if (refresh.error != null) {
+                        Log.e(TAG, "Error refreshing " + refresh.subscription.getName(), refresh.error);
+                        error = refresh.subscription.getName() + ": " + refresh.error.getMessage();
+                    } else {
+                        refreshes.add(refresh);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                callback.onError("Refresh interrupted");
+                return;
+            } catch (ExecutionException e) {
                 callback.onError(e.getMessage());
+                return;
+            }
+            long fetched = SystemClock.elapsedRealtime();
+
+            int changed = 0;
+            for (Refresh refresh : refreshes) {
+                if (refresh.next != null) {
+                    changed++;
+                }
+            }
+            int changes = apply(refreshes);
+            Log.i(TAG, "Refreshed " + tasks.size() + " lists, " + changed + " changed, " + changes +
+                " domains added or removed; fetched in " + (fetched - startedAt) + " ms, merged in " +
+                (SystemClock.elapsedRealtime() - fetched) + " ms");
+
+            if (refreshes.isEmpty() && error != null) {
+                callback.onError(error);
+            } else {
+                callback.onSuccess(changed);
             }
         });
     }
 
-    private String parseHostsLine(String line) {
-        // Skip comments and empty lines
-        line = line.trim();
-        if (line.isEmpty() || line.startsWith("#")) {
-            return null;
+    public WritableArray getSubscriptions() {
+        WritableArray result = Arguments.createArray();
+        synchronized (subscriptions) {
+            for (BlockListSubscription subscription : subscriptions) {
+                WritableMap map = Arguments.createMap();
+                map.putString("name", subscription.getName());
+                map.putString("url", subscription.getUrl());
+                map.putInt("domainCount", subscription.getDomainCount());
+                map.putDouble("updatedAt", subscription.getUpdatedAt());
+                result.pushMap(map);
+            }
         }
+        return result;
+    }
+
+    /**
+     * Downloads the subscription unless the server reports it unchanged since the
+     * stored validators, parses it and diffs it against the previous download.
+     * Only reads shared state, so several fetches can run at once. Leaves next
+     * null on 304 Not Modified.
+     */
+    private Refresh fetch(BlockListSubscription subscription) {
+        Refresh refresh = new Refresh(subscription);
+        File sourceFile = sourceFile(subscription.getId());
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(subscription.getUrl()).openConnection();
+            connection.setRequestMethod("GET");
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(30000);
+            // Without the previous download a 304 would leave nothing to diff against
+            if (sourceFile.exists()) {
+                if (subscription.getEtag() != null) {
+                    connection.setRequestProperty("If-None-Match", subscription.getEtag());
+                }
+                if (subscription.getLastModified() != null) {
+                    connection.setRequestProperty("If-Modified-Since", subscription.getLastModified());
+                }
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(TAG, subscription.getName() + " not modified");
+                return refresh;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP error: " + responseCode);
+            }
+
+            DomainTrie.Builder builder = new DomainTrie.Builder();
+            BlockListParser parser = new BlockListParser();
+            long startedAt = SystemClock.elapsedRealtime();
+            try (InputStream in = connection.getInputStream()) {
+                parser.parse(in, builder::add);
+            }
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startedAt);
+            Log.i(TAG, "Parsed " + subscription.getName() + ": " + parser.getLines() + " lines, " +
+                parser.getDomains() + " domains, " + parser.getInvalid() + " invalid in " + elapsed + " ms (" +
+                String.format(Locale.US, "%.1f", parser.getBytesRead() / 1048.576 / elapsed) + " MB/s)");
+
+            refresh.next = builder.build();
+            refresh.etag = connection.getHeaderField("ETag");
+            refresh.lastModified = connection.getHeaderField("Last-Modified");
+            diff(refresh, mapSource(subscription.getId()));
+        } catch (Exception e) {
+            refresh.error = e;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        return refresh;
+    }
+
+    // Splits the change from previous to refresh.next into added and removed domains
+    private static void diff(Refresh refresh, DomainTrie previous) {
+        DomainTrie next = refresh.next;
+        DomainTrie.Builder added = new DomainTrie.Builder();
+        DomainTrie.Builder removed = new DomainTrie.Builder();
+        next.forEach(domain -> {
+            if (!previous.contains(domain)) {
+                added.add(domain);
+            }
+        });
+        previous.forEach(domain -> {
+            if (!next.contains(domain)) {
+                removed.add(domain);
+            }
+        });
+        refresh.added = added.build();
+        refresh.removed = removed.build();
+    }
 
-        // Parse hosts file format: "0.0.0.0 domain.com" or "127.0.0.1 domain.com"
-        String[] parts = line.split("\\s+");
-        if (parts.length >= 2) {
-            String ip = parts[0];
-            String domain = parts[1].toLowerCase();
+    /**
+     * Merges the diffs of the given refreshes into the compiled list and publishes
+     * it once, then stores the new downloads. A removed domain is kept while
+     * another source, as of these refreshes, still lists it. The compiled list is
+     * written before the source files, so a crash in between only makes the next
+     * refresh apply the same diffs again. Returns the number of changes.
+     */
+    private int apply(List<Refresh> refreshes) {
+        Map<Integer, DomainTrie> sources = currentSources();
+        for (Refresh refresh : refreshes) {
+            if (refresh.next != null) {
+                sources.put(refresh.subscription.getId(), refresh.next);
+            }
+        }
 
-            // Only accept blocking entries
-            if (ip.equals("0.0.0.0") || ip.equals("127.0.0.1")) {
-                // Skip localhost entries
-                if (!domain.equals("localhost") && !domain.equals("localhost.localdomain")) {
-                    return domain;
+        DomainTrie.Builder builder = new DomainTrie.Builder(blockedTrie);
+        DomainTrie.Builder dropped = new DomainTrie.Builder();
+        int changes = 0;
+        for (Refresh refresh : refreshes) {
+            if (refresh.next == null) {
+                continue;
+            }
+            builder.addAll(refresh.added);
+            int sourceId = refresh.subscription.getId();
+            refresh.removed.forEach(domain -> {
+                for (Map.Entry<Integer, DomainTrie> source : sources.entrySet()) {
+                    if (source.getKey() != sourceId && source.getValue().contains(domain)) {
+                        return;
+                    }
+                }
+                if (builder.remove(domain)) {
+                    dropped.add(domain);
                 }
+            });
+            changes += refresh.added.size() + refresh.removed.size();
+        }
+        restoreUnder(builder, dropped.build(), sources);
+        if (changes > 0) {
+            publish(builder);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Refresh refresh : refreshes) {
+            if (refresh.next == null) {
+                continue;
+            }
+            BlockListSubscription subscription = refresh.subscription;
+            try {
+                writeSource(subscription.getId(), refresh.next);
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving block list source " + subscription.getId(), e);
+                continue;
+            }
+            synchronized (subscriptions) {
+                subscription.update(refresh.etag, refresh.lastModified, refresh.next.size(), now);
             }
+            Log.i(TAG, "Source " + subscription.getId() + ": " + refresh.added.size() + " added, " +
+                refresh.removed.size() + " removed");
         }
+        saveSubscriptions();
+        return changes;
+    }
 
+    private BlockListSubscription findSubscription(String name) {
+        for (BlockListSubscription subscription : subscriptions) {
+            if (subscription.getName().equals(name)) {
+                return subscription;
+            }
+        }
         return null;
     }
 
-    public int getBlockedCount() {
-        synchronized (blockedDomains) {
-            return blockedDomains.size();
+    private int nextSourceId() {
+        int id = MANUAL_SOURCE;
+        for (BlockListSubscription subscription : subscriptions) {
+            id = Math.max(id, subscription.getId());
+        }
+        return id + 1;
+    }
+
+    private File sourceFile(int id) {
+        return new File(sourcesDir, id + ".trie");
+    }
+
+    private DomainTrie mapSource(int id) {
+        File file = sourceFile(id);
+        if (file.exists()) {
+            try {
+                return DomainTrie.map(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Error mapping block list source " + id, e);
+            }
         }
+        return DomainTrie.empty();
+    }
+
+    private void writeSource(int id, DomainTrie trie) throws IOException {
+        if (!sourcesDir.exists() && !sourcesDir.mkdirs()) {
+            throw new IOException("Could not create " + sourcesDir);
+        }
+        trie.writeTo(sourceFile(id));
+    }
+
+    /**
+     * Number of domains in the compiled list, i.e. after compaction.
+     */
+    public int getBlockedCount() {
+        return blockedTrie.size();
+    }
+
+    public WritableMap getStats() {
+        DomainTrie trie = blockedTrie;
+        WritableMap map = Arguments.createMap();
+        map.putInt("blockedCount", trie.size());
+        map.putInt("listedCount", listedCount);
+        map.putDouble("compiledBytes", trie.getSizeBytes());
+        map.putDouble("listedBytes", listedBytes);
+        return map;
     }
 }
@@ -0,0 +1,332 @@
+package com.fire.firewall;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.IDN;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming parser for block lists in hosts format ("0.0.0.0 ads.example.com"), as
+ * plain domain lists or as AdBlock-style "||ads.example.com^" rules. It scans raw
+ * bytes in a fixed buffer and hands each domain to a sink as a range of that buffer,
+ * so a list of any size is parsed without creating a String per line.
+ *
+ * Names are normalized on the way: lowercased, internationalized names converted to
+ * their ASCII (punycode) form, and anything that is not a valid hostname, such as
+ * an IP literal or a label over 63 characters, is dropped.
+ */
+final class BlockListParser {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_DOMAIN_LENGTH = 253;
+    private static final int MAX_LABEL_LENGTH = 63;
+    // Longest UTF-8 form of a name that can still fit once converted
+    private static final int MAX_UNICODE_LENGTH = MAX_DOMAIN_LENGTH * 4;
+
+    // Hosts entries pointing anywhere else redirect rather than block
+    private static final String[] BLOCKING_ADDRESSES = { "0.0.0.0", "127.0.0.1", "::", "::1" };
+    private static final String[] LOCAL_NAMES = {
+        "localhost", "localhost.localdomain", "local", "broadcasthost",
+        "ip6-localhost", "ip6-loopback", "0.0.0.0"
+    };
+
+    /**
+     * Receives domains, lowercased and without a trailing dot, as buf[start, end).
+     * The range is only valid during the call.
+     */
+    interface Sink {
+        void domain(ByteBuffer buf, int start, int end);
+    }
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private final ByteBuffer asciiBuffer = ByteBuffer.allocate(MAX_DOMAIN_LENGTH);
+    private long bytesRead = 0;
+    private int lines = 0;
+    private int domains = 0;
+    private int invalid = 0;
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    int getLines() {
+        return lines;
+    }
+
+    int getDomains() {
+        return domains;
+    }
+
+    // Names dropped because they were not valid hostnames
+    int getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * Normalizes a single name the way list entries are, for domains entered by
+     * hand. Unlike list entries a bare top-level domain is accepted. Returns null
+     * if the name is not a valid hostname.
+     */
+    static String normalize(String domain) {
+        String ascii;
+        try {
+            ascii = IDN.toASCII(domain.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        byte[] name = ascii.getBytes(StandardCharsets.US_ASCII);
+        int end = name.length;
+        if (end > 0 && name[end - 1] == '.') {
+            end--;
+        }
+        return isHostname(name, 0, end) ? new String(name, 0, end, StandardCharsets.US_ASCII) : null;
+    }
+
+    /**
+     * Parses the whole stream. Lines longer than the buffer are skipped.
+     */
+    void parse(InputStream in, Sink sink) throws IOException {
+        int length = 0;
+        boolean skipping = false;
+        while (true) {
+            int n = in.read(bytes, length, bytes.length - length);
+            if (n < 0) {
+                break;
+            }
+            bytesRead += n;
+            length += n;
+
+            int lineStart = 0;
+            for (int i = lineStart; i < length; i++) {
+                if (bytes[i] == '\n') {
+                    if (!skipping) {
+                        parseLine(lineStart, i, sink);
+                    }
+                    skipping = false;
+                    lineStart = i + 1;
+                }
+            }
+
+            // Carry the unfinished line over to the next read
+            if (lineStart == 0 && length == bytes.length) {
+                skipping = true;
+                length = 0;
+            } else {
+                System.arraycopy(bytes, lineStart, bytes, 0, length - lineStart);
+                length -= lineStart;
+            }
+        }
+        if (length > 0 && !skipping) {
+            parseLine(0, length, sink);
+        }
+    }
+
+    private void parseLine(int start, int end, Sink sink) {
+        lines++;
+        start = skipSpace(start, end);
+        if (start == end) {
+            return;
+        }
+        byte first = bytes[start];
+        if (first == '#' || first == '!' || first == '[' || first == '@') {
+            return; // Comments, AdBlock headers and exception rules
+        }
+
+        if (first == '|' && start + 1 < end && bytes[start + 1] == '|') {
+            parseAdBlockRule(start + 2, end, sink);
+            return;
+        }
+
+        int tokenEnd = skipToken(start, end);
+        if (isAddress(start, tokenEnd)) {
+            if (!isBlockingAddress(start, tokenEnd)) {
+                return;
+            }
+            // Every name after the address maps to it
+            int pos = skipSpace(tokenEnd, end);
+            while (pos < end && bytes[pos] != '#') {
+                int nameEnd = skipToken(pos, end);
+                emit(pos, nameEnd, sink);
+                pos = skipSpace(nameEnd, end);
+            }
+            return;
+        }
+
+        // Plain list: one domain, optionally followed by a comment
+        int rest = skipSpace(tokenEnd, end);
+        if (rest == end || bytes[rest] == '#') {
+            if (tokenEnd - start > 2 && bytes[start] == '*' && bytes[start + 1] == '.') {
+                start += 2; // Subdomains are covered by the domain itself
+            }
+            emit(start, tokenEnd, sink);
+        }
+    }
+
+    // "||domain^" with nothing after the separator; rules with paths or options
+    // block less than the whole domain and are skipped
+    private void parseAdBlockRule(int start, int end, Sink sink) {
+        int pos = start;
+        while (pos < end && bytes[pos] != '^' && !isSpace(bytes[pos])) {
+            pos++;
+        }
+        if (pos == end || bytes[pos] != '^' || skipSpace(pos + 1, end) != end) {
+            return;
+        }
+        emit(start, pos, sink);
+    }
+
+    private void emit(int start, int end, Sink sink) {
+        if (end > start && bytes[end - 1] == '.') {
+            end--;
+        }
+        if (end - start > MAX_UNICODE_LENGTH) {
+            invalid++;
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < 0) {
+                emitUnicode(start, end, sink);
+                return;
+            }
+        }
+        emitAscii(buffer, start, end, sink);
+    }
+
+    // Converts an internationalized name to punycode before checking it
+    private void emitUnicode(int start, int end, Sink sink) {
+        String ascii;
+        try {
+            ascii = IDN.toASCII(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            invalid++;
+            return;
+        }
+        if (ascii.length() > MAX_DOMAIN_LENGTH) {
+            invalid++;
+            return;
+        }
+        byte[] name = asciiBuffer.array();
+        for (int i = 0; i < ascii.length(); i++) {
+            name[i] = (byte) ascii.charAt(i);
+        }
+        emitAscii(asciiBuffer, 0, ascii.length(), sink);
+    }
+
+    private void emitAscii(ByteBuffer buf, int start, int end, Sink sink) {
+        byte[] name = buf.array();
+        if (!isHostname(name, start, end) || matches(name, start, end, LOCAL_NAMES)) {
+            invalid++;
+            return;
+        }
+        // A bare top-level domain in a list would block a whole TLD
+        boolean dotted = false;
+        for (int i = start; i < end && !dotted; i++) {
+            dotted = name[i] == '.';
+        }
+        if (!dotted) {
+            invalid++;
+            return;
+        }
+        domains++;
+        sink.domain(buf, start, end);
+    }
+
+    /**
+     * Checks name[start, end) is a hostname, lowercasing it in place: labels of 1 to
+     * 63 letters, digits, hyphens or underscores, not starting or ending with a
+     * hyphen, and a top-level label that is not all digits, which rules out IPv4
+     * addresses.
+     */
+    private static boolean isHostname(byte[] name, int start, int end) {
+        if (end == start || end - start > MAX_DOMAIN_LENGTH) {
+            return false;
+        }
+        int labelStart = start;
+        boolean numeric = true;
+        for (int i = start; i <= end; i++) {
+            int c = i < end ? name[i] : '.';
+            if (c == '.') {
+                int length = i - labelStart;
+                if (length == 0 || length > MAX_LABEL_LENGTH
+                        || name[labelStart] == '-' || name[i - 1] == '-') {
+                    return false;
+                }
+                if (i == end) {
+                    return !numeric;
+                }
+                labelStart = i + 1;
+                numeric = true;
+                continue;
+            }
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+                name[i] = (byte) c;
+            }
+            if (c >= 'a' && c <= 'z' || c == '-' || c == '_') {
+                numeric = false;
+            } else if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Dotted-quad IPv4 or IPv6 literal
+    private boolean isAddress(int start, int end) {
+        int dots = 0;
+        boolean colon = false;
+        boolean hex = false;
+        for (int i = start; i < end; i++) {
+            byte c = bytes[i];
+            if (c == '.') {
+                dots++;
+            } else if (c == ':') {
+                colon = true;
+            } else if (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F') {
+                hex = true;
+            } else if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return colon || dots == 3 && !hex;
+    }
+
+    private boolean isBlockingAddress(int start, int end) {
+        return matches(bytes, start, end, BLOCKING_ADDRESSES);
+    }
+
+    private static boolean matches(byte[] bytes, int start, int end, String[] candidates) {
+        for (String candidate : candidates) {
+            if (candidate.length() != end - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < candidate.length() && bytes[start + i] == candidate.charAt(i)) {
+                i++;
+            }
+            if (i == candidate.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int skipSpace(int pos, int end) {
+        while (pos < end && isSpace(bytes[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipToken(int pos, int end) {
+        while (pos < end && !isSpace(bytes[pos]) && bytes[pos] != '#') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+}
@@ -0,0 +1,102 @@
+package com.fire.firewall;
+
+import org.json.JSONObject;
+
+/**
+ * A named block list source. The validators from the last successful download are
+ * kept so the next refresh can be a conditional request.
+ */
+public class BlockListSubscription {
+    private final int id;
+    private final String name;
+    private String url;
+    private String etag;
+    private String lastModified;
+    private int domainCount;
+    private long updatedAt;
+
+    public BlockListSubscription(int id, String name, String url) {
+        this.id = id;
+        this.name = name;
+        this.url = url;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        if (!url.equals(this.url)) {
+            // Validators of another URL say nothing about this one
+            etag = null;
+            lastModified = null;
+        }
+        this.url = url;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public int getDomainCount() {
+        return domainCount;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void update(String etag, String lastModified, int domainCount, long updatedAt) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.domainCount = domainCount;
+        this.updatedAt = updatedAt;
+    }
+
+    public JSONObject toJson() {
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("id", id);
+            obj.put("name", name);
+            obj.put("url", url);
+            obj.put("etag", etag);
+            obj.put("lastModified", lastModified);
+            obj.put("domainCount", domainCount);
+            obj.put("updatedAt", updatedAt);
+            return obj;
+        } catch (Exception e) {
+            return new JSONObject();
+        }
+    }
+
+    public static BlockListSubscription fromJson(JSONObject obj) {
+        try {
+            BlockListSubscription subscription = new BlockListSubscription(
+                obj.getInt("id"),
+                obj.getString("name"),
+                obj.getString("url")
+            );
+            subscription.update(
+                obj.optString("etag", null),
+                obj.optString("lastModified", null),
+                obj.optInt("domainCount", 0),
+                obj.optLong("updatedAt", 0)
+            );
+            return subscription;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
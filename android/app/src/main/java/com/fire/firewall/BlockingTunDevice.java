@@ -0,0 +1,57 @@
+package com.fire.firewall;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Fallback for descriptors established with setBlocking(true): every read parks the
+ * reader until exactly one packet arrives.
+ */
+public class BlockingTunDevice implements TunDevice {
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+
+    public BlockingTunDevice(ReadableByteChannel in, WritableByteChannel out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    public static BlockingTunDevice forDescriptor(FileDescriptor fd) {
+        return new BlockingTunDevice(
+            new FileInputStream(fd).getChannel(),
+            new FileOutputStream(fd).getChannel()
+        );
+    }
+
+    @Override
+    public int read(ByteBuffer[] buffers) throws IOException {
+        ByteBuffer buffer = buffers[0];
+        buffer.clear();
+        int length = in.read(buffer);
+        if (length < 0) {
+            throw new EOFException("Tun device closed");
+        }
+        buffer.flip();
+        return length > 0 ? 1 : 0;
+    }
+
+    @Override
+    public void write(ByteBuffer[] packets, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            while (packets[i].hasRemaining()) {
+                out.write(packets[i]);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The descriptor belongs to the VPN interface and is closed with it
+    }
+}
@@ -0,0 +1,139 @@
+package com.fire.firewall;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Non-blocking tun I/O over NIO channels. Each wakeup drains every packet the kernel
+ * has queued instead of returning to the caller after one read.
+ */
+public class ChannelTunDevice implements TunDevice {
+    private static final String TAG = "ChannelTunDevice";
+    private static final int POLL_TIMEOUT_MS = 100;
+
+    /**
+     * Waits until the underlying descriptor can be read or written. Returns false on
+     * timeout.
+     */
+    public interface Readiness {
+        boolean awaitReadable(int timeoutMs) throws IOException;
+        boolean awaitWritable(int timeoutMs) throws IOException;
+    }
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final Readiness readiness;
+
+    public ChannelTunDevice(ReadableByteChannel in, WritableByteChannel out, Readiness readiness) {
+        this.in = in;
+        this.out = out;
+        this.readiness = readiness;
+    }
+
+    /**
+     * Wraps a tun descriptor that was established with setBlocking(false).
+     */
+    public static ChannelTunDevice forDescriptor(FileDescriptor fd) {
+        return new ChannelTunDevice(
+            new FileInputStream(fd).getChannel(),
+            new FileOutputStream(fd).getChannel(),
+            new PollReadiness(fd)
+        );
+    }
+
+    @Override
+    public int read(ByteBuffer[] buffers) throws IOException {
+        int count = 0;
+        while (count < buffers.length) {
+            ByteBuffer buffer = buffers[count];
+            buffer.clear();
+            int length = in.read(buffer);
+
+            if (length > 0) {
+                buffer.flip();
+                count++;
+            } else if (length < 0) {
+                throw new EOFException("Tun device closed");
+            } else if (count > 0 || !readiness.awaitReadable(POLL_TIMEOUT_MS)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void write(ByteBuffer[] packets, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer packet = packets[i];
+            while (packet.hasRemaining()) {
+                if (out.write(packet) == 0 && !readiness.awaitWritable(POLL_TIMEOUT_MS)) {
+                    Log.w(TAG, "Tun device not writable, dropping packet");
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The descriptor belongs to the VPN interface and is closed with it
+    }
+
+    // The reader and the writer each poll from their own thread, so each has its own struct
+    private static class PollReadiness implements Readiness {
+        private final StructPollfd[] readFds;
+        private final StructPollfd[] writeFds;
+
+        PollReadiness(FileDescriptor fd) {
+            readFds = pollFds(fd, OsConstants.POLLIN);
+            writeFds = pollFds(fd, OsConstants.POLLOUT);
+        }
+
+        @Override
+        public boolean awaitReadable(int timeoutMs) throws IOException {
+            return poll(readFds, timeoutMs);
+        }
+
+        @Override
+        public boolean awaitWritable(int timeoutMs) throws IOException {
+            return poll(writeFds, timeoutMs);
+        }
+
+        private static StructPollfd[] pollFds(FileDescriptor fd, int events) {
+            StructPollfd pollfd = new StructPollfd();
+            pollfd.fd = fd;
+            pollfd.events = (short) events;
+            return new StructPollfd[] { pollfd };
+        }
+
+        private static boolean poll(StructPollfd[] fds, int timeoutMs) throws IOException {
+            fds[0].revents = 0;
+            try {
+                if (Os.poll(fds, timeoutMs) <= 0) {
+                    return false;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) {
+                    return false;
+                }
+                throw new IOException("poll failed", e);
+            }
+            if ((fds[0].revents & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0) {
+                throw new EOFException("Tun device hung up");
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.fire.firewall;
+
+import java.util.Arrays;
+
+/**
+ * Immutable binary radix tree over IPv4 prefixes. A lookup follows at most 32
+ * edges, remembers the verdict of the longest matching prefix and never allocates.
+ */
+public final class CidrTree {
+    public static final byte NONE = 0;
+    public static final byte ALLOW = 1;
+    public static final byte BLOCK = 2;
+
+    private final int[] children;
+    private final byte[] verdicts;
+
+    private CidrTree(Builder builder) {
+        this.children = Arrays.copyOf(builder.children, builder.nodeCount * 2);
+        this.verdicts = Arrays.copyOf(builder.verdicts, builder.nodeCount);
+    }
+
+    public static CidrTree empty() {
+        return new Builder().build();
+    }
+
+    public byte lookup(int ip) {
+        int node = 0;
+        byte best = verdicts[0];
+        for (int bit = 31; bit >= 0; bit--) {
+            node = children[node * 2 + ((ip >>> bit) & 1)];
+            if (node == 0) {
+                break;
+            }
+            if (verdicts[node] != NONE) {
+                best = verdicts[node];
+            }
+        }
+        return best;
+    }
+
+    public static final class Builder {
+        private int[] children = new int[64];
+        private byte[] verdicts = new byte[32];
+        private int nodeCount = 1;
+
+        // When the same prefix is both allowed and blocked, block wins
+        public Builder add(int ip, int prefixLength, boolean blocked) {
+            int node = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                int slot = node * 2 + ((ip >>> (31 - i)) & 1);
+                int child = children[slot];
+                if (child == 0) {
+                    child = newNode();
+                    children[slot] = child;
+                }
+                node = child;
+            }
+            byte verdict = blocked ? BLOCK : ALLOW;
+            if (verdict > verdicts[node]) {
+                verdicts[node] = verdict;
+            }
+            return this;
+        }
+
+        public CidrTree build() {
+            return new CidrTree(this);
+        }
+
+        private int newNode() {
+            int node = nodeCount++;
+            if (nodeCount > verdicts.length) {
+                verdicts = Arrays.copyOf(verdicts, verdicts.length * 2);
+                children = Arrays.copyOf(children, children.length * 2);
+            }
+            return node;
+        }
+    }
+}
@@ -5,25 +5,80 @@ import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.net.InetAddress;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
 
 public class ConnectionLogger {
     private static final String TAG = "ConnectionLogger";
     private static final String PREFS_NAME = "fire_connection_logs";
     private static final String KEY_LOGS = "logs";
-    private static final int MAX_LOGS = 1000;
+    private static final String STORE_NAME = "connection_logs";
+    private static final int MAX_LOGS = 1 << 20;
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int DRAIN_BATCH = 512;
+    // Identical events within this window become one record with a hit count
+    private static final long COALESCE_WINDOW_MS = 1000;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    private static final int MAX_PAGE_SIZE = 1000;
+    // Sequences fetched per store lock while aggregating
+    private static final int SCAN_CHUNK = 4096;
+
+    // Action names by the code stored in each record
+    private static final String[] ACTIONS = { "UNKNOWN", "DNS_BLOCKED", "RULE_BLOCKED" };
 
     private static ConnectionLogger instance;
     private final Context context;
-    private final List<ConnectionLog> logs = new ArrayList<>();
+    private LogStore store;
+    private final LogEventQueue queue = new LogEventQueue(QUEUE_CAPACITY);
+    private Thread writerThread;
+    private volatile boolean flushRequested = false;
+    private volatile boolean clearRequested = false;
+
+    // Coalescing state, only touched by the writer thread. Events are looked up by a
+    // hash of their fields and flushed in the order they were first seen.
+    private final LongObjectMap<PendingEvent> pendingByHash = new LongObjectMap<>(256);
+    private final ArrayDeque<PendingEvent> pendingOrder = new ArrayDeque<>();
+
+    private static final class PendingEvent {
+        final long hash;
+        final long timestamp;
+        final int destIp;
+        final int destPort;
+        final int uid;
+        final int action;
+        final String domain;
+        int count = 1;
+        boolean written;
+
+        PendingEvent(long hash, long timestamp, int destIp, int destPort, int uid, int action, String domain) {
+            this.hash = hash;
+            this.timestamp = timestamp;
+            this.destIp = destIp;
+            this.destPort = destPort;
+            this.uid = uid;
+            this.action = action;
+            this.domain = domain;
+        }
+
+        boolean sameAs(int destIp, int destPort, int uid, int action, String domain) {
+            return this.destIp == destIp && this.destPort == destPort && this.uid == uid
+                && this.action == action && Objects.equals(this.domain, domain);
+        }
+    }
 
     public static class ConnectionLog {
         public final long timestamp;
@@ -32,29 +87,19 @@ public class ConnectionLogger {
         public final int uid;
         public final String action;
         public final String packageName;
+        public final String domain;
+        public final int count;
 
-        public ConnectionLog(long timestamp, String destIp, int destPort, int uid, String action, String packageName) {
+        public ConnectionLog(long timestamp, String destIp, int destPort, int uid, String action,
+                             String packageName, String domain, int count) {
             this.timestamp = timestamp;
             this.destIp = destIp;
             this.destPort = destPort;
             this.uid = uid;
             this.action = action;
             this.packageName = packageName;
-        }
-
-        public JSONObject toJson() {
-            try {
-                JSONObject obj = new JSONObject();
-                obj.put("timestamp", timestamp);
-                obj.put("destIp", destIp);
-                obj.put("destPort", destPort);
-                obj.put("uid", uid);
-                obj.put("action", action);
-                obj.put("packageName", packageName);
-                return obj;
-            } catch (Exception e) {
-                return null;
-            }
+            this.domain = domain;
+            this.count = count;
         }
 
         public static ConnectionLog fromJson(JSONObject obj) {
@@ -65,7 +110,9 @@ public class ConnectionLogger {
                     obj.getInt("destPort"),
                     obj.getInt("uid"),
                     obj.getString("action"),
-                    obj.optString("packageName", "")
+                    obj.optString("packageName", ""),
+                    obj.optString("domain", ""),
+                    obj.optInt("count", 1)
                 );
             } catch (Exception e) {
                 return null;
@@ -80,13 +127,28 @@ public class ConnectionLogger {
             map.putInt("uid", uid);
             map.putString("action", action);
             map.putString("packageName", packageName);
+            map.putString("domain", domain);
+            map.putInt("count", count);
             return map;
         }
     }
 
     private ConnectionLogger(Context context) {
         this.context = context.getApplicationContext();
-        loadLogs();
+        try {
+            store = new LogStore(this.context.getFilesDir(), STORE_NAME, MAX_LOGS);
+            writerThread = new Thread(this::runWriter, "FirewallLogWriter");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening log store, connection logging disabled", e);
+        }
+    }
+
+    // Logs into the given store with no writer thread; callers drive coalescing
+    ConnectionLogger(LogStore store) {
+        this.context = null;
+        this.store = store;
     }
 
     public static synchronized ConnectionLogger getInstance(Context context) {
@@ -96,67 +158,43 @@ public class ConnectionLogger {
         return instance;
     }
 
-    private void loadLogs() {
-        try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            String json = prefs.getString(KEY_LOGS, "[]");
-            JSONArray array = new JSONArray(json);
-
-            synchronized (logs) {
-                logs.clear();
-                for (int i = 0; i < array.length(); i++) {
-                    ConnectionLog log = ConnectionLog.fromJson(array.getJSONObject(i));
-                    if (log != null) {
-                        logs.add(log);
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error loading logs", e);
+    // Moves logs kept as JSON in SharedPreferences by older versions into the store
+    private void migrateLegacyLogs() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains(KEY_LOGS)) {
+            return;
         }
-    }
 
-    private void saveLogs() {
         try {
-            JSONArray array = new JSONArray();
-            synchronized (logs) {
-                for (ConnectionLog log : logs) {
-                    JSONObject obj = log.toJson();
-                    if (obj != null) {
-                        array.put(obj);
-                    }
+            JSONArray array = new JSONArray(prefs.getString(KEY_LOGS, "[]"));
+            // Stored newest first
+            for (int i = array.length() - 1; i >= 0; i--) {
+                ConnectionLog log = ConnectionLog.fromJson(array.getJSONObject(i));
+                if (log != null) {
+                    store.append(log.timestamp, ipStringToInt(log.destIp), log.destPort, log.uid,
+                        actionCode(log.action), log.domain, log.count);
                 }
             }
-
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            prefs.edit().putString(KEY_LOGS, array.toString()).apply();
+            Log.i(TAG, "Migrated " + array.length() + " logs from preferences");
         } catch (Exception e) {
-            Log.e(TAG, "Error saving logs", e);
+            Log.e(TAG, "Error migrating logs", e);
         }
+        prefs.edit().remove(KEY_LOGS).apply();
     }
 
     public void logBlocked(int destIp, int destPort, int uid, String action) {
-        String ipString = intToIpString(destIp);
-        String packageName = getPackageNameForUid(uid);
-
-        ConnectionLog log = new ConnectionLog(
-            System.currentTimeMillis(),
-            ipString,
-            destPort,
-            uid,
-            action,
-            packageName
-        );
+        logBlocked(destIp, destPort, uid, action, null);
+    }
 
-        synchronized (logs) {
-            logs.add(0, log);
-            while (logs.size() > MAX_LOGS) {
-                logs.remove(logs.size() - 1);
-            }
+    /**
+     * Queues a blocked connection for the writer thread. Safe to call from packet
+     * threads: it never blocks and drops the event if the queue is full.
+     */
+    public void logBlocked(int destIp, int destPort, int uid, String action, String domain) {
+        if (store == null) {
+            return;
         }
-
-        saveLogs();
-        Log.d(TAG, "Logged blocked connection: " + ipString + ":" + destPort + " (" + action + ")");
+        queue.offer(System.currentTimeMillis(), destIp, destPort, uid, actionCode(action), domain);
     }
 
     public void logAllowed(int destIp, int destPort, int uid) {
@@ -166,20 +204,320 @@ public class ConnectionLogger {
 
     public WritableArray getLogs(int limit) {
         WritableArray result = Arguments.createArray();
-        synchronized (logs) {
-            int count = Math.min(limit, logs.size());
+        if (store == null) {
+            return result;
+        }
+
+        LogStore.Record record = new LogStore.Record();
+        UidPackageIndex packages = AppCatalog.getInstance(context).getIndex();
+        long first = store.getFirstSequence();
+        int count = 0;
+        // Newest first
+        for (long sequence = store.getNextSequence() - 1; sequence >= first && count < limit; sequence--) {
+            if (!store.read(sequence, record)) {
+                break;
+            }
+            result.pushMap(toLog(record, packages).toWritableMap());
+            count++;
+        }
+        return result;
+    }
+
+    /**
+     * Cursor after the newest stored log.
+     */
+    public long getLogCursor() {
+        return store != null ? store.getNextSequence() : 0;
+    }
+
+    /**
+     * Returns up to limit logs with a sequence number of at least cursor, oldest
+     * first, and the cursor to continue from. truncated is true if logs after
+     * cursor were dropped to make room or cleared, so the caller missed some.
+     */
+    public WritableMap getLogsSince(long cursor, int limit) {
+        WritableMap result = Arguments.createMap();
+        WritableArray logs = Arguments.createArray();
+        long sequence = cursor;
+        boolean truncated = false;
+        if (store != null) {
+            long first = store.getFirstSequence();
+            long next = store.getNextSequence();
+            // A cursor past the end means the logs were cleared since
+            if (sequence < first || sequence > next) {
+                truncated = cursor > 0;
+                sequence = first;
+            }
+            LogStore.Record record = new LogStore.Record();
+            UidPackageIndex packages = AppCatalog.getInstance(context).getIndex();
+            int count = 0;
+            while (sequence < next && count < limit && store.read(sequence, record)) {
+                logs.pushMap(toLog(record, packages).toWritableMap());
+                sequence++;
+                count++;
+            }
+        }
+        result.putArray("logs", logs);
+        result.putDouble("cursor", sequence);
+        result.putBoolean("truncated", truncated);
+        return result;
+    }
+
+    /**
+     * Returns the newest page of logs matching filter below cursor, newest first.
+     * filter may hold packageName or uid, action, and from and to in epoch ms. A
+     * negative cursor starts at the newest log. The returned cursor continues with
+     * the next page, and hasMore tells whether that page has any logs; every
+     * sequence, 0 included, is a valid cursor.
+     */
+    public WritableMap queryLogs(ReadableMap filter, long cursor, int limit) {
+        WritableMap result = Arguments.createMap();
+        WritableArray logs = Arguments.createArray();
+        long next = cursor;
+        boolean hasMore = false;
+        UidPackageIndex packages = AppCatalog.getInstance(context).getIndex();
+        LogStore.Query query = toQuery(filter, packages);
+        if (store != null && query != null && limit > 0) {
+            // One more than the page, to tell whether another page follows
+            int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+            long[] sequences = new long[pageSize + 1];
+            int found = store.find(query, cursor < 0 ? Long.MAX_VALUE : cursor, sequences);
+            hasMore = found > pageSize;
+            int count = Math.min(found, pageSize);
+            // Records are decoded and converted outside the store lock
+            LogStore.Record record = new LogStore.Record();
             for (int i = 0; i < count; i++) {
-                result.pushMap(logs.get(i).toWritableMap());
+                if (store.read(sequences[i], record)) {
+                    logs.pushMap(toLog(record, packages).toWritableMap());
+                }
+            }
+            if (count > 0) {
+                next = sequences[count - 1];
             }
         }
+        result.putArray("logs", logs);
+        result.putDouble("cursor", next);
+        result.putBoolean("hasMore", hasMore);
         return result;
     }
 
+    /**
+     * Returns up to limit destinations of the logs matching filter, by domain or
+     * by IP when there is none, with the most blocked connections first.
+     */
+    public WritableArray getTopDestinations(ReadableMap filter, int limit) {
+        WritableArray result = Arguments.createArray();
+        UidPackageIndex packages = AppCatalog.getInstance(context).getIndex();
+        LogStore.Query query = toQuery(filter, packages);
+        if (store == null || query == null) {
+            return result;
+        }
+
+        Map<Long, Destination> byKey = new HashMap<>();
+        long[] sequences = new long[SCAN_CHUNK];
+        LogStore.Record record = new LogStore.Record();
+        long before = Long.MAX_VALUE;
+        int found;
+        do {
+            found = store.find(query, before, sequences);
+            for (int i = 0; i < found; i++) {
+                if (!store.read(sequences[i], record)) {
+                    continue;
+                }
+                long key = record.domainId != LogStore.NO_DOMAIN
+                    ? record.domainId : (1L << 32) | (record.destIp & 0xFFFFFFFFL);
+                Destination destination = byKey.get(key);
+                if (destination == null) {
+                    destination = new Destination(record.domainId, record.destIp);
+                    byKey.put(key, destination);
+                }
+                destination.add(record);
+            }
+            if (found > 0) {
+                before = sequences[found - 1];
+            }
+        } while (found == sequences.length);
+
+        List<Destination> destinations = new ArrayList<>(byKey.values());
+        Collections.sort(destinations, (a, b) -> Long.compare(b.hits, a.hits));
+        for (int i = 0; i < destinations.size() && i < limit; i++) {
+            Destination destination = destinations.get(i);
+            WritableMap map = Arguments.createMap();
+            map.putString("domain", store.getDomain(destination.domainId));
+            map.putString("destIp", destination.domainId != LogStore.NO_DOMAIN ? "" : intToIpString(destination.destIp));
+            map.putDouble("hits", destination.hits);
+            map.putInt("records", destination.records);
+            map.putDouble("lastSeen", destination.lastSeen);
+            result.pushMap(map);
+        }
+        return result;
+    }
+
+    private static final class Destination {
+        final int domainId;
+        final int destIp;
+        long hits;
+        int records;
+        long lastSeen;
+
+        Destination(int domainId, int destIp) {
+            this.domainId = domainId;
+            this.destIp = destIp;
+        }
+
+        void add(LogStore.Record record) {
+            hits += record.count;
+            records++;
+            lastSeen = Math.max(lastSeen, record.timestamp);
+        }
+    }
+
+    // Returns null if the filter names a package that is not installed
+    private static LogStore.Query toQuery(ReadableMap filter, UidPackageIndex packages) {
+        LogStore.Query query = new LogStore.Query();
+        if (filter == null) {
+            return query;
+        }
+        if (filter.hasKey("packageName") && !filter.isNull("packageName")) {
+            int uid = packages.getUid(filter.getString("packageName"));
+            if (uid < 0) {
+                return null;
+            }
+            query.byUid = true;
+            query.uid = uid;
+        } else if (filter.hasKey("uid") && !filter.isNull("uid")) {
+            query.byUid = true;
+            query.uid = filter.getInt("uid");
+        }
+        if (filter.hasKey("action") && !filter.isNull("action")) {
+            query.action = actionCode(filter.getString("action"));
+        }
+        if (filter.hasKey("from") && !filter.isNull("from")) {
+            query.from = (long) filter.getDouble("from");
+        }
+        if (filter.hasKey("to") && !filter.isNull("to")) {
+            query.to = (long) filter.getDouble("to");
+        }
+        return query;
+    }
+
     public void clearLogs() {
-        synchronized (logs) {
-            logs.clear();
+        if (store != null) {
+            clearRequested = true;
+            store.clear();
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    // Asks the writer to store everything queued or still being coalesced and sync
+    // the store, e.g. when the VPN stops. Returns without waiting for it.
+    public void sync() {
+        if (store != null) {
+            flushRequested = true;
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void runWriter() {
+        // Both read everything stored so far, too slow for whoever opened the logger
+        migrateLegacyLogs();
+        store.buildIndex();
+
+        LogEventQueue.Consumer coalescer = this::coalesce;
+        while (true) {
+            if (clearRequested) {
+                clearRequested = false;
+                queue.drain((timestamp, destIp, destPort, uid, action, domain) -> { }, Integer.MAX_VALUE);
+                pendingByHash.clear();
+                pendingOrder.clear();
+                store.clear();
+            }
+
+            int drained = queue.drain(coalescer, DRAIN_BATCH);
+            boolean flushAll = flushRequested;
+            writeExpired(System.currentTimeMillis(), flushAll);
+
+            long dropped = queue.takeDropped();
+            if (dropped > 0) {
+                Log.w(TAG, "Log queue full, dropped " + dropped + " events");
+            }
+
+            if (flushAll && drained == 0) {
+                flushRequested = false;
+                store.sync();
+            }
+            if (drained == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
         }
-        saveLogs();
+    }
+
+    void coalesce(long timestamp, int destIp, int destPort, int uid, int action, String domain) {
+        long hash = eventHash(destIp, destPort, uid, action, domain);
+        PendingEvent pending = pendingByHash.get(hash);
+        if (pending != null && pending.sameAs(destIp, destPort, uid, action, domain)
+                && timestamp - pending.timestamp < COALESCE_WINDOW_MS) {
+            pending.count++;
+            return;
+        }
+
+        if (pending != null) {
+            // Window over or a hash collision, the older event is complete
+            write(pending);
+        }
+        pending = new PendingEvent(hash, timestamp, destIp, destPort, uid, action, domain);
+        pendingByHash.put(hash, pending);
+        pendingOrder.addLast(pending);
+    }
+
+    void writeExpired(long now, boolean all) {
+        PendingEvent pending;
+        while ((pending = pendingOrder.peekFirst()) != null
+                && (all || pending.written || now - pending.timestamp >= COALESCE_WINDOW_MS)) {
+            pendingOrder.pollFirst();
+            if (!pending.written) {
+                write(pending);
+            }
+        }
+    }
+
+    private void write(PendingEvent pending) {
+        pending.written = true;
+        if (pendingByHash.get(pending.hash) == pending) {
+            pendingByHash.remove(pending.hash);
+        }
+        store.append(pending.timestamp, pending.destIp, pending.destPort, pending.uid, pending.action,
+            pending.domain, pending.count);
+        Log.d(TAG, "Logged blocked connection: " + intToIpString(pending.destIp) + ":" + pending.destPort +
+            " (" + ACTIONS[pending.action] + ", " + pending.count + "x)");
+    }
+
+    private static long eventHash(int destIp, int destPort, int uid, int action, String domain) {
+        long h = ((long) destIp << 32) ^ ((long) uid << 16) ^ ((long) destPort << 4) ^ action;
+        return h * 0x9E3779B97F4A7C15L + (domain == null ? 0 : domain.hashCode());
+    }
+
+    private ConnectionLog toLog(LogStore.Record record, UidPackageIndex packages) {
+        String packageName = record.uid < 0 ? "" : packages.getPackage(record.uid);
+        return new ConnectionLog(
+            record.timestamp,
+            intToIpString(record.destIp),
+            record.destPort,
+            record.uid,
+            record.action < ACTIONS.length ? ACTIONS[record.action] : ACTIONS[0],
+            packageName,
+            store.getDomain(record.domainId),
+            record.count
+        );
+    }
+
+    private static int actionCode(String action) {
+        for (int i = 1; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(action)) {
+                return i;
+            }
+        }
+        return 0;
     }
 
     private String intToIpString(int ip) {
@@ -191,9 +529,11 @@ public class ConnectionLogger {
         );
     }
 
-    private String getPackageNameForUid(int uid) {
-        if (uid < 0) return "";
-        String[] packages = context.getPackageManager().getPackagesForUid(uid);
-        return packages != null && packages.length > 0 ? packages[0] : "";
+    private static int ipStringToInt(String ip) {
+        try {
+            return IpRule.ipToInt(ip);
+        } catch (Exception e) {
+            return 0;
+        }
     }
 }
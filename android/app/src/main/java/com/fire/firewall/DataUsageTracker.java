@@ -2,25 +2,70 @@ package com.fire.firewall;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Per-UID traffic counters. UIDs are spread over lock stripes holding primitive
+ * arrays, so packet threads only contend when they hit the same stripe and nothing is
+ * boxed. A single flusher writes the UIDs that changed since the last flush, each to
+ * its own fixed-size record in a binary file, on a fixed interval and on stop.
+ * Traffic is also kept per minute, hour and day and network type in {@link UsageHistory},
+ * which resetStats() leaves alone.
+ */
 public class DataUsageTracker {
     private static final String TAG = "DataUsageTracker";
     private static final String PREFS_NAME = "fire_data_usage";
     private static final String KEY_USAGE = "usage";
+    private static final String FILE_NAME = "data_usage.bin";
+    private static final long FLUSH_INTERVAL_MS = 10_000;
+
+    private static final int STRIPE_BITS = 4;
+    private static final int BYTES_ALLOWED = 0;
+    private static final int BYTES_BLOCKED = 1;
+    private static final int PACKETS_ALLOWED = 2;
+    private static final int PACKETS_BLOCKED = 3;
+    private static final int FIELDS = 4;
+
+    // File layout: magic, record count, then records of uid + FIELDS counters
+    private static final int MAGIC = 0x46574455; // "FWDU"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 4 + FIELDS * 8;
 
     private static DataUsageTracker instance;
     private final Context context;
-    private final Map<Integer, UsageStats> usageByUid = new HashMap<>();
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    private final NetworkMonitor networkMonitor;
+    private final UsageHistory history;
+
+    // Readers advance the epoch; writers stamp changed UIDs with it, so a reader
+    // finds everything changed since its cursor without the packet path counting
+    private volatile long usageEpoch = 1;
+    private volatile long resetEpoch = 0;
+
+    // Only touched on the flusher thread once the constructor is done
+    private FileChannel file;
+    private int fileRecords = 0;
+    private ByteBuffer flushBuffer = ByteBuffer.allocate(64 * (4 + RECORD_SIZE));
 
     public static class UsageStats {
         public long bytesAllowed = 0;
@@ -28,19 +73,6 @@ public class DataUsageTracker {
         public long packetsAllowed = 0;
         public long packetsBlocked = 0;
 
-        public JSONObject toJson() {
-            try {
-                JSONObject obj = new JSONObject();
-                obj.put("bytesAllowed", bytesAllowed);
-                obj.put("bytesBlocked", bytesBlocked);
-                obj.put("packetsAllowed", packetsAllowed);
-                obj.put("packetsBlocked", packetsBlocked);
-                return obj;
-            } catch (Exception e) {
-                return new JSONObject();
-            }
-        }
-
         public static UsageStats fromJson(JSONObject obj) {
             UsageStats stats = new UsageStats();
             stats.bytesAllowed = obj.optLong("bytesAllowed", 0);
@@ -51,9 +83,104 @@ public class DataUsageTracker {
         }
     }
 
+    /**
+     * Open-addressing table from UID to counters, guarded by its own monitor.
+     */
+    private static final class Stripe {
+        int[] uids = new int[16];
+        long[] counters = new long[16 * FIELDS];
+        // Record index in the file, -1 until first flushed
+        int[] fileSlots = new int[16];
+        boolean[] dirty = new boolean[16];
+        // Usage epoch of the last change, for getUsageSince()
+        long[] changedAt = new long[16];
+        int size = 0;
+        boolean anyDirty = false;
+
+        Stripe() {
+            Arrays.fill(uids, -1);
+            Arrays.fill(fileSlots, -1);
+        }
+
+        // Returns the slot of uid, adding it if needed
+        int slotFor(int uid) {
+            int mask = uids.length - 1;
+            int i = mix(uid) & mask;
+            while (uids[i] != -1) {
+                if (uids[i] == uid) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            if ((size + 1) * 2 > uids.length) {
+                grow();
+                return slotFor(uid);
+            }
+            uids[i] = uid;
+            size++;
+            return i;
+        }
+
+        // field is BYTES_ALLOWED or BYTES_BLOCKED, the packet counter sits two further
+        void add(int uid, int field, long bytes, long packets, long epoch) {
+            int slot = slotFor(uid);
+            counters[slot * FIELDS + field] += bytes;
+            counters[slot * FIELDS + field + 2] += packets;
+            changedAt[slot] = epoch;
+            dirty[slot] = true;
+            anyDirty = true;
+        }
+
+        void clear() {
+            Arrays.fill(uids, -1);
+            Arrays.fill(counters, 0);
+            Arrays.fill(fileSlots, -1);
+            Arrays.fill(dirty, false);
+            Arrays.fill(changedAt, 0);
+            size = 0;
+            anyDirty = false;
+        }
+
+        private void grow() {
+            int[] oldUids = uids;
+            long[] oldCounters = counters;
+            int[] oldFileSlots = fileSlots;
+            boolean[] oldDirty = dirty;
+            long[] oldChangedAt = changedAt;
+            int capacity = oldUids.length * 2;
+
+            uids = new int[capacity];
+            counters = new long[capacity * FIELDS];
+            fileSlots = new int[capacity];
+            dirty = new boolean[capacity];
+            changedAt = new long[capacity];
+            Arrays.fill(uids, -1);
+            Arrays.fill(fileSlots, -1);
+            size = 0;
+
+            for (int i = 0; i < oldUids.length; i++) {
+                if (oldUids[i] != -1) {
+                    int slot = slotFor(oldUids[i]);
+                    System.arraycopy(oldCounters, i * FIELDS, counters, slot * FIELDS, FIELDS);
+                    fileSlots[slot] = oldFileSlots[i];
+                    dirty[slot] = oldDirty[i];
+                    changedAt[slot] = oldChangedAt[i];
+                }
+            }
+        }
+    }
+
     private DataUsageTracker(Context context) {
         this.context = context.getApplicationContext();
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        networkMonitor = NetworkMonitor.getInstance(context);
+        history = new UsageHistory(this.context.getFilesDir(), System.currentTimeMillis());
         loadUsage();
+        migrateLegacyUsage();
+        flusher.scheduleWithFixedDelay(() -> flushNow(false), FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
     }
 
     public static synchronized DataUsageTracker getInstance(Context context) {
@@ -65,103 +192,164 @@ public class DataUsageTracker {
 
     private void loadUsage() {
         try {
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            String json = prefs.getString(KEY_USAGE, "{}");
-            JSONObject obj = new JSONObject(json);
-
-            synchronized (usageByUid) {
-                usageByUid.clear();
-                Iterator<String> keys = obj.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    int uid = Integer.parseInt(key);
-                    UsageStats stats = UsageStats.fromJson(obj.getJSONObject(key));
-                    usageByUid.put(uid, stats);
+            file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME), "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (file.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                writeHeader();
+                return;
+            }
+
+            ByteBuffer records = ByteBuffer.allocate(header.getInt(4) * RECORD_SIZE);
+            while (records.hasRemaining() && file.read(records, HEADER_SIZE + records.position()) > 0) {
+                // Keep reading until the buffer is full or the file ends
+            }
+
+            // Records cut short by a crash while appending are dropped
+            int complete = records.position() / RECORD_SIZE;
+            for (int i = 0; i < complete; i++) {
+                int base = i * RECORD_SIZE;
+                int uid = records.getInt(base);
+                Stripe stripe = stripeFor(uid);
+                int slot = stripe.slotFor(uid);
+                for (int f = 0; f < FIELDS; f++) {
+                    stripe.counters[slot * FIELDS + f] = records.getLong(base + 4 + f * 8);
                 }
+                stripe.fileSlots[slot] = i;
             }
-        } catch (Exception e) {
+            fileRecords = complete;
+        } catch (IOException e) {
             Log.e(TAG, "Error loading usage", e);
         }
     }
 
-    private void saveUsage() {
+    // Usage kept as JSON in SharedPreferences by older versions is imported once
+    private void migrateLegacyUsage() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains(KEY_USAGE)) {
+            return;
+        }
+
         try {
-            JSONObject obj = new JSONObject();
-            synchronized (usageByUid) {
-                for (Map.Entry<Integer, UsageStats> entry : usageByUid.entrySet()) {
-                    obj.put(String.valueOf(entry.getKey()), entry.getValue().toJson());
-                }
+            JSONObject obj = new JSONObject(prefs.getString(KEY_USAGE, "{}"));
+            Iterator<String> keys = obj.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                int uid = Integer.parseInt(key);
+                UsageStats stats = UsageStats.fromJson(obj.getJSONObject(key));
+                add(uid, BYTES_ALLOWED, stats.bytesAllowed, stats.packetsAllowed);
+                add(uid, BYTES_BLOCKED, stats.bytesBlocked, stats.packetsBlocked);
             }
-
-            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            prefs.edit().putString(KEY_USAGE, obj.toString()).apply();
         } catch (Exception e) {
-            Log.e(TAG, "Error saving usage", e);
+            Log.e(TAG, "Error migrating usage", e);
         }
+        flush();
+        prefs.edit().remove(KEY_USAGE).apply();
     }
 
     public void trackAllowed(int uid, int bytes) {
         if (uid < 0) return;
-
-        synchronized (usageByUid) {
-            UsageStats stats = usageByUid.get(uid);
-            if (stats == null) {
-                stats = new UsageStats();
-                usageByUid.put(uid, stats);
-            }
-            stats.bytesAllowed += bytes;
-            stats.packetsAllowed++;
-        }
-
-        // Save periodically, not on every packet
-        if (System.currentTimeMillis() % 100 == 0) {
-            saveUsage();
-        }
+        track(uid, false, bytes, 1);
     }
 
     public void trackBlocked(int uid, int bytes) {
         if (uid < 0) return;
+        track(uid, true, bytes, 1);
+    }
 
-        synchronized (usageByUid) {
-            UsageStats stats = usageByUid.get(uid);
-            if (stats == null) {
-                stats = new UsageStats();
-                usageByUid.put(uid, stats);
-            }
-            stats.bytesBlocked += bytes;
-            stats.packetsBlocked++;
+    /**
+     * Adds traffic a tracked flow accumulated since its last report, so the counters
+     * are touched once per flow and interval instead of once per packet.
+     */
+    public void trackFlow(int uid, boolean blocked, long bytes, long packets) {
+        if (uid < 0) return;
+        track(uid, blocked, bytes, packets);
+    }
+
+    private void track(int uid, boolean blocked, long bytes, long packets) {
+        add(uid, blocked ? BYTES_BLOCKED : BYTES_ALLOWED, bytes, packets);
+        history.record(uid, currentNetwork(), blocked, bytes);
+    }
+
+    private int currentNetwork() {
+        if (networkMonitor.isWifi()) {
+            return UsageHistory.NETWORK_WIFI;
         }
+        return networkMonitor.isMobile() ? UsageHistory.NETWORK_MOBILE : UsageHistory.NETWORK_OTHER;
+    }
 
-        saveUsage();
+    private void add(int uid, int field, long bytes, long packets) {
+        Stripe stripe = stripeFor(uid);
+        synchronized (stripe) {
+            stripe.add(uid, field, bytes, packets, usageEpoch);
+        }
     }
 
     public WritableMap getUsageStats() {
+        return collectUsage(Long.MIN_VALUE);
+    }
+
+    /**
+     * Like {@link #getUsageStats()}, but byApp only holds the apps whose counters
+     * changed since cursor, with their full values. Pass the returned cursor to the
+     * next call; 0 returns every app. reset is true if the counters were reset in
+     * between, in which case apps missing from byApp are back at zero.
+     */
+    public WritableMap getUsageSince(long cursor) {
+        long epoch;
+        synchronized (this) {
+            epoch = usageEpoch;
+            usageEpoch = epoch + 1;
+        }
+        WritableMap result = collectUsage(cursor);
+        result.putDouble("cursor", epoch + 1);
+        result.putBoolean("reset", cursor > 0 && resetEpoch >= cursor);
+        return result;
+    }
+
+    // Totals over every UID plus per-app counters of those changed since epoch
+    private WritableMap collectUsage(long since) {
         WritableMap result = Arguments.createMap();
         long totalBytesAllowed = 0;
         long totalBytesBlocked = 0;
         long totalPacketsAllowed = 0;
         long totalPacketsBlocked = 0;
 
+        UidPackageIndex packages = AppCatalog.getInstance(context).getIndex();
         WritableMap byApp = Arguments.createMap();
+        int changed = 0;
 
-        synchronized (usageByUid) {
-            for (Map.Entry<Integer, UsageStats> entry : usageByUid.entrySet()) {
-                int uid = entry.getKey();
-                UsageStats stats = entry.getValue();
+        for (Stripe stripe : stripes) {
+            int[] uids;
+            long[] counters;
+            long[] changedAt;
+            synchronized (stripe) {
+                uids = stripe.uids.clone();
+                counters = stripe.counters.clone();
+                changedAt = stripe.changedAt.clone();
+            }
 
-                totalBytesAllowed += stats.bytesAllowed;
-                totalBytesBlocked += stats.bytesBlocked;
-                totalPacketsAllowed += stats.packetsAllowed;
-                totalPacketsBlocked += stats.packetsBlocked;
+            for (int i = 0; i < uids.length; i++) {
+                if (uids[i] == -1) {
+                    continue;
+                }
+                int base = i * FIELDS;
+                totalBytesAllowed += counters[base + BYTES_ALLOWED];
+                totalBytesBlocked += counters[base + BYTES_BLOCKED];
+                totalPacketsAllowed += counters[base + PACKETS_ALLOWED];
+                totalPacketsBlocked += counters[base + PACKETS_BLOCKED];
+                if (changedAt[i] < since) {
+                    continue;
+                }
 
-                String packageName = getPackageNameForUid(uid);
+                String packageName = packages.getPackage(uids[i]);
                 if (!packageName.isEmpty()) {
                     WritableMap appStats = Arguments.createMap();
-                    appStats.putDouble("bytesAllowed", stats.bytesAllowed);
-                    appStats.putDouble("bytesBlocked", stats.bytesBlocked);
-                    appStats.putDouble("packetsAllowed", stats.packetsAllowed);
-                    appStats.putDouble("packetsBlocked", stats.packetsBlocked);
+                    appStats.putDouble("bytesAllowed", counters[base + BYTES_ALLOWED]);
+                    appStats.putDouble("bytesBlocked", counters[base + BYTES_BLOCKED]);
+                    appStats.putDouble("packetsAllowed", counters[base + PACKETS_ALLOWED]);
+                    appStats.putDouble("packetsBlocked", counters[base + PACKETS_BLOCKED]);
                     byApp.putMap(packageName, appStats);
+                    changed++;
                 }
             }
         }
@@ -171,19 +359,179 @@ public class DataUsageTracker {
         result.putDouble("totalPacketsAllowed", totalPacketsAllowed);
         result.putDouble("totalPacketsBlocked", totalPacketsBlocked);
         result.putMap("byApp", byApp);
+        result.putInt("changed", changed);
 
         return result;
     }
 
+    /**
+     * Returns the traffic of packageName, or of every app if it is null or empty, per
+     * bucket of granularity ("minute", "hour" or "day") starting in [fromMs, toMs).
+     */
+    public WritableMap getUsageHistory(String packageName, long fromMs, long toMs, String granularity)
+            throws IOException, PackageManager.NameNotFoundException {
+        int uid = UsageHistory.ALL_UIDS;
+        if (packageName != null && !packageName.isEmpty()) {
+            uid = AppCatalog.getInstance(context).getIndex().getUid(packageName);
+            if (uid < 0) {
+                // Not in the catalog yet, e.g. just installed
+                uid = context.getPackageManager().getApplicationInfo(packageName, 0).uid;
+            }
+        }
+        int level;
+        switch (granularity) {
+            case "minute":
+                level = UsageHistory.MINUTE;
+                break;
+            case "hour":
+                level = UsageHistory.HOUR;
+                break;
+            case "day":
+                level = UsageHistory.DAY;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown granularity: " + granularity);
+        }
+
+        WritableArray buckets = Arguments.createArray();
+        List<UsageHistory.Bucket> series = history.query(uid, level, fromMs, toMs);
+        for (UsageHistory.Bucket bucket : series) {
+            WritableMap entry = Arguments.createMap();
+            entry.putDouble("start", bucket.start);
+            entry.putMap("wifi", networkUsage(bucket, UsageHistory.NETWORK_WIFI));
+            entry.putMap("mobile", networkUsage(bucket, UsageHistory.NETWORK_MOBILE));
+            entry.putMap("other", networkUsage(bucket, UsageHistory.NETWORK_OTHER));
+            buckets.pushMap(entry);
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putString("granularity", granularity);
+        result.putArray("buckets", buckets);
+        return result;
+    }
+
+    private static WritableMap networkUsage(UsageHistory.Bucket bucket, int network) {
+        WritableMap usage = Arguments.createMap();
+        usage.putDouble("bytesAllowed", bucket.bytes[network * 2]);
+        usage.putDouble("bytesBlocked", bucket.bytes[network * 2 + 1]);
+        return usage;
+    }
+
+    // Runs on the flusher so it cannot interleave with a flush in progress
     public void resetStats() {
-        synchronized (usageByUid) {
-            usageByUid.clear();
+        flusher.execute(() -> {
+            resetEpoch = usageEpoch;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+            fileRecords = 0;
+            try {
+                if (file != null) {
+                    file.truncate(HEADER_SIZE);
+                    writeHeader();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error resetting usage", e);
+            }
+        });
+    }
+
+    /**
+     * Writes all changed counters on the flusher thread, e.g. when the VPN stops.
+     */
+    public void flush() {
+        flusher.execute(() -> flushNow(true));
+    }
+
+    private void flushNow(boolean force) {
+        history.flush(System.currentTimeMillis(), force);
+        if (file == null) {
+            return;
+        }
+
+        int written = 0;
+        int recordsBefore = fileRecords;
+        try {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    if (!stripe.anyDirty) {
+                        continue;
+                    }
+                    collectDirty(stripe);
+                }
+                // Written outside the stripe lock so packet threads never wait on I/O
+                written += writeRecords();
+            }
+            // Records are in place before the header counts them
+            if (fileRecords != recordsBefore) {
+                writeHeader();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving usage", e);
+        }
+
+        if (written > 0) {
+            Log.d(TAG, "Flushed usage for " + written + " UIDs");
+        }
+    }
+
+    // Encodes the stripe's dirty entries as (file slot, record) pairs into flushBuffer
+    private void collectDirty(Stripe stripe) {
+        flushBuffer.clear();
+        for (int i = 0; i < stripe.uids.length; i++) {
+            if (!stripe.dirty[i]) {
+                continue;
+            }
+            if (stripe.fileSlots[i] < 0) {
+                stripe.fileSlots[i] = fileRecords++;
+            }
+            if (flushBuffer.remaining() < 4 + RECORD_SIZE) {
+                flushBuffer.flip();
+                flushBuffer = ByteBuffer.allocate(flushBuffer.capacity() * 2).put(flushBuffer);
+            }
+            flushBuffer.putInt(stripe.fileSlots[i]);
+            flushBuffer.putInt(stripe.uids[i]);
+            for (int f = 0; f < FIELDS; f++) {
+                flushBuffer.putLong(stripe.counters[i * FIELDS + f]);
+            }
+            stripe.dirty[i] = false;
         }
-        saveUsage();
+        stripe.anyDirty = false;
+        flushBuffer.flip();
+    }
+
+    private int writeRecords() throws IOException {
+        int count = 0;
+        ByteBuffer record = flushBuffer.duplicate();
+        while (flushBuffer.hasRemaining()) {
+            int slot = flushBuffer.getInt();
+            int start = flushBuffer.position();
+            record.limit(start + RECORD_SIZE).position(start);
+            long position = HEADER_SIZE + (long) slot * RECORD_SIZE;
+            while (record.hasRemaining()) {
+                position += file.write(record, position);
+            }
+            flushBuffer.position(start + RECORD_SIZE);
+            count++;
+        }
+        return count;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, fileRecords);
+        file.write(header, 0);
+    }
+
+    private Stripe stripeFor(int uid) {
+        return stripes[mix(uid) >>> (32 - STRIPE_BITS)];
     }
 
-    private String getPackageNameForUid(int uid) {
-        String[] packages = context.getPackageManager().getPackagesForUid(uid);
-        return packages != null && packages.length > 0 ? packages[0] : "";
+    private static int mix(int uid) {
+        int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
     }
 }
@@ -0,0 +1,220 @@
+package com.fire.firewall;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of DNS answers keyed by question. An entry lives as long as
+ * its smallest record TTL, and TTLs handed out from the cache count down with the
+ * time the entry has been stored.
+ */
+final class DnsCache {
+    private static final int HEADER_LENGTH = 12;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final long MAX_TTL_SECONDS = 24 * 3600;
+
+    /**
+     * Question section (name, type and class) with the name lowercased.
+     */
+    static final class Key {
+        private final byte[] question;
+        private final int hash;
+
+        private Key(byte[] question) {
+            this.question = question;
+            this.hash = Arrays.hashCode(question);
+        }
+
+        static Key fromQuestion(ByteBuffer buf, int start, int end) {
+            byte[] question = new byte[end - start];
+            for (int i = 0; i < question.length; i++) {
+                question[i] = buf.get(start + i);
+            }
+            return new Key(toLowerName(question));
+        }
+
+        static Key fromQuestion(byte[] message, int start, int end) {
+            return new Key(toLowerName(Arrays.copyOfRange(message, start, end)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(question, ((Key) o).question);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        // Folds the name only; length bytes are at most 63 and the trailing type and
+        // class are left alone
+        private static byte[] toLowerName(byte[] question) {
+            for (int i = 0; i < question.length - 4; i++) {
+                byte b = question[i];
+                if (b >= 'A' && b <= 'Z') {
+                    question[i] = (byte) (b + ('a' - 'A'));
+                }
+            }
+            return question;
+        }
+    }
+
+    static final class Entry {
+        private final byte[] message;
+        private final int[] ttlOffsets;
+        private final long storedAt;
+        private final long expiresAt;
+
+        private Entry(byte[] message, int[] ttlOffsets, long storedAt, long expiresAt) {
+            this.message = message;
+            this.ttlOffsets = ttlOffsets;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        int length() {
+            return message.length;
+        }
+
+        /**
+         * Copies the answer into dst with the client's transaction ID and TTLs reduced
+         * by the time spent in the cache. Returns the message length.
+         */
+        int copyTo(byte[] dst, int transactionId, long now) {
+            System.arraycopy(message, 0, dst, 0, message.length);
+            dst[0] = (byte) (transactionId >> 8);
+            dst[1] = (byte) transactionId;
+
+            long elapsed = (now - storedAt) / 1000;
+            for (int offset : ttlOffsets) {
+                long ttl = Math.max(0, readInt(message, offset) - elapsed);
+                dst[offset] = (byte) (ttl >> 24);
+                dst[offset + 1] = (byte) (ttl >> 16);
+                dst[offset + 2] = (byte) (ttl >> 8);
+                dst[offset + 3] = (byte) ttl;
+            }
+            return message.length;
+        }
+    }
+
+    private final Map<Key, Entry> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    DnsCache(int maxEntries) {
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized Entry get(Key key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && now >= entry.expiresAt) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a response if it is complete and carries at least one record with a
+     * non-zero TTL. Negative answers are kept for the TTL of their SOA record.
+     */
+    void put(Key key, byte[] message, int length, long now) {
+        if (length < HEADER_LENGTH || (message[2] & 0x02) != 0) {
+            return; // Truncated, the client retries over TCP
+        }
+        int rcode = message[3] & 0x0F;
+        if (rcode != 0 && rcode != RCODE_NXDOMAIN) {
+            return;
+        }
+
+        int recordCount = readShort(message, 6) + readShort(message, 8) + readShort(message, 10);
+        int[] ttlOffsets = new int[recordCount];
+        int ttlCount = 0;
+        long minTtl = MAX_TTL_SECONDS;
+
+        int pos = HEADER_LENGTH;
+        for (int i = readShort(message, 4); i > 0; i--) {
+            pos = skipName(message, pos, length) + 4;
+            if (pos < 4 || pos > length) {
+                return;
+            }
+        }
+        for (int i = 0; i < recordCount; i++) {
+            pos = skipName(message, pos, length);
+            if (pos < 0 || pos + 10 > length) {
+                return;
+            }
+            int type = readShort(message, pos);
+            if (type != TYPE_OPT) {
+                long ttl = readInt(message, pos + 4);
+                // RFC 2181: a TTL with the top bit set is treated as zero
+                minTtl = Math.min(minTtl, ttl >= 0x80000000L ? 0 : ttl);
+                ttlOffsets[ttlCount++] = pos + 4;
+            }
+            pos += 10 + readShort(message, pos + 8);
+        }
+        if (pos > length || ttlCount == 0 || minTtl == 0) {
+            return;
+        }
+
+        Entry entry = new Entry(Arrays.copyOf(message, length), Arrays.copyOf(ttlOffsets, ttlCount),
+            now, now + minTtl * 1000);
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    // Returns the offset just past the name at pos, or -1 if it runs off the message
+    static int skipName(byte[] message, int pos, int length) {
+        while (pos < length) {
+            int labelLength = message[pos] & 0xFF;
+            if (labelLength == 0) {
+                return pos + 1;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                return pos + 2 <= length ? pos + 2 : -1;
+            }
+            pos += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    static int readShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static long readInt(byte[] b, int offset) {
+        return ((long) (b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+            | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+}
@@ -1,27 +1,40 @@
 package com.fire.firewall;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
-import java.util.Set;
 
 public class DnsInterceptor {
     private static final String TAG = "DnsInterceptor";
+    private static final int MAX_LABELS = 127;
+    private static final int MAX_NAME_LENGTH = 255;
+
     private final Context context;
     private final BlockListManager blockListManager;
-    private final DomainMatcher domainMatcher;
+    private final RuleManager ruleManager;
+    private final DnsResolver resolver;
+    private final int mtu;
+
+    // Positions of each QNAME label's length byte, reused for every packet
+    private final int[] labelStarts = new int[MAX_LABELS];
+
+    // Name of the last query processDnsRequest() blocked
+    private String blockedDomain;
 
-    public DnsInterceptor(Context context) {
+    // Scratch space for answering from the cache, allocated on the first hit
+    private byte[] answer;
+    private ByteBuffer answerPacket;
+    private ByteBuffer fragment;
+    private int ipId = 0;
+
+    public DnsInterceptor(Context context, DnsResolver resolver, int mtu) {
         this.context = context;
         this.blockListManager = BlockListManager.getInstance(context);
-        this.domainMatcher = new DomainMatcher();
-    }
-
-    public void reloadBlockList() {
-        blockListManager.reload();
+        this.ruleManager = RuleManager.getInstance(context);
+        this.resolver = resolver;
+        this.mtu = mtu;
     }
 
     public ByteBuffer processDnsRequest(ByteBuffer packet) {
@@ -41,15 +54,16 @@ public class DnsInterceptor {
                 return null;
             }
 
-            // Parse domain name from question
-            String domain = parseDomainName(packet, dnsOffset + 12);
-            if (domain == null) {
+            // Locate the labels of the question name without copying them out
+            int labelCount = parseLabels(packet, dnsOffset + 12);
+            if (labelCount <= 0) {
                 return null;
             }
 
             // Check if domain should be blocked
-            if (shouldBlockDomain(domain)) {
-                Log.i(TAG, "Blocking DNS request for: " + domain);
+            if (shouldBlockDomain(packet, labelCount)) {
+                blockedDomain = decodeDomainName(packet, labelCount);
+                Log.i(TAG, "Blocking DNS request for: " + blockedDomain);
                 return createNxdomainResponse(packet, transactionId);
             }
 
@@ -60,46 +74,119 @@ public class DnsInterceptor {
         }
     }
 
-    private String parseDomainName(ByteBuffer packet, int offset) {
-        StringBuilder domain = new StringBuilder();
+    public String getBlockedDomain() {
+        return blockedDomain;
+    }
+
+    /**
+     * Handles an allowed query sent to the tunnel's DNS server: answers it from the
+     * cache through out, or hands it to the resolver. Returns false if the packet is
+     * not such a query and should be forwarded as is.
+     */
+    public boolean resolve(ByteBuffer packet, PacketSink out) {
+        if (resolver == null || packet.getInt(16) != resolver.getServerIp()) {
+            return false;
+        }
+
+        int dnsOffset = 28;
+        int dnsLength = Math.min((packet.getShort(24) & 0xFFFF) - 8, packet.limit() - dnsOffset);
+        if (dnsLength < 12) {
+            return false;
+        }
+
+        // Only plain single-question queries are cached
+        int flags = packet.getShort(dnsOffset + 2) & 0xFFFF;
+        int questions = packet.getShort(dnsOffset + 4) & 0xFFFF;
+        if ((flags & 0xF800) != 0 || questions != 1) {
+            return false;
+        }
+
+        int labelCount = parseLabels(packet, dnsOffset + 12);
+        if (labelCount <= 0) {
+            return false;
+        }
+        int lastLabel = labelStarts[labelCount - 1];
+        int questionEnd = lastLabel + 1 + (packet.get(lastLabel) & 0xFF) + 1 + 4;
+        if (questionEnd > dnsOffset + dnsLength) {
+            return false;
+        }
+
+        DnsCache.Key key = DnsCache.Key.fromQuestion(packet, dnsOffset + 12, questionEnd);
+        long now = SystemClock.elapsedRealtime();
+        DnsCache.Entry entry = resolver.getCache().get(key, now);
+        if (entry == null) {
+            resolver.forward(key, packet, dnsOffset, dnsLength);
+            return true;
+        }
+
+        if (answer == null || answer.length < entry.length()) {
+            answer = new byte[Math.max(512, entry.length())];
+            answerPacket = ByteBuffer.allocate(dnsOffset + answer.length);
+            fragment = ByteBuffer.allocate(mtu);
+        }
+        int length = entry.copyTo(answer, packet.getShort(dnsOffset) & 0xFFFF, now);
+        Packets.buildUdp(answerPacket, ipId++, packet.getInt(16), packet.getShort(22) & 0xFFFF,
+            packet.getInt(12), packet.getShort(20) & 0xFFFF, ByteBuffer.wrap(answer), 0, length);
+        Packets.writeFragmented(answerPacket, mtu, fragment, out);
+        return true;
+    }
+
+    // Records where each label starts and returns the label count, or -1 if the name is malformed
+    private int parseLabels(ByteBuffer packet, int offset) {
         int pos = offset;
+        int count = 0;
 
         while (pos < packet.limit()) {
             int labelLength = packet.get(pos) & 0xFF;
             if (labelLength == 0) {
-                break;
+                return count;
             }
 
-            if (domain.length() > 0) {
-                domain.append('.');
+            // Compression pointers never appear in a query's question name
+            if ((labelLength & 0xC0) != 0 || count == MAX_LABELS
+                    || pos + 1 + labelLength > packet.limit() || pos + 1 + labelLength - offset > MAX_NAME_LENGTH) {
+                return -1;
             }
 
-            pos++;
-            for (int i = 0; i < labelLength && pos < packet.limit(); i++) {
-                domain.append((char) (packet.get(pos++) & 0xFF));
-            }
+            labelStarts[count++] = pos;
+            pos += 1 + labelLength;
         }
 
-        return domain.length() > 0 ? domain.toString().toLowerCase() : null;
+        return -1;
     }
 
-    private boolean shouldBlockDomain(String domain) {
-        // Check custom domain rules
-        RuleManager ruleManager = RuleManager.getInstance(context);
-        for (DomainRule rule : ruleManager.getDomainRules()) {
-            if (domainMatcher.matches(domain, rule.getDomain()) && rule.isBlocked()) {
-                return true;
+    // Only used once a query is being blocked and has to be logged
+    private String decodeDomainName(ByteBuffer packet, int labelCount) {
+        StringBuilder domain = new StringBuilder();
+        for (int i = 0; i < labelCount; i++) {
+            if (i > 0) {
+                domain.append('.');
             }
+            int pos = labelStarts[i];
+            int end = pos + 1 + (packet.get(pos) & 0xFF);
+            for (pos++; pos < end; pos++) {
+                domain.append(Character.toLowerCase((char) (packet.get(pos) & 0xFF)));
+            }
+        }
+        return domain.toString();
+    }
+
+    private boolean shouldBlockDomain(ByteBuffer packet, int labelCount) {
+        // Check custom domain rules
+        if (ruleManager.getSnapshot().getBlockedDomains().matches(packet, labelStarts, labelCount)) {
+            return true;
         }
 
         // Check block list
-        return blockListManager.isBlocked(domain);
+        return blockListManager.isBlocked(packet, labelStarts, labelCount);
     }
 
     private ByteBuffer createNxdomainResponse(ByteBuffer request, int transactionId) {
         // Create a minimal NXDOMAIN response
         ByteBuffer response = ByteBuffer.allocate(request.limit());
-        response.put(request.array(), 0, request.limit());
+        for (int i = 0; i < request.limit(); i++) {
+            response.put(i, request.get(i));
+        }
 
         // Swap source and destination in IP header
         int srcIp = response.getInt(12);
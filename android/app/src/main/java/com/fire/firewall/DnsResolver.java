@@ -0,0 +1,253 @@
+package com.fire.firewall;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stub resolver behind the tunnel's DNS server address. Cache misses are sent to the
+ * real upstream over one protected socket, identical questions already in flight wait
+ * for the same upstream answer, and answers are cached for the workers to serve.
+ */
+public class DnsResolver {
+    private static final String TAG = "DnsResolver";
+    private static final int DNS_PORT = 53;
+    private static final int MAX_MESSAGE_SIZE = 4096;
+    private static final int CACHE_SIZE = 2048;
+    private static final int RECEIVE_TIMEOUT_MS = 1000;
+    private static final long QUERY_TIMEOUT_MS = 5000;
+
+    private static final class Waiter {
+        final int clientIp;
+        final int clientPort;
+        final int transactionId;
+
+        Waiter(int clientIp, int clientPort, int transactionId) {
+            this.clientIp = clientIp;
+            this.clientPort = clientPort;
+            this.transactionId = transactionId;
+        }
+    }
+
+    private static final class Pending {
+        final DnsCache.Key key;
+        final int upstreamId;
+        final long sentAt;
+        final List<Waiter> waiters = new ArrayList<>(1);
+
+        Pending(DnsCache.Key key, int upstreamId, long sentAt) {
+            this.key = key;
+            this.upstreamId = upstreamId;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final SocketProtector protector;
+    private final int serverIp;
+    private final InetSocketAddress upstream;
+    private final int mtu;
+    private final DnsCache cache = new DnsCache(CACHE_SIZE);
+
+    // Both maps are guarded by the pendingByKey lock
+    private final Map<DnsCache.Key, Pending> pendingByKey = new HashMap<>();
+    private final Map<Integer, Pending> pendingById = new HashMap<>();
+
+    private DatagramSocket socket;
+    private PacketSink out;
+    private Thread thread;
+    private volatile boolean running = false;
+    private long forwarded = 0;
+    private long coalesced = 0;
+
+    public DnsResolver(SocketProtector protector, String server, int mtu) throws IOException {
+        InetAddress address = InetAddress.getByName(server);
+        byte[] bytes = address.getAddress();
+        this.protector = protector;
+        this.serverIp = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        this.upstream = new InetSocketAddress(address, DNS_PORT);
+        this.mtu = mtu;
+    }
+
+    int getServerIp() {
+        return serverIp;
+    }
+
+    DnsCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Opens the upstream socket and starts delivering answers to out, which must
+     * only be written by this resolver.
+     */
+    public void start(PacketSink out) throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        if (!protector.protect(socket)) {
+            socket.close();
+            throw new IOException("Could not protect DNS socket");
+        }
+        socket.connect(upstream);
+        socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+
+        this.socket = socket;
+        this.out = out;
+        running = true;
+        thread = new Thread(this::run, "FirewallDns");
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (socket != null) {
+            socket.close();
+        }
+        synchronized (pendingByKey) {
+            pendingByKey.clear();
+            pendingById.clear();
+        }
+        Log.i(TAG, "Stopped: " + cache.getHits() + " cache hits, " + cache.getMisses() + " misses, " +
+            forwarded + " forwarded, " + coalesced + " coalesced");
+    }
+
+    /**
+     * Sends the query in packet upstream, or joins an identical query already in
+     * flight. The answer reaches the client through this resolver's sink.
+     */
+    void forward(DnsCache.Key key, ByteBuffer packet, int dnsOffset, int dnsLength) {
+        int clientIp = packet.getInt(12);
+        int clientPort = packet.getShort(20) & 0xFFFF;
+        int transactionId = packet.getShort(dnsOffset) & 0xFFFF;
+        Waiter waiter = new Waiter(clientIp, clientPort, transactionId);
+
+        Pending pending;
+        synchronized (pendingByKey) {
+            pending = pendingByKey.get(key);
+            if (pending != null) {
+                pending.waiters.add(waiter);
+                coalesced++;
+                return;
+            }
+
+            int upstreamId;
+            do {
+                upstreamId = ThreadLocalRandom.current().nextInt(0x10000);
+            } while (pendingById.containsKey(upstreamId));
+
+            pending = new Pending(key, upstreamId, SystemClock.elapsedRealtime());
+            pending.waiters.add(waiter);
+            pendingByKey.put(key, pending);
+            pendingById.put(upstreamId, pending);
+            forwarded++;
+        }
+
+        byte[] query = new byte[dnsLength];
+        for (int i = 0; i < dnsLength; i++) {
+            query[i] = packet.get(dnsOffset + i);
+        }
+        query[0] = (byte) (pending.upstreamId >> 8);
+        query[1] = (byte) pending.upstreamId;
+
+        try {
+            socket.send(new DatagramPacket(query, dnsLength));
+        } catch (IOException e) {
+            Log.w(TAG, "Error sending DNS query", e);
+            remove(pending);
+        }
+    }
+
+    private void run() {
+        byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        ByteBuffer response = ByteBuffer.allocate(Packets.IP_HEADER_LENGTH + Packets.UDP_HEADER_LENGTH + MAX_MESSAGE_SIZE);
+        ByteBuffer fragment = ByteBuffer.allocate(mtu);
+        long lastExpiry = SystemClock.elapsedRealtime();
+        int ipId = 0;
+
+        while (running) {
+            try {
+                datagram.setLength(buffer.length);
+                socket.receive(datagram);
+                int length = datagram.getLength();
+                Pending pending = complete(buffer, length);
+                if (pending != null) {
+                    cache.put(pending.key, buffer, length, SystemClock.elapsedRealtime());
+                    for (Waiter waiter : pending.waiters) {
+                        buffer[0] = (byte) (waiter.transactionId >> 8);
+                        buffer[1] = (byte) waiter.transactionId;
+                        Packets.buildUdp(response, ipId++, serverIp, DNS_PORT, waiter.clientIp, waiter.clientPort,
+                            ByteBuffer.wrap(buffer), 0, length);
+                        Packets.writeFragmented(response, mtu, fragment, out);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Fall through to expire unanswered queries
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "Error receiving DNS response", e);
+                }
+                break;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastExpiry >= RECEIVE_TIMEOUT_MS) {
+                lastExpiry = now;
+                expire(now);
+            }
+        }
+    }
+
+    // Matches a response to its pending query, ignoring answers to other questions
+    private Pending complete(byte[] message, int length) {
+        if (length < 12 || (message[2] & 0x80) == 0 || DnsCache.readShort(message, 4) != 1) {
+            return null;
+        }
+        int questionEnd = DnsCache.skipName(message, 12, length) + 4;
+        if (questionEnd < 16 || questionEnd > length) {
+            return null;
+        }
+
+        synchronized (pendingByKey) {
+            Pending pending = pendingById.get(DnsCache.readShort(message, 0));
+            if (pending == null || !pending.key.equals(DnsCache.Key.fromQuestion(message, 12, questionEnd))) {
+                return null;
+            }
+            pendingById.remove(pending.upstreamId);
+            pendingByKey.remove(pending.key);
+            return pending;
+        }
+    }
+
+    private void remove(Pending pending) {
+        synchronized (pendingByKey) {
+            pendingById.remove(pending.upstreamId);
+            pendingByKey.remove(pending.key);
+        }
+    }
+
+    // Clients retry on their own, a retry after this starts a fresh upstream query
+    private void expire(long now) {
+        synchronized (pendingByKey) {
+            Iterator<Pending> it = pendingById.values().iterator();
+            while (it.hasNext()) {
+                Pending pending = it.next();
+                if (now - pending.sentAt >= QUERY_TIMEOUT_MS) {
+                    it.remove();
+                    pendingByKey.remove(pending.key);
+                }
+            }
+        }
+    }
+}
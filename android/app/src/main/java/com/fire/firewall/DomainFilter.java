@@ -0,0 +1,199 @@
+package com.fire.firewall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.SplittableRandom;
+
+/**
+ * Register-blocked Bloom filter over the domains of a {@link DomainTrie}. Every
+ * domain sets a few bits in a single 64-bit word chosen by its hash, so testing one
+ * suffix of a queried name costs one memory probe. A miss for every suffix proves the
+ * trie cannot match; a hit still needs the exact lookup.
+ *
+ * Suffix hashes are chained label by label from the right, so a query hashes each
+ * label once no matter how many parent domains it checks.
+ */
+final class DomainFilter {
+    static final int BITS_PER_ENTRY = 12;
+    private static final long ROOT_HASH = 0x2545F4914F6CDD1DL;
+
+    // File layout: magic, format version, word count, entry count, trie fingerprint
+    private static final int MAGIC = 0x46574246; // "FWBF"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final LongBuffer words;
+    private final int wordCount;
+    private final int entries;
+    private final long fingerprint;
+
+    private DomainFilter(LongBuffer words, int entries, long fingerprint) {
+        this.words = words;
+        this.wordCount = words.capacity();
+        this.entries = entries;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Builds the filter for every domain in trie.
+     */
+    static DomainFilter build(DomainTrie trie) {
+        int wordCount = (int) Math.max(1, ((long) trie.size() * BITS_PER_ENTRY + 63) / 64);
+        long[] bits = new long[wordCount];
+        trie.forEachHash(hash -> bits[index(hash, wordCount)] |= mask(hash));
+        return new DomainFilter(LongBuffer.wrap(bits), trie.size(), trie.fingerprint());
+    }
+
+    /**
+     * Maps a filter written by {@link #writeTo(File)}.
+     */
+    static DomainFilter map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Not a domain filter");
+            }
+            int wordCount = buf.getInt(8);
+            if (wordCount < 1 || HEADER_SIZE + (long) wordCount * 8 > buf.capacity()) {
+                throw new IOException("Truncated domain filter");
+            }
+            buf.position(HEADER_SIZE).limit(HEADER_SIZE + wordCount * 8);
+            LongBuffer words = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            return new DomainFilter(words, buf.getInt(12), buf.getLong(16));
+        }
+    }
+
+    void writeTo(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + wordCount * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(wordCount).putInt(entries).putLong(fingerprint);
+        for (int i = 0; i < wordCount; i++) {
+            buf.putLong(words.get(i));
+        }
+        buf.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * True if this filter was built from a trie with the given fingerprint, i.e. it
+     * holds every domain of that trie.
+     */
+    boolean isFor(DomainTrie trie) {
+        return fingerprint == trie.fingerprint();
+    }
+
+    int getEntries() {
+        return entries;
+    }
+
+    long getSizeBytes() {
+        return wordCount * 8L;
+    }
+
+    double getBitsPerEntry() {
+        return entries == 0 ? 0 : wordCount * 64.0 / entries;
+    }
+
+    /**
+     * Returns false only if neither domain nor any of its parents can be in the trie.
+     */
+    boolean mightMatch(CharSequence domain) {
+        int end = domain.length();
+        if (end > 0 && domain.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        long hash = ROOT_HASH;
+        while (end > 0) {
+            int start = end - 1;
+            while (start >= 0 && domain.charAt(start) != '.') {
+                start--;
+            }
+            start++;
+            if (start == end) {
+                return false;
+            }
+            hash = extend(hash, DomainTrie.hashLabel(domain, start, end));
+            if (contains(hash)) {
+                return true;
+            }
+            end = start - 1;
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #mightMatch(CharSequence)} for a wire-format name, with label
+     * positions as passed to {@link DomainTrie#matches(ByteBuffer, int[], int)}.
+     */
+    boolean mightMatch(ByteBuffer packet, int[] labelStarts, int labelCount) {
+        long hash = ROOT_HASH;
+        for (int i = labelCount - 1; i >= 0; i--) {
+            int start = labelStarts[i] + 1;
+            int end = start + (packet.get(labelStarts[i]) & 0xFF);
+            hash = extend(hash, DomainTrie.hashLabel(packet, start, end));
+            if (contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fraction of random keys the filter lets through, i.e. the chance that one
+     * suffix of an unlisted name needs the exact lookup.
+     */
+    double measureFalsePositiveRate(int samples) {
+        SplittableRandom random = new SplittableRandom(samples);
+        int hits = 0;
+        for (int i = 0; i < samples; i++) {
+            if (contains(random.nextLong())) {
+                hits++;
+            }
+        }
+        return (double) hits / samples;
+    }
+
+    // Hash of a domain extended by the label to its left
+    static long extend(long hash, int labelHash) {
+        long h = (hash ^ labelHash) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 31);
+    }
+
+    static long rootHash() {
+        return ROOT_HASH;
+    }
+
+    private boolean contains(long hash) {
+        long mask = mask(hash);
+        return (words.get(index(hash, wordCount)) & mask) == mask;
+    }
+
+    // Word picked from the high half of the hash, range-reduced without a division
+    private static int index(long hash, int wordCount) {
+        return (int) (((hash >>> 32) * wordCount) >>> 32);
+    }
+
+    // Four bit positions taken from the low half of the hash
+    private static long mask(long hash) {
+        return (1L << hash) | (1L << (hash >>> 6)) | (1L << (hash >>> 12)) | (1L << (hash >>> 18));
+    }
+}
@@ -2,6 +2,8 @@ package com.fire.firewall;
 
 import org.json.JSONObject;
 
+import java.util.Objects;
+
 public class DomainRule {
     private final String domain;
     private final boolean blocked;
@@ -19,6 +21,20 @@ public class DomainRule {
         return blocked;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DomainRule)) {
+            return false;
+        }
+        DomainRule other = (DomainRule) o;
+        return domain.equals(other.domain) && blocked == other.blocked;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(domain, blocked);
+    }
+
     public JSONObject toJson() {
         try {
             JSONObject obj = new JSONObject();
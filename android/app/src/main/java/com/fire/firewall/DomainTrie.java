@@ -0,0 +1,921 @@
+package com.fire.firewall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Immutable reversed-label trie (com -> example -> ads) over a set of domains.
+ * Labels are interned once and edges live in a flat open-addressing table, so a
+ * lookup walks the queried name from right to left without allocating or locking.
+ *
+ * The tables are plain buffers, so a trie can be written to a file once and later
+ * memory-mapped and queried in place with {@link #map(File)}, without parsing it or
+ * copying it onto the heap. An optional {@link DomainFilter} in front of the trie
+ * answers most names that are not listed before the tables are touched.
+ */
+public final class DomainTrie {
+    private static final int ROOT = 0;
+    private static final int EDGE_STRIDE = 3;
+
+    // File layout: header, then terminal bits, label offsets, label slots, edge slots
+    // and label bytes, each section starting on an 8 byte boundary
+    private static final int MAGIC = 0x46574454; // "FWDT"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final ByteBuffer labelBytes;
+    private final IntBuffer labelOffsets;
+    private final IntBuffer labelSlots;
+    private final IntBuffer edgeSlots;
+    private final LongBuffer terminal;
+    private final int size;
+    private final int nodeCount;
+    private final int labelCount;
+    private final DomainFilter filter;
+
+    private DomainTrie(Builder builder) {
+        this.labelBytes = ByteBuffer.wrap(Arrays.copyOf(builder.labelBytes, builder.labelOffsets[builder.labelCount]));
+        this.labelOffsets = IntBuffer.wrap(Arrays.copyOf(builder.labelOffsets, builder.labelCount + 1));
+        this.labelSlots = IntBuffer.wrap(builder.labelSlots.clone());
+        this.edgeSlots = IntBuffer.wrap(builder.edgeSlots.clone());
+        this.terminal = LongBuffer.wrap(Arrays.copyOf(builder.terminal, (builder.nodeCount + 63) >>> 6));
+        this.size = builder.size;
+        this.nodeCount = builder.nodeCount;
+        this.labelCount = builder.labelCount;
+        this.filter = null;
+    }
+
+    private DomainTrie(DomainTrie base, DomainFilter filter) {
+        this.labelBytes = base.labelBytes;
+        this.labelOffsets = base.labelOffsets;
+        this.labelSlots = base.labelSlots;
+        this.edgeSlots = base.edgeSlots;
+        this.terminal = base.terminal;
+        this.size = base.size;
+        this.nodeCount = base.nodeCount;
+        this.labelCount = base.labelCount;
+        this.filter = filter;
+    }
+
+    private DomainTrie(ByteBuffer buf) throws IOException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a compiled domain trie");
+        }
+        size = buf.getInt(8);
+        nodeCount = buf.getInt(12);
+        labelCount = buf.getInt(16);
+        int labelByteCount = buf.getInt(20);
+        int labelSlotCount = buf.getInt(24);
+        int edgeSlotCount = buf.getInt(28);
+        if (nodeCount < 1 || labelCount < 0 || Integer.bitCount(labelSlotCount) != 1
+                || Integer.bitCount(edgeSlotCount / EDGE_STRIDE) != 1 || edgeSlotCount % EDGE_STRIDE != 0) {
+            throw new IOException("Corrupt compiled domain trie");
+        }
+
+        int offset = HEADER_SIZE;
+        terminal = section(buf, offset, ((nodeCount + 63) >>> 6) * 8).asLongBuffer();
+        offset = align(offset + terminal.capacity() * 8);
+        labelOffsets = section(buf, offset, (labelCount + 1) * 4).asIntBuffer();
+        offset = align(offset + labelOffsets.capacity() * 4);
+        labelSlots = section(buf, offset, labelSlotCount * 4).asIntBuffer();
+        offset = align(offset + labelSlotCount * 4);
+        edgeSlots = section(buf, offset, edgeSlotCount * 4).asIntBuffer();
+        offset = align(offset + edgeSlotCount * 4);
+        labelBytes = section(buf, offset, labelByteCount);
+        filter = null;
+    }
+
+    public static DomainTrie empty() {
+        return new Builder().build();
+    }
+
+    /**
+     * Maps a file written by {@link #writeTo(File)}. The trie is read straight from
+     * the page cache and stays valid even if the file is replaced later.
+     */
+    public static DomainTrie map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            return new DomainTrie(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes the trie to file through a temporary file, so a reader never sees it
+     * half written.
+     */
+    public void writeTo(File file) throws IOException {
+        int terminalWords = (nodeCount + 63) >>> 6;
+        int offset = align(HEADER_SIZE + terminalWords * 8);
+        offset = align(offset + (labelCount + 1) * 4);
+        offset = align(offset + labelSlots.capacity() * 4);
+        offset = align(offset + edgeSlots.capacity() * 4);
+        ByteBuffer buf = ByteBuffer.allocate(offset + labelBytes.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(size).putInt(nodeCount).putInt(labelCount)
+            .putInt(labelBytes.capacity()).putInt(labelSlots.capacity()).putInt(edgeSlots.capacity());
+        for (int i = 0; i < terminalWords; i++) {
+            buf.putLong(terminal.get(i));
+        }
+        buf.position(align(buf.position()));
+        for (int i = 0; i <= labelCount; i++) {
+            buf.putInt(labelOffsets.get(i));
+        }
+        buf.position(align(buf.position()));
+        for (int i = 0; i < labelSlots.capacity(); i++) {
+            buf.putInt(labelSlots.get(i));
+        }
+        buf.position(align(buf.position()));
+        for (int i = 0; i < edgeSlots.capacity(); i++) {
+            buf.putInt(edgeSlots.get(i));
+        }
+        buf.position(align(buf.position()));
+        for (int i = 0; i < labelBytes.capacity(); i++) {
+            buf.put(labelBytes.get(i));
+        }
+        buf.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bytes taken by the tables, whether on the heap or mapped.
+     */
+    public long getSizeBytes() {
+        return labelBytes.capacity() + 4L * (labelOffsets.capacity() + labelSlots.capacity()
+            + edgeSlots.capacity()) + 8L * terminal.capacity();
+    }
+
+    /**
+     * Returns a trie that matches exactly the same names with as few entries as
+     * possible. Domains below another listed domain are dropped, since
+     * {@link #matches(CharSequence)} already blocks them through their parent. Nodes
+     * and labels left over from removals are dropped too.
+     */
+    public DomainTrie compact() {
+        int[] parents = new int[nodeCount];
+        int[] labels = new int[nodeCount];
+        linkNodes(parents, labels);
+
+        // Parents come before their children, so one pass finds every covered node
+        boolean[] covered = new boolean[nodeCount];
+        boolean[] include = new boolean[nodeCount];
+        for (int node = 1; node < nodeCount; node++) {
+            int parent = parents[node];
+            covered[node] = covered[parent] || parent != ROOT && isSet(terminal, parent);
+            include[node] = !covered[node] && isSet(terminal, node);
+        }
+
+        Builder builder = new Builder();
+        builder.copyNodes(this, parents, labels, include);
+        return builder.build();
+    }
+
+    /**
+     * Returns a trie sharing these tables that consults filter before each lookup.
+     * The filter must have been built from this trie.
+     */
+    DomainTrie withFilter(DomainFilter filter) {
+        if (!filter.isFor(this)) {
+            throw new IllegalArgumentException("Filter was built for another trie");
+        }
+        return new DomainTrie(this, filter);
+    }
+
+    DomainFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns true if the domain itself or any of its parent domains is in the trie.
+     */
+    public boolean matches(CharSequence domain) {
+        if (filter != null && !filter.mightMatch(domain)) {
+            return false;
+        }
+        int end = domain.length();
+        if (end > 0 && domain.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        int node = ROOT;
+        while (end > 0) {
+            int start = end - 1;
+            while (start >= 0 && domain.charAt(start) != '.') {
+                start--;
+            }
+            start++;
+            if (start == end) {
+                return false;
+            }
+
+            int label = findLabel(labelBytes, labelOffsets, labelSlots, domain, start, end);
+            if (label < 0) {
+                return false;
+            }
+            node = findChild(edgeSlots, node, label);
+            if (node < 0) {
+                return false;
+            }
+            if (isSet(terminal, node)) {
+                return true;
+            }
+            end = start - 1;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true only if the domain itself is in the trie, ignoring its parents.
+     */
+    public boolean contains(CharSequence domain) {
+        int end = domain.length();
+        if (end > 0 && domain.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        int node = ROOT;
+        while (end > 0) {
+            int start = end - 1;
+            while (start >= 0 && domain.charAt(start) != '.') {
+                start--;
+            }
+            start++;
+            int label = start == end ? -1 : findLabel(labelBytes, labelOffsets, labelSlots, domain, start, end);
+            node = label < 0 ? -1 : findChild(edgeSlots, node, label);
+            if (node < 0) {
+                return false;
+            }
+            end = start - 1;
+        }
+        return node != ROOT && isSet(terminal, node);
+    }
+
+    /**
+     * Same as {@link #matches(CharSequence)} for a wire-format name still sitting in a
+     * packet. labelStarts holds the position of each label's length byte, in the
+     * order the labels appear in the name.
+     */
+    public boolean matches(ByteBuffer packet, int[] labelStarts, int labelCount) {
+        if (filter != null && !filter.mightMatch(packet, labelStarts, labelCount)) {
+            return false;
+        }
+        int node = ROOT;
+        for (int i = labelCount - 1; i >= 0; i--) {
+            int start = labelStarts[i] + 1;
+            int end = start + (packet.get(labelStarts[i]) & 0xFF);
+
+            int label = findLabel(labelBytes, labelOffsets, labelSlots, packet, start, end);
+            if (label < 0) {
+                return false;
+            }
+            node = findChild(edgeSlots, node, label);
+            if (node < 0) {
+                return false;
+            }
+            if (isSet(terminal, node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands every domain in the trie to action. Meant for exports and migrations,
+     * not for lookups.
+     */
+    public void forEach(Consumer<String> action) {
+        int[] parents = new int[nodeCount];
+        int[] labels = new int[nodeCount];
+        linkNodes(parents, labels);
+
+        StringBuilder name = new StringBuilder();
+        for (int node = 1; node < nodeCount; node++) {
+            if (!isSet(terminal, node)) {
+                continue;
+            }
+            name.setLength(0);
+            for (int n = node; n != ROOT; n = parents[n]) {
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                for (int i = labelOffsets.get(labels[n]); i < labelOffsets.get(labels[n] + 1); i++) {
+                    name.append((char) labelBytes.get(i));
+                }
+            }
+            action.accept(name.toString());
+        }
+    }
+
+    /**
+     * Hands the {@link DomainFilter} hash of every domain in the trie to action.
+     * Parents always have lower node ids than their children, so one pass in id
+     * order can chain each node's hash from its parent's.
+     */
+    void forEachHash(LongConsumer action) {
+        int[] parents = new int[nodeCount];
+        int[] labels = new int[nodeCount];
+        linkNodes(parents, labels);
+
+        int[] labelHashes = new int[labelCount];
+        for (int id = 0; id < labelCount; id++) {
+            labelHashes[id] = hashLabel(labelBytes, labelOffsets.get(id), labelOffsets.get(id + 1));
+        }
+
+        long[] hashes = new long[nodeCount];
+        hashes[ROOT] = DomainFilter.rootHash();
+        for (int node = 1; node < nodeCount; node++) {
+            hashes[node] = DomainFilter.extend(hashes[parents[node]], labelHashes[labels[node]]);
+            if (isSet(terminal, node)) {
+                action.accept(hashes[node]);
+            }
+        }
+    }
+
+    // Fills in each node's parent and the label on the edge leading to it
+    private void linkNodes(int[] parents, int[] labels) {
+        for (int base = 0; base < edgeSlots.capacity(); base += EDGE_STRIDE) {
+            if (edgeSlots.get(base) != 0) {
+                int child = edgeSlots.get(base + 2);
+                parents[child] = edgeSlots.get(base) - 1;
+                labels[child] = edgeSlots.get(base + 1);
+            }
+        }
+    }
+
+    /**
+     * Identifies the trie's contents closely enough to tell whether a stored filter
+     * still belongs to it.
+     */
+    long fingerprint() {
+        long h = ((long) size << 32) ^ nodeCount ^ ((long) labelCount << 16) ^ labelBytes.capacity();
+        for (int i = 0; i < terminal.capacity(); i++) {
+            h = (h ^ terminal.get(i)) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    private static ByteBuffer section(ByteBuffer buf, int offset, int length) throws IOException {
+        if (offset + length > buf.capacity()) {
+            throw new IOException("Truncated compiled domain trie");
+        }
+        ByteBuffer section = buf.duplicate();
+        section.limit(offset + length).position(offset);
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+
+    // Label hashing and table probing, shared by the trie and its builder
+
+    static int hashLabel(CharSequence s, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = (h ^ c) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    static int hashLabel(ByteBuffer buf, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            int c = buf.get(i) & 0xFF;
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = (h ^ c) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    static int hashEdge(int parent, int label) {
+        int h = parent * 0x9E3779B9 + label * 0x85EBCA6B;
+        return h ^ (h >>> 15);
+    }
+
+    static int findLabel(ByteBuffer bytes, IntBuffer offsets, IntBuffer slots, CharSequence s, int start, int end) {
+        int mask = slots.capacity() - 1;
+        int i = hashLabel(s, start, end) & mask;
+        while (true) {
+            int id = slots.get(i) - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (labelEquals(bytes, offsets, id, s, start, end)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static boolean labelEquals(ByteBuffer bytes, IntBuffer offsets, int id, CharSequence s, int start, int end) {
+        int from = offsets.get(id);
+        if (offsets.get(id + 1) - from != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c > 0x7F || bytes.get(from++) != (byte) c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int findLabel(ByteBuffer bytes, IntBuffer offsets, IntBuffer slots, ByteBuffer buf, int start, int end) {
+        int mask = slots.capacity() - 1;
+        int i = hashLabel(buf, start, end) & mask;
+        while (true) {
+            int id = slots.get(i) - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (labelEquals(bytes, offsets, id, buf, start, end)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static boolean labelEquals(ByteBuffer bytes, IntBuffer offsets, int id, ByteBuffer buf, int start, int end) {
+        int from = offsets.get(id);
+        if (offsets.get(id + 1) - from != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            int c = buf.get(i) & 0xFF;
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (bytes.get(from++) != (byte) c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int findChild(IntBuffer edges, int parent, int label) {
+        int mask = edges.capacity() / EDGE_STRIDE - 1;
+        int i = hashEdge(parent, label) & mask;
+        while (true) {
+            int base = i * EDGE_STRIDE;
+            int p = edges.get(base) - 1;
+            if (p < 0) {
+                return -1;
+            }
+            if (p == parent && edges.get(base + 1) == label) {
+                return edges.get(base + 2);
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    static boolean isSet(LongBuffer bits, int index) {
+        return (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Collects domains into growable arrays. Lookups go through buffer views of the
+     * arrays, refreshed whenever an array is replaced, so the trie and the builder
+     * share one set of probing helpers.
+     */
+    public static final class Builder {
+        private byte[] labelBytes = new byte[1024];
+        private int[] labelOffsets = new int[128];
+        private int labelCount = 0;
+        private int[] labelSlots = new int[256];
+
+        private int[] edgeSlots = new int[256 * EDGE_STRIDE];
+        private int edgeCount = 0;
+
+        private long[] terminal = new long[4];
+        private int nodeCount = 1;
+        private int size = 0;
+
+        private ByteBuffer labelBytesView;
+        private IntBuffer labelOffsetsView;
+        private IntBuffer labelSlotsView;
+        private IntBuffer edgeSlotsView;
+        private LongBuffer terminalView;
+
+        public Builder() {
+            refreshViews();
+        }
+
+        /**
+         * Starts from the contents of an existing trie, e.g. a mapped one, without
+         * decoding its domains.
+         */
+        public Builder(DomainTrie base) {
+            labelCount = base.labelCount;
+            nodeCount = base.nodeCount;
+            edgeCount = base.nodeCount - 1;
+            size = base.size;
+
+            labelBytes = new byte[Math.max(1024, base.labelBytes.capacity() * 2)];
+            ByteBuffer bytes = base.labelBytes.duplicate();
+            bytes.position(0);
+            bytes.get(labelBytes, 0, bytes.capacity());
+
+            labelOffsets = new int[Math.max(128, (labelCount + 1) * 2)];
+            copy(base.labelOffsets, labelOffsets, labelCount + 1);
+            labelSlots = new int[base.labelSlots.capacity()];
+            copy(base.labelSlots, labelSlots, labelSlots.length);
+            edgeSlots = new int[base.edgeSlots.capacity()];
+            copy(base.edgeSlots, edgeSlots, edgeSlots.length);
+
+            terminal = new long[Math.max(4, base.terminal.capacity() * 2)];
+            LongBuffer bits = base.terminal.duplicate();
+            bits.position(0);
+            bits.get(terminal, 0, bits.capacity());
+            refreshViews();
+        }
+
+        /**
+         * Adds a domain, ignoring case and a trailing dot. Returns false if the name
+         * is malformed or already present.
+         */
+        public boolean add(CharSequence domain) {
+            int end = domain.length();
+            if (end > 0 && domain.charAt(end - 1) == '.') {
+                end--;
+            }
+            if (end == 0) {
+                return false;
+            }
+            for (int i = 0; i < end; i++) {
+                if (domain.charAt(i) > 0x7F) {
+                    return false;
+                }
+            }
+
+            int node = ROOT;
+            while (end > 0) {
+                int start = end - 1;
+                while (start >= 0 && domain.charAt(start) != '.') {
+                    start--;
+                }
+                start++;
+                if (start == end) {
+                    return false;
+                }
+                node = childOrCreate(node, internLabel(domain, start, end));
+                end = start - 1;
+            }
+            return markTerminal(node);
+        }
+
+        /**
+         * Same as {@link #add(CharSequence)} for the name in buf[start, end), so
+         * parsers can add domains without creating Strings.
+         */
+        public boolean add(ByteBuffer buf, int start, int end) {
+            if (end > start && buf.get(end - 1) == '.') {
+                end--;
+            }
+            if (end == start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (buf.get(i) < 0) {
+                    return false;
+                }
+            }
+
+            int node = ROOT;
+            while (end > start) {
+                int labelStart = end - 1;
+                while (labelStart >= start && buf.get(labelStart) != '.') {
+                    labelStart--;
+                }
+                labelStart++;
+                if (labelStart == end) {
+                    return false;
+                }
+                node = childOrCreate(node, internLabel(buf, labelStart, end));
+                end = labelStart - 1;
+            }
+            return markTerminal(node);
+        }
+
+        /**
+         * Adds every domain of other by walking its nodes, so no names are decoded.
+         * Returns the number of domains that were new.
+         */
+        public int addAll(DomainTrie other) {
+            int[] parents = new int[other.nodeCount];
+            int[] labels = new int[other.nodeCount];
+            other.linkNodes(parents, labels);
+            return copyNodes(other, parents, labels, null);
+        }
+
+        /**
+         * Adds the domains of other that are below a domain of roots, e.g. to bring
+         * back subdomains that were compacted away under a removed parent. Returns
+         * the number of domains that were new.
+         */
+        public int addUnder(DomainTrie other, DomainTrie roots) {
+            int[] parents = new int[other.nodeCount];
+            int[] labels = new int[other.nodeCount];
+            other.linkNodes(parents, labels);
+
+            // Walk roots alongside other; -1 once a path leaves roots
+            int[] rootLabels = new int[other.labelCount];
+            Arrays.fill(rootLabels, -2);
+            int[] rootNodes = new int[other.nodeCount];
+            boolean[] atOrUnder = new boolean[other.nodeCount];
+            boolean[] include = new boolean[other.nodeCount];
+            for (int node = 1; node < other.nodeCount; node++) {
+                int parent = parents[node];
+                include[node] = atOrUnder[parent] && isSet(other.terminal, node);
+                if (atOrUnder[parent]) {
+                    atOrUnder[node] = true;
+                } else if (rootNodes[parent] < 0) {
+                    rootNodes[node] = -1;
+                } else {
+                    int label = labels[node];
+                    if (rootLabels[label] == -2) {
+                        rootLabels[label] = findLabel(roots.labelBytes, roots.labelOffsets, roots.labelSlots,
+                            other.labelBytes, other.labelOffsets.get(label), other.labelOffsets.get(label + 1));
+                    }
+                    int rootNode = rootLabels[label] < 0 ? -1 : findChild(roots.edgeSlots, rootNodes[parent], rootLabels[label]);
+                    rootNodes[node] = rootNode;
+                    atOrUnder[node] = rootNode >= 0 && isSet(roots.terminal, rootNode);
+                }
+            }
+            return copyNodes(other, parents, labels, include);
+        }
+
+        /**
+         * Removes a domain added before. Its labels and nodes stay in the tables
+         * unused. Returns false if the domain was not present.
+         */
+        public boolean remove(CharSequence domain) {
+            int end = domain.length();
+            if (end > 0 && domain.charAt(end - 1) == '.') {
+                end--;
+            }
+
+            int node = ROOT;
+            while (end > 0) {
+                int start = end - 1;
+                while (start >= 0 && domain.charAt(start) != '.') {
+                    start--;
+                }
+                start++;
+                int label = start == end ? -1 : findLabel(labelBytesView, labelOffsetsView, labelSlotsView, domain, start, end);
+                node = label < 0 ? -1 : findChild(edgeSlotsView, node, label);
+                if (node < 0) {
+                    return false;
+                }
+                end = start - 1;
+            }
+
+            if (node == ROOT || !isSet(terminalView, node)) {
+                return false;
+            }
+            terminal[node >>> 6] &= ~(1L << node);
+            size--;
+            return true;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public DomainTrie build() {
+            return new DomainTrie(this);
+        }
+
+        /**
+         * Copies the domains of other whose nodes are set in include, or all of
+         * them if include is null, along with the path leading to each.
+         */
+        private int copyNodes(DomainTrie other, int[] parents, int[] labels, boolean[] include) {
+            boolean[] needed = null;
+            if (include != null) {
+                needed = new boolean[other.nodeCount];
+                for (int node = other.nodeCount - 1; node > 0; node--) {
+                    if (include[node] || needed[node]) {
+                        needed[node] = true;
+                        needed[parents[node]] = true;
+                    }
+                }
+            }
+
+            int[] labelIds = new int[other.labelCount];
+            Arrays.fill(labelIds, -1);
+            int[] nodes = new int[other.nodeCount];
+            nodes[ROOT] = ROOT;
+            int added = 0;
+            for (int node = 1; node < other.nodeCount; node++) {
+                if (needed != null && !needed[node]) {
+                    continue;
+                }
+                int label = labels[node];
+                if (labelIds[label] < 0) {
+                    labelIds[label] = internLabel(other.labelBytes, other.labelOffsets.get(label),
+                        other.labelOffsets.get(label + 1));
+                }
+                nodes[node] = childOrCreate(nodes[parents[node]], labelIds[label]);
+                if ((include == null || include[node]) && isSet(other.terminal, node) && markTerminal(nodes[node])) {
+                    added++;
+                }
+            }
+            return added;
+        }
+
+        private boolean markTerminal(int node) {
+            if (isSet(terminalView, node)) {
+                return false;
+            }
+            terminal[node >>> 6] |= 1L << node;
+            size++;
+            return true;
+        }
+
+        private int internLabel(CharSequence s, int start, int end) {
+            int id = findLabel(labelBytesView, labelOffsetsView, labelSlotsView, s, start, end);
+            if (id >= 0) {
+                return id;
+            }
+
+            id = newLabel(end - start);
+            int from = labelOffsets[id];
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                labelBytes[from++] = (byte) c;
+            }
+            indexLabel(id);
+            return id;
+        }
+
+        private int internLabel(ByteBuffer buf, int start, int end) {
+            int id = findLabel(labelBytesView, labelOffsetsView, labelSlotsView, buf, start, end);
+            if (id >= 0) {
+                return id;
+            }
+
+            id = newLabel(end - start);
+            int from = labelOffsets[id];
+            for (int i = start; i < end; i++) {
+                int c = buf.get(i);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                labelBytes[from++] = (byte) c;
+            }
+            indexLabel(id);
+            return id;
+        }
+
+        // Reserves room for a label of the given length and returns its id
+        private int newLabel(int length) {
+            int id = labelCount++;
+            boolean grown = false;
+            if (labelCount + 1 > labelOffsets.length) {
+                labelOffsets = Arrays.copyOf(labelOffsets, labelOffsets.length * 2);
+                grown = true;
+            }
+            int to = labelOffsets[id] + length;
+            if (to > labelBytes.length) {
+                labelBytes = Arrays.copyOf(labelBytes, Math.max(to, labelBytes.length * 2));
+                grown = true;
+            }
+            labelOffsets[id + 1] = to;
+            if (grown) {
+                refreshViews();
+            }
+            return id;
+        }
+
+        private void indexLabel(int id) {
+            if (labelCount * 2 > labelSlots.length) {
+                rehashLabels(labelSlots.length * 2);
+            } else {
+                insertLabelSlot(labelSlots, id, hashLabelAt(id));
+            }
+        }
+
+        private int hashLabelAt(int id) {
+            int h = 0x811c9dc5;
+            for (int i = labelOffsets[id]; i < labelOffsets[id + 1]; i++) {
+                h = (h ^ (labelBytes[i] & 0xFF)) * 0x01000193;
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private void rehashLabels(int capacity) {
+            int[] slots = new int[capacity];
+            for (int id = 0; id < labelCount; id++) {
+                insertLabelSlot(slots, id, hashLabelAt(id));
+            }
+            labelSlots = slots;
+            refreshViews();
+        }
+
+        private static void insertLabelSlot(int[] slots, int id, int hash) {
+            int mask = slots.length - 1;
+            int i = hash & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id + 1;
+        }
+
+        private int childOrCreate(int parent, int label) {
+            int child = findChild(edgeSlotsView, parent, label);
+            if (child >= 0) {
+                return child;
+            }
+
+            child = nodeCount++;
+            if ((nodeCount + 63) >>> 6 > terminal.length) {
+                terminal = Arrays.copyOf(terminal, terminal.length * 2);
+                refreshViews();
+            }
+
+            edgeCount++;
+            if (edgeCount * 2 > edgeSlots.length / EDGE_STRIDE) {
+                rehashEdges(edgeSlots.length / EDGE_STRIDE * 2);
+            }
+            insertEdgeSlot(edgeSlots, parent, label, child);
+            return child;
+        }
+
+        private void rehashEdges(int capacity) {
+            int[] slots = new int[capacity * EDGE_STRIDE];
+            for (int base = 0; base < edgeSlots.length; base += EDGE_STRIDE) {
+                if (edgeSlots[base] != 0) {
+                    insertEdgeSlot(slots, edgeSlots[base] - 1, edgeSlots[base + 1], edgeSlots[base + 2]);
+                }
+            }
+            edgeSlots = slots;
+            refreshViews();
+        }
+
+        private static void insertEdgeSlot(int[] slots, int parent, int label, int child) {
+            int mask = slots.length / EDGE_STRIDE - 1;
+            int i = hashEdge(parent, label) & mask;
+            while (slots[i * EDGE_STRIDE] != 0) {
+                i = (i + 1) & mask;
+            }
+            int base = i * EDGE_STRIDE;
+            slots[base] = parent + 1;
+            slots[base + 1] = label;
+            slots[base + 2] = child;
+        }
+
+        private void refreshViews() {
+            labelBytesView = ByteBuffer.wrap(labelBytes);
+            labelOffsetsView = IntBuffer.wrap(labelOffsets);
+            labelSlotsView = IntBuffer.wrap(labelSlots);
+            edgeSlotsView = IntBuffer.wrap(edgeSlots);
+            terminalView = LongBuffer.wrap(terminal);
+        }
+
+        private static void copy(IntBuffer from, int[] to, int length) {
+            IntBuffer src = from.duplicate();
+            src.position(0);
+            src.get(to, 0, length);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.fire.firewall;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes changes to JavaScript so the UI does not have to poll: connection logs
+ * written since the last event and the counters of apps with new traffic, batched
+ * into at most one "FirewallDelta" event per interval and only sent when
+ * something changed. Its cursors are the ones getLogsSince and getDataUsageSince
+ * return, so the UI can catch up with those and then follow the stream without
+ * gaps.
+ */
+final class EventStream {
+    private static final String TAG = "EventStream";
+    static final String EVENT_NAME = "FirewallDelta";
+    private static final long MIN_INTERVAL_MS = 100;
+    // Larger backlogs are spread over the following events
+    private static final int MAX_LOGS_PER_EVENT = 200;
+
+    private final ReactApplicationContext context;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> task;
+
+    // Only touched on the timer thread
+    private long logCursor;
+    private long usageCursor;
+
+    EventStream(ReactApplicationContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Emits at most once per intervalMs, starting from the given cursors. A
+     * negative log cursor starts after the newest log, usage cursor 0 with every
+     * app's counters.
+     */
+    synchronized void start(long intervalMs, long fromLog, long fromUsage) {
+        stop();
+        if (timer.isShutdown()) {
+            return;
+        }
+        timer.execute(() -> {
+            logCursor = fromLog >= 0 ? fromLog : ConnectionLogger.getInstance(context).getLogCursor();
+            usageCursor = fromUsage;
+        });
+        long interval = Math.max(MIN_INTERVAL_MS, intervalMs);
+        task = timer.scheduleWithFixedDelay(this::emit, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Stops for good and ends the timer thread, for when the module goes away.
+     */
+    synchronized void close() {
+        stop();
+        timer.shutdownNow();
+    }
+
+    private void emit() {
+        if (!context.hasActiveReactInstance()) {
+            stop();
+            return;
+        }
+        try {
+            WritableMap logs = ConnectionLogger.getInstance(context).getLogsSince(logCursor, MAX_LOGS_PER_EVENT);
+            WritableMap usage = DataUsageTracker.getInstance(context).getUsageSince(usageCursor);
+            long nextLogCursor = (long) logs.getDouble("cursor");
+            boolean logsChanged = nextLogCursor != logCursor || logs.getBoolean("truncated");
+            boolean usageChanged = usage.getInt("changed") > 0 || usage.getBoolean("reset");
+            logCursor = nextLogCursor;
+            usageCursor = (long) usage.getDouble("cursor");
+            if (!logsChanged && !usageChanged) {
+                return;
+            }
+
+            WritableMap event = Arguments.createMap();
+            event.putMap("logs", logs);
+            event.putMap("usage", usage);
+            context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(EVENT_NAME, event);
+        } catch (Exception e) {
+            // Keep the schedule alive; the cursors only move once read
+            Log.e(TAG, "Error emitting events", e);
+        }
+    }
+}
@@ -2,8 +2,6 @@ package com.fire.firewall;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.net.VpnService;
 import android.util.Log;
 
@@ -14,21 +12,27 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 public class FirewallModule extends ReactContextBaseJavaModule implements ActivityEventListener {
     private static final String TAG = "FirewallModule";
     private static final int VPN_REQUEST_CODE = 1001;
     private Promise vpnPromise;
     private final ReactApplicationContext reactContext;
+    private final EventStream eventStream;
 
     public FirewallModule(ReactApplicationContext context) {
         super(context);
         this.reactContext = context;
+        this.eventStream = new EventStream(context);
         context.addActivityEventListener(this);
+        // Start loading the app list before the first screen asks for it
+        AppCatalog.getInstance(context);
     }
 
     @Override
@@ -84,46 +88,50 @@ public class FirewallModule extends ReactContextBaseJavaModule implements Activi
 
     @ReactMethod
     public void getInstalledApps(Promise promise) {
-        try {
-            PackageManager pm = reactContext.getPackageManager();
-            List<ApplicationInfo> apps = pm.getInstalledApplications(PackageManager.GET_META_DATA);
-            WritableArray result = Arguments.createArray();
-
-            for (ApplicationInfo app : apps) {
-                // Filter to only user apps and some system apps with internet access
-                if ((app.flags & ApplicationInfo.FLAG_SYSTEM) == 0 ||
-                    (app.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) != 0) {
-
-                    WritableMap appInfo = Arguments.createMap();
-                    appInfo.putString("packageName", app.packageName);
-                    appInfo.putString("appName", pm.getApplicationLabel(app).toString());
-                    appInfo.putInt("uid", app.uid);
-                    appInfo.putBoolean("isSystemApp", (app.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
-                    result.pushMap(appInfo);
+        AppCatalog catalog = AppCatalog.getInstance(reactContext);
+        catalog.whenReady(() -> {
+            try {
+                WritableArray result = Arguments.createArray();
+                // User apps and updated system apps, as before the catalog
+                for (InstalledApp app : catalog.getApps()) {
+                    if (app.isUserVisible()) {
+                        result.pushMap(app.toMap());
+                    }
                 }
+                promise.resolve(result);
+            } catch (Exception e) {
+                promise.reject("GET_APPS_ERROR", e.getMessage());
             }
+        });
+    }
 
-            promise.resolve(result);
-        } catch (Exception e) {
-            promise.reject("GET_APPS_ERROR", e.getMessage());
-        }
+    @ReactMethod
+    public void getAppsPage(int offset, int limit, String query, boolean includeSystem, Promise promise) {
+        AppCatalog catalog = AppCatalog.getInstance(reactContext);
+        catalog.whenReady(() -> {
+            try {
+                promise.resolve(catalog.getPage(offset, limit, query, includeSystem));
+            } catch (Exception e) {
+                promise.reject("GET_APPS_ERROR", e.getMessage());
+            }
+        });
     }
 
     @ReactMethod
     public void setBlockedApps(ReadableArray packageNames, Promise promise) {
         try {
-            RuleManager ruleManager = RuleManager.getInstance(reactContext);
-            ruleManager.clearAppRules();
-
+            RuleManager.Editor editor = RuleManager.getInstance(reactContext).beginEdit();
+            Set<String> blocked = new HashSet<>();
             for (int i = 0; i < packageNames.size(); i++) {
                 String packageName = packageNames.getString(i);
-                ruleManager.addAppRule(new AppRule(packageName, true, true));
+                blocked.add(packageName);
+                editor.putAppRule(new AppRule(packageName, true, true));
             }
+            editor.retainAppRules(blocked);
 
-            // Notify VPN service of rule changes
-            Intent intent = new Intent(reactContext, FirewallVpnService.class);
-            intent.setAction(FirewallVpnService.ACTION_RELOAD_RULES);
-            reactContext.startService(intent);
+            // One write and one snapshot for the whole list, none if it is unchanged;
+            // the service's flows pick the new snapshot up by its version
+            editor.commit();
 
             promise.resolve(true);
         } catch (Exception e) {
@@ -164,6 +172,67 @@ public class FirewallModule extends ReactContextBaseJavaModule implements Activi
         }
     }
 
+    @ReactMethod
+    public void queryLogs(ReadableMap filter, double cursor, int limit, Promise promise) {
+        try {
+            promise.resolve(ConnectionLogger.getInstance(reactContext).queryLogs(filter, (long) cursor, limit));
+        } catch (Exception e) {
+            promise.reject("QUERY_LOGS_ERROR", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getTopDestinations(ReadableMap filter, int limit, Promise promise) {
+        try {
+            promise.resolve(ConnectionLogger.getInstance(reactContext).getTopDestinations(filter, limit));
+        } catch (Exception e) {
+            promise.reject("QUERY_LOGS_ERROR", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getLogsSince(double cursor, int limit, Promise promise) {
+        try {
+            promise.resolve(ConnectionLogger.getInstance(reactContext).getLogsSince((long) cursor, limit));
+        } catch (Exception e) {
+            promise.reject("GET_LOGS_ERROR", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getDataUsageSince(double cursor, Promise promise) {
+        try {
+            promise.resolve(DataUsageTracker.getInstance(reactContext).getUsageSince((long) cursor));
+        } catch (Exception e) {
+            promise.reject("GET_USAGE_ERROR", e.getMessage());
+        }
+    }
+
+    /**
+     * Starts pushing "FirewallDelta" events at most every intervalMs, continuing
+     * from cursors returned by getLogsSince and getDataUsageSince.
+     */
+    @ReactMethod
+    public void startEventStream(double intervalMs, double logCursor, double usageCursor, Promise promise) {
+        eventStream.start((long) intervalMs, (long) logCursor, (long) usageCursor);
+        promise.resolve(true);
+    }
+
+    @ReactMethod
+    public void stopEventStream(Promise promise) {
+        eventStream.stop();
+        promise.resolve(true);
+    }
+
+    // Required by NativeEventEmitter
+    @ReactMethod
+    public void addListener(String eventName) {
+    }
+
+    @ReactMethod
+    public void removeListeners(double count) {
+    }
+
     @ReactMethod
     public void getDataUsage(Promise promise) {
         try {
@@ -175,6 +244,25 @@ public class FirewallModule extends ReactContextBaseJavaModule implements Activi
         }
     }
 
+    @ReactMethod
+    public void getUsageHistory(String packageName, double fromMs, double toMs, String granularity, Promise promise) {
+        try {
+            DataUsageTracker tracker = DataUsageTracker.getInstance(reactContext);
+            promise.resolve(tracker.getUsageHistory(packageName, (long) fromMs, (long) toMs, granularity));
+        } catch (Exception e) {
+            promise.reject("GET_USAGE_HISTORY_ERROR", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getUidCacheStats(Promise promise) {
+        try {
+            promise.resolve(UidResolver.getInstance(reactContext).getStats());
+        } catch (Exception e) {
+            promise.reject("GET_UID_STATS_ERROR", e.getMessage());
+        }
+    }
+
     @ReactMethod
     public void loadBlockList(String url, Promise promise) {
         try {
@@ -195,6 +283,53 @@ public class FirewallModule extends ReactContextBaseJavaModule implements Activi
         }
     }
 
+    @ReactMethod
+    public void addBlockListSubscription(String name, String url, Promise promise) {
+        BlockListManager.getInstance(reactContext).addSubscription(name, url, blockListCallback(promise));
+    }
+
+    @ReactMethod
+    public void removeBlockListSubscription(String name, Promise promise) {
+        BlockListManager.getInstance(reactContext).removeSubscription(name, blockListCallback(promise));
+    }
+
+    @ReactMethod
+    public void refreshBlockLists(Promise promise) {
+        BlockListManager.getInstance(reactContext).refreshSubscriptions(blockListCallback(promise));
+    }
+
+    @ReactMethod
+    public void getBlockListSubscriptions(Promise promise) {
+        try {
+            promise.resolve(BlockListManager.getInstance(reactContext).getSubscriptions());
+        } catch (Exception e) {
+            promise.reject("GET_SUBSCRIPTIONS_ERROR", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getBlockListStats(Promise promise) {
+        try {
+            promise.resolve(BlockListManager.getInstance(reactContext).getStats());
+        } catch (Exception e) {
+            promise.reject("GET_BLOCKLIST_STATS_ERROR", e.getMessage());
+        }
+    }
+
+    private static BlockListManager.LoadCallback blockListCallback(Promise promise) {
+        return new BlockListManager.LoadCallback() {
+            @Override
+            public void onSuccess(int count) {
+                promise.resolve(count);
+            }
+
+            @Override
+            public void onError(String error) {
+                promise.reject("BLOCKLIST_ERROR", error);
+            }
+        };
+    }
+
     @Override
     public void onActivityResult(Activity activity, int requestCode, int resultCode, Intent data) {
         if (requestCode == VPN_REQUEST_CODE && vpnPromise != null) {
@@ -211,4 +346,10 @@ public class FirewallModule extends ReactContextBaseJavaModule implements Activi
     public void onNewIntent(Intent intent) {
         // Not used
     }
+
+    @Override
+    public void invalidate() {
+        eventStream.close();
+        super.invalidate();
+    }
 }
@@ -9,35 +9,37 @@ import android.content.pm.PackageManager;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
-public class FirewallVpnService extends VpnService {
+public class FirewallVpnService extends VpnService implements SocketProtector {
     private static final String TAG = "FirewallVpnService";
     private static final String CHANNEL_ID = "fire_vpn_channel";
     private static final int NOTIFICATION_ID = 1;
+    private static final String SETTINGS_PREFS = "fire_settings";
+    private static final String KEY_BLOCKING_TUN = "blocking_tun";
 
     public static final String ACTION_START = "com.fire.firewall.START";
     public static final String ACTION_STOP = "com.fire.firewall.STOP";
-    public static final String ACTION_RELOAD_RULES = "com.fire.firewall.RELOAD_RULES";
 
     private static volatile boolean running = false;
     private ParcelFileDescriptor vpnInterface;
-    private Thread vpnThread;
-    private final AtomicBoolean shouldRun = new AtomicBoolean(false);
+    private PacketPipeline pipeline;
+    private ForwardingEngine forwardingEngine;
+    private DnsResolver dnsResolver;
 
     private PacketFilter packetFilter;
-    private DnsInterceptor dnsInterceptor;
     private ConnectionLogger connectionLogger;
     private DataUsageTracker dataUsageTracker;
+    private UidResolver uidResolver;
 
     public static boolean isRunning() {
         return running;
@@ -48,9 +50,9 @@ public class FirewallVpnService extends VpnService {
         super.onCreate();
         createNotificationChannel();
         packetFilter = new PacketFilter(this);
-        dnsInterceptor = new DnsInterceptor(this);
         connectionLogger = ConnectionLogger.getInstance(this);
         dataUsageTracker = DataUsageTracker.getInstance(this);
+        uidResolver = UidResolver.getInstance(this);
     }
 
     @Override
@@ -64,8 +66,6 @@ public class FirewallVpnService extends VpnService {
             startVpn();
         } else if (ACTION_STOP.equals(action)) {
             stopVpn();
-        } else if (ACTION_RELOAD_RULES.equals(action)) {
-            reloadRules();
         }
 
         return START_STICKY;
@@ -78,18 +78,31 @@ public class FirewallVpnService extends VpnService {
         }
 
         try {
-            vpnInterface = createVpnInterface();
+            boolean blockingTun = getSharedPreferences(SETTINGS_PREFS, MODE_PRIVATE)
+                .getBoolean(KEY_BLOCKING_TUN, false);
+            vpnInterface = createVpnInterface(blockingTun);
             if (vpnInterface == null) {
                 Log.e(TAG, "Failed to create VPN interface");
                 return;
             }
 
             startForeground(NOTIFICATION_ID, createNotification());
-            shouldRun.set(true);
             running = true;
 
-            vpnThread = new Thread(this::runVpnLoop, "FirewallVpnThread");
-            vpnThread.start();
+            TunDevice tun = blockingTun
+                ? BlockingTunDevice.forDescriptor(vpnInterface.getFileDescriptor())
+                : ChannelTunDevice.forDescriptor(vpnInterface.getFileDescriptor());
+            uidResolver.start();
+            forwardingEngine = new ForwardingEngine(this, TunnelBuilder.MTU);
+            dnsResolver = new DnsResolver(this, TunnelBuilder.DNS_SERVER, TunnelBuilder.MTU);
+            pipeline = new PacketPipeline(
+                tun,
+                TunnelBuilder.MTU,
+                this::createPacketHandler
+            );
+            forwardingEngine.start(pipeline.openSink());
+            dnsResolver.start(pipeline.openSink());
+            pipeline.start();
 
             Log.i(TAG, "VPN started successfully");
         } catch (Exception e) {
@@ -99,12 +112,34 @@ public class FirewallVpnService extends VpnService {
     }
 
     private void stopVpn() {
-        shouldRun.set(false);
         running = false;
 
-        if (vpnThread != null) {
-            vpnThread.interrupt();
-            vpnThread = null;
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
+
+        if (forwardingEngine != null) {
+            forwardingEngine.stop();
+            forwardingEngine = null;
+        }
+
+        if (dnsResolver != null) {
+            dnsResolver.stop();
+            dnsResolver = null;
+        }
+
+        if (uidResolver != null) {
+            uidResolver.stop();
+            uidResolver.logStats();
+        }
+
+        if (connectionLogger != null) {
+            connectionLogger.sync();
+        }
+
+        if (dataUsageTracker != null) {
+            dataUsageTracker.flush();
         }
 
         if (vpnInterface != null) {
@@ -121,90 +156,122 @@ public class FirewallVpnService extends VpnService {
         Log.i(TAG, "VPN stopped");
     }
 
-    private void reloadRules() {
-        if (packetFilter != null) {
-            packetFilter.reloadRules();
-        }
-        if (dnsInterceptor != null) {
-            dnsInterceptor.reloadBlockList();
-        }
+    private ParcelFileDescriptor createVpnInterface(boolean blocking) {
+        TunnelBuilder builder = new TunnelBuilder(this, blocking);
+        return builder.build();
     }
 
-    private ParcelFileDescriptor createVpnInterface() {
-        TunnelBuilder builder = new TunnelBuilder(this);
-        return builder.build();
+    private PacketPipeline.Handler createPacketHandler(int workerIndex) {
+        return new PacketWorker();
     }
 
-    private void runVpnLoop() {
-        FileInputStream in = new FileInputStream(vpnInterface.getFileDescriptor());
-        FileOutputStream out = new FileOutputStream(vpnInterface.getFileDescriptor());
+    /**
+     * Filters the packets of one pipeline worker. Each worker gets its own
+     * DnsInterceptor since it keeps per-packet scratch state, its own flow table and
+     * its own ring into the forwarding engine.
+     */
+    private class PacketWorker implements PacketPipeline.Handler, UidResolver.Listener {
+        private final DnsInterceptor interceptor = new DnsInterceptor(FirewallVpnService.this, dnsResolver, TunnelBuilder.MTU);
+        private final FlowTable flows = new FlowTable(dataUsageTracker::trackFlow);
+        private final PacketRing forward = forwardingEngine.openInput();
+        // Flows whose owner lookup finished, handed over by the lookup threads
+        private final ConcurrentLinkedQueue<FlowTable.Flow> resolved = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        @Override
+        public void onResolved(FlowTable.Flow flow) {
+            resolved.add(flow);
+            Thread worker = thread;
+            if (worker != null) {
+                LockSupport.unpark(worker);
+            }
+        }
 
-        ByteBuffer packet = ByteBuffer.allocate(32767);
+        @Override
+        public void poll(PacketSink out) {
+            if (thread == null) {
+                thread = Thread.currentThread();
+            }
+            FlowTable.Flow flow;
+            while ((flow = resolved.poll()) != null) {
+                if (flow.hasHeld() && uidResolver.resolve(flows, flow, this)) {
+                    replayHeld(flow, out);
+                }
+            }
+        }
 
-        while (shouldRun.get()) {
-            try {
-                packet.clear();
-                int length = in.read(packet.array());
+        @Override
+        public void handle(ByteBuffer packet, PacketSink out) {
+            // Parse IP header
+            int version = (packet.get(0) >> 4) & 0xF;
+            if (version != 4) {
+                // Only handle IPv4 for now
+                return;
+            }
 
-                if (length > 0) {
-                    packet.limit(length);
-                    processPacket(packet, out);
-                }
-            } catch (IOException e) {
-                if (shouldRun.get()) {
-                    Log.e(TAG, "Error in VPN loop", e);
+            // Later packets of a known flow reuse its UID and verdict. While a new flow's
+            // owner is being looked up its packets are held if an app rule could block it,
+            // and go on as unknown-UID otherwise
+            FlowTable.Flow flow = flows.lookup(packet, SystemClock.elapsedRealtime());
+            if (!uidResolver.resolve(flows, flow, this)) {
+                if (packetFilter.hasBlockedApps()) {
+                    flows.hold(flow, packet);
+                    return;
                 }
-                break;
+            } else if (flow.hasHeld()) {
+                replayHeld(flow, out);
             }
+            filter(packet, flow, out);
         }
-    }
 
-    private void processPacket(ByteBuffer packet, FileOutputStream out) throws IOException {
-        // Parse IP header
-        int version = (packet.get(0) >> 4) & 0xF;
-        if (version != 4) {
-            // Only handle IPv4 for now
-            return;
+        @Override
+        public void close() {
+            flows.clear();
         }
 
-        int protocol = packet.get(9) & 0xFF;
-        int sourceIp = packet.getInt(12);
-        int destIp = packet.getInt(16);
-
-        // Get UID of the packet (requires API 29+)
-        int uid = -1;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            // UID detection would require kernel support
+        private void replayHeld(FlowTable.Flow flow, PacketSink out) {
+            for (ByteBuffer packet : flows.takeHeld(flow)) {
+                filter(packet, flow, out);
+            }
         }
 
-        // Check DNS (UDP port 53)
-        if (protocol == 17) { // UDP
-            int destPort = packet.getShort(22) & 0xFFFF;
-            if (destPort == 53) {
+        private void filter(ByteBuffer packet, FlowTable.Flow flow, PacketSink out) {
+            // Check DNS (UDP port 53)
+            if (flow.protocol == 17 && flow.destPort == 53) {
                 // DNS request - intercept and filter
-                ByteBuffer response = dnsInterceptor.processDnsRequest(packet);
+                ByteBuffer response = interceptor.processDnsRequest(packet);
                 if (response != null) {
                     // Domain was blocked, send NXDOMAIN response
-                    out.write(response.array(), 0, response.limit());
-                    connectionLogger.logBlocked(destIp, destPort, uid, "DNS_BLOCKED");
+                    out.write(response);
+                    connectionLogger.logBlocked(flow.destIp, flow.destPort, flow.uid, "DNS_BLOCKED",
+                        interceptor.getBlockedDomain());
                     return;
                 }
             }
-        }
 
-        // Check if packet should be blocked by rules
-        if (packetFilter.shouldBlock(packet, uid)) {
-            connectionLogger.logBlocked(destIp, 0, uid, "RULE_BLOCKED");
-            dataUsageTracker.trackBlocked(uid, packet.limit());
-            return;
-        }
-
-        // Allow packet through
-        dataUsageTracker.trackAllowed(uid, packet.limit());
+            // Check if packet should be blocked by rules, logging each blocked flow once.
+            // A flow that was let through before has an engine session to tear down
+            boolean blocked = packetFilter.shouldBlock(flows, flow);
+            flows.count(flow, packet.limit());
+            if (blocked) {
+                if (flow.forwarded) {
+                    flow.forwarded = false;
+                    forwardingEngine.closeFlow(flow.protocol, flow.sourcePort(), flow.destIp, flow.destPort);
+                }
+                if (!flow.logged) {
+                    flow.logged = true;
+                    connectionLogger.logBlocked(flow.destIp, flow.destPort, flow.uid, "RULE_BLOCKED");
+                }
+                return;
+            }
 
-        // In a real implementation, we would forward the packet
-        // For a local VPN, we need to handle the actual forwarding
-        // This is simplified - full implementation would use raw sockets
+            // Allow packet through, queries to the tunnel's DNS server go to the local resolver
+            if (flow.protocol == 17 && flow.destPort == 53 && interceptor.resolve(packet, out)) {
+                return;
+            }
+            flow.forwarded = true;
+            forward.write(packet);
+        }
     }
 
     private void createNotificationChannel() {
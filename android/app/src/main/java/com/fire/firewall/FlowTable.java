@@ -0,0 +1,320 @@
+package com.fire.firewall;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Connection tracking for one pipeline worker. Flows are keyed by their 5-tuple packed
+ * into two longs and kept in an open-addressing table, so after the first packet a
+ * flow costs one probe. Each entry caches the verdict for the rule snapshot version it
+ * was computed against, the owning UID and byte counters. Not thread-safe; the pipeline
+ * pins every flow to a single worker.
+ */
+final class FlowTable {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_FLOWS = 16384;
+    private static final long TCP_IDLE_MS = 5 * 60_000;
+    private static final long IDLE_MS = 60_000;
+    private static final long SWEEP_INTERVAL_MS = 5_000;
+    // Packets kept while owner lookups run, beyond these they are dropped
+    private static final int MAX_HELD_PER_FLOW = 4;
+    private static final int MAX_HELD = 256;
+    // Owner lookup still running
+    static final int UID_PENDING = -2;
+
+    /**
+     * Receives the traffic a flow accumulated since its last report.
+     */
+    interface UsageListener {
+        void onUsage(int uid, boolean blocked, long bytes, long packets);
+    }
+
+    static final class Flow {
+        final long key0;
+        final long key1;
+        final int protocol;
+        final int destIp;
+        final int destPort;
+
+        int uid = -1;
+        boolean uidResolved;
+        boolean uidPending;
+        // Written by the lookup pool, picked up into uid by the worker
+        volatile int ownerUid = UID_PENDING;
+        // Snapshot version the verdict was computed for, -1 until the first decision
+        long version = -1;
+        boolean blocked;
+        boolean logged;
+        // Some packet went to the forwarding engine, which then has a session for it
+        boolean forwarded;
+        // Copies of packets that arrived before the owner was known, in order
+        private ByteBuffer[] held;
+        private int heldCount;
+
+        long bytes;
+        long packets;
+        private long reportedBytes;
+        private long reportedPackets;
+        long lastSeen;
+
+        Flow(long key0, long key1, int protocol, int destIp, int destPort) {
+            this.key0 = key0;
+            this.key1 = key1;
+            this.protocol = protocol;
+            this.destIp = destIp;
+            this.destPort = destPort;
+        }
+
+        int sourceIp() {
+            return (int) (key0 >>> 32);
+        }
+
+        int sourcePort() {
+            return (int) (key1 >>> 16) & 0xFFFF;
+        }
+
+        boolean hasHeld() {
+            return heldCount > 0;
+        }
+
+        private void dropHeld() {
+            held = null;
+            heldCount = 0;
+        }
+
+        void report(UsageListener listener) {
+            long deltaPackets = packets - reportedPackets;
+            if (deltaPackets == 0 || listener == null) {
+                return;
+            }
+            listener.onUsage(uid, blocked, bytes - reportedBytes, deltaPackets);
+            reportedBytes = bytes;
+            reportedPackets = packets;
+        }
+    }
+
+    private final UsageListener listener;
+    private long[] keys = new long[INITIAL_CAPACITY * 2];
+    private Flow[] flows = new Flow[INITIAL_CAPACITY];
+    private int size;
+    private int heldPackets;
+    private long lastSweep;
+
+    FlowTable(UsageListener listener) {
+        this.listener = listener;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int heldPackets() {
+        return heldPackets;
+    }
+
+    /**
+     * Returns the flow the IPv4 packet belongs to, creating it on the first packet.
+     */
+    Flow lookup(ByteBuffer packet, long now) {
+        int headerLength = (packet.get(0) & 0x0F) * 4;
+        int protocol = packet.get(9) & 0xFF;
+        int sourceIp = packet.getInt(12);
+        int destIp = packet.getInt(16);
+        // Ports only appear in the first fragment, later ones share a port-less flow
+        int sourcePort = 0;
+        int destPort = 0;
+        boolean laterFragment = (packet.getShort(6) & 0x1FFF) != 0;
+        if ((protocol == Packets.PROTOCOL_TCP || protocol == Packets.PROTOCOL_UDP)
+                && !laterFragment && packet.limit() >= headerLength + 4) {
+            sourcePort = packet.getShort(headerLength) & 0xFFFF;
+            destPort = packet.getShort(headerLength + 2) & 0xFFFF;
+        }
+
+        long key0 = ((long) sourceIp << 32) | (destIp & 0xFFFFFFFFL);
+        long key1 = ((long) protocol << 32) | ((long) sourcePort << 16) | destPort;
+
+        if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+            sweep(now);
+        }
+
+        Flow flow = find(key0, key1);
+        if (flow == null) {
+            flow = new Flow(key0, key1, protocol, destIp, destPort);
+            insert(flow);
+        }
+        flow.lastSeen = now;
+        return flow;
+    }
+
+    /**
+     * Records the verdict computed for a snapshot version. Traffic counted so far is
+     * reported under the previous verdict first, and a flow that changes verdict gets
+     * logged again.
+     */
+    void setVerdict(Flow flow, long version, boolean blocked) {
+        if (flow.version >= 0 && flow.blocked != blocked) {
+            flow.report(listener);
+            flow.logged = false;
+        }
+        flow.version = version;
+        flow.blocked = blocked;
+    }
+
+    /**
+     * Sets the owner found after the flow started. Traffic so far is reported under the
+     * unknown UID, and the verdict is decided again on the next check.
+     */
+    void setUid(Flow flow, int uid) {
+        flow.report(listener);
+        flow.uid = uid;
+        flow.version = -1;
+    }
+
+    /**
+     * Keeps a copy of a packet that cannot be decided until the flow's owner is known.
+     * Returns false, and the packet is dropped, once the flow or the table is holding
+     * as many as it may.
+     */
+    boolean hold(Flow flow, ByteBuffer packet) {
+        if (flow.heldCount == MAX_HELD_PER_FLOW || heldPackets == MAX_HELD) {
+            return false;
+        }
+        if (flow.held == null) {
+            flow.held = new ByteBuffer[MAX_HELD_PER_FLOW];
+        }
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet.duplicate());
+        copy.flip();
+        flow.held[flow.heldCount++] = copy;
+        heldPackets++;
+        return true;
+    }
+
+    /**
+     * Returns the packets held for the flow in arrival order and forgets them.
+     */
+    ByteBuffer[] takeHeld(Flow flow) {
+        ByteBuffer[] packets = Arrays.copyOf(flow.held, flow.heldCount);
+        heldPackets -= flow.heldCount;
+        flow.dropHeld();
+        return packets;
+    }
+
+    void count(Flow flow, int bytes) {
+        flow.bytes += bytes;
+        flow.packets++;
+    }
+
+    /**
+     * Reports outstanding traffic of every flow and drops the ones that went idle.
+     */
+    void sweep(long now) {
+        lastSweep = now;
+        Flow[] current = flows;
+        int live = 0;
+        for (Flow flow : current) {
+            if (flow != null) {
+                flow.report(listener);
+                if (!isExpired(flow, now)) {
+                    live++;
+                }
+            }
+        }
+        if (live == size) {
+            return;
+        }
+
+        int capacity = INITIAL_CAPACITY;
+        while (live * 2 > capacity) {
+            capacity *= 2;
+        }
+        rehash(capacity, current, now);
+    }
+
+    /**
+     * Reports outstanding traffic and forgets every flow.
+     */
+    void clear() {
+        for (Flow flow : flows) {
+            if (flow != null) {
+                flow.report(listener);
+                flow.dropHeld();
+            }
+        }
+        keys = new long[INITIAL_CAPACITY * 2];
+        flows = new Flow[INITIAL_CAPACITY];
+        size = 0;
+        heldPackets = 0;
+    }
+
+    private Flow find(long key0, long key1) {
+        int mask = flows.length - 1;
+        int i = hash(key0, key1) & mask;
+        Flow flow;
+        while ((flow = flows[i]) != null) {
+            if (keys[i * 2] == key0 && keys[i * 2 + 1] == key1) {
+                return flow;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private void insert(Flow flow) {
+        if ((size + 1) * 2 > flows.length) {
+            if (size >= MAX_FLOWS) {
+                // Table is full of live flows; start over rather than grow without bound
+                clear();
+            } else {
+                rehash(flows.length * 2, flows, Long.MIN_VALUE);
+            }
+        }
+        put(keys, flows, flow);
+        size++;
+    }
+
+    // Rebuilds the table at the given capacity, leaving out flows idle at 'now'
+    private void rehash(int capacity, Flow[] current, long now) {
+        long[] newKeys = new long[capacity * 2];
+        Flow[] newFlows = new Flow[capacity];
+        int count = 0;
+        int held = 0;
+        for (Flow flow : current) {
+            if (flow == null) {
+                continue;
+            }
+            if (now == Long.MIN_VALUE || !isExpired(flow, now)) {
+                put(newKeys, newFlows, flow);
+                count++;
+                held += flow.heldCount;
+            } else {
+                flow.dropHeld();
+            }
+        }
+        keys = newKeys;
+        flows = newFlows;
+        size = count;
+        heldPackets = held;
+    }
+
+    private static void put(long[] keys, Flow[] flows, Flow flow) {
+        int mask = flows.length - 1;
+        int i = hash(flow.key0, flow.key1) & mask;
+        while (flows[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i * 2] = flow.key0;
+        keys[i * 2 + 1] = flow.key1;
+        flows[i] = flow;
+    }
+
+    private static boolean isExpired(Flow flow, long now) {
+        long idle = flow.protocol == Packets.PROTOCOL_TCP ? TCP_IDLE_MS : IDLE_MS;
+        return now - flow.lastSeen >= idle;
+    }
+
+    private static int hash(long key0, long key1) {
+        long h = (key0 ^ Long.rotateLeft(key1, 29)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
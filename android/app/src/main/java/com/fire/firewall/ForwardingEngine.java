@@ -0,0 +1,447 @@
+package com.fire.firewall;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * User-space NAT for allowed traffic. Workers hand it outbound IPv4 TCP and UDP
+ * packets; a single selector thread relays them over protected upstream sockets and
+ * writes the replies back into the tunnel. Sessions are keyed by 5-tuple (the source
+ * address is always the tunnel's) and expire through a timer wheel. Fragmented
+ * datagrams are reassembled before they are forwarded.
+ */
+public class ForwardingEngine {
+    private static final String TAG = "ForwardingEngine";
+    private static final int INPUT_CAPACITY = 256;
+    private static final int WHEEL_SLOTS = 512;
+    private static final long TICK_MS = 250;
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private final SocketProtector protector;
+    private final int mtu;
+    private final int mss;
+    private final Selector selector;
+    private final TimerWheel wheel;
+    private final FragmentReassembler reassembler;
+    private final LongObjectMap<TcpSession> tcpSessions = new LongObjectMap<>(1024);
+    private final LongObjectMap<UdpSession> udpSessions = new LongObjectMap<>(1024);
+    private final Random random = new Random();
+    // (protocol, session key) pairs from workers whose flows became blocked
+    private final ConcurrentLinkedQueue<long[]> closeRequests = new ConcurrentLinkedQueue<>();
+    private final List<long[]> closing = new ArrayList<>();
+
+    private final ByteBuffer outPacket = ByteBuffer.allocate(MAX_DATAGRAM_SIZE + Packets.IP_HEADER_LENGTH + Packets.UDP_HEADER_LENGTH);
+    private final ByteBuffer fragment;
+    private final ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+
+    private volatile PacketRing[] inputs = new PacketRing[0];
+    private volatile boolean selecting = false;
+    private volatile boolean running = false;
+    private PacketSink out;
+    private Thread thread;
+    private int ipId = 0;
+
+    public ForwardingEngine(SocketProtector protector, int mtu) throws IOException {
+        this.protector = protector;
+        this.mtu = mtu;
+        this.mss = mtu - Packets.IP_HEADER_LENGTH - Packets.TCP_HEADER_LENGTH;
+        this.selector = Selector.open();
+        this.wheel = new TimerWheel(WHEEL_SLOTS, TICK_MS, System.currentTimeMillis());
+        this.reassembler = new FragmentReassembler(wheel);
+        this.fragment = ByteBuffer.allocate(mtu);
+    }
+
+    /**
+     * Returns a new single-producer ring the engine drains. Each worker thread takes
+     * its own and writes allowed packets to it.
+     */
+    public synchronized PacketRing openInput() {
+        PacketRing ring = new PacketRing(INPUT_CAPACITY, mtu);
+        ring.setConsumer(this::signal);
+        PacketRing[] current = inputs;
+        PacketRing[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = ring;
+        inputs = next;
+        return ring;
+    }
+
+    public void start(PacketSink out) {
+        this.out = out;
+        running = true;
+        thread = new Thread(this::run, "FirewallForwarder");
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    int getMss() {
+        return mss;
+    }
+
+    // Fragments that could not be reassembled, see FragmentReassembler
+    long getDroppedFragments() {
+        return reassembler.getDropped();
+    }
+
+    /**
+     * Asks the engine to drop the session of a flow that is no longer allowed. TCP
+     * sessions are reset so the app sees the connection fail. Safe from any thread.
+     */
+    public void closeFlow(int protocol, int srcPort, int dstIp, int dstPort) {
+        closeRequests.add(new long[] { protocol, flowKey(srcPort, dstIp, dstPort) });
+        signal();
+    }
+
+    private void signal() {
+        if (selecting) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        Log.i(TAG, "Forwarding engine started");
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                // Requests are taken before draining, so packets a worker forwarded
+                // ahead of its request cannot reopen the session afterwards
+                takeCloseRequests();
+                drainInputs(now);
+                applyCloseRequests();
+
+                selecting = true;
+                if (hasPendingInput()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(wheel.millisUntilNextTick(now));
+                }
+                selecting = false;
+
+                now = System.currentTimeMillis();
+                processSelectedKeys(now);
+                wheel.advance(now);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Forwarding engine failed", e);
+        } finally {
+            tcpSessions.forEachValue(TcpSession::close);
+            udpSessions.forEachValue(UdpSession::close);
+            tcpSessions.clear();
+            udpSessions.clear();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing selector", e);
+            }
+            Log.i(TAG, "Forwarding engine stopped, " + reassembler.getReassembled() + " datagrams reassembled, "
+                + reassembler.getDropped() + " dropped while reassembling");
+        }
+    }
+
+    private boolean hasPendingInput() {
+        if (!closeRequests.isEmpty()) {
+            return true;
+        }
+        for (PacketRing ring : inputs) {
+            if (!ring.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drainInputs(long now) {
+        for (PacketRing ring : inputs) {
+            ByteBuffer packet;
+            while ((packet = ring.peek()) != null) {
+                try {
+                    handlePacket(packet, now);
+                } catch (Exception e) {
+                    Log.w(TAG, "Error forwarding packet", e);
+                } finally {
+                    ring.release();
+                }
+            }
+        }
+    }
+
+    private void takeCloseRequests() {
+        long[] request;
+        while ((request = closeRequests.poll()) != null) {
+            closing.add(request);
+        }
+    }
+
+    private void applyCloseRequests() {
+        for (long[] request : closing) {
+            if (request[0] == Packets.PROTOCOL_TCP) {
+                TcpSession session = tcpSessions.get(request[1]);
+                if (session != null) {
+                    closeTcp(session, true);
+                }
+            } else {
+                UdpSession session = udpSessions.get(request[1]);
+                if (session != null) {
+                    closeUdp(session);
+                }
+            }
+        }
+        closing.clear();
+    }
+
+    private void processSelectedKeys(long now) {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Object session = key.attachment();
+
+            if (session instanceof TcpSession) {
+                TcpSession tcp = (TcpSession) session;
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        tcp.onConnected(now);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        tcp.onWritable(now);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        tcp.onReadable(now);
+                    }
+                } catch (IOException e) {
+                    closeTcp(tcp, true);
+                }
+            } else if (session instanceof UdpSession) {
+                receiveUdp((UdpSession) session, now);
+            }
+        }
+    }
+
+    // Packets from the tunnel
+
+    private void handlePacket(ByteBuffer packet, long now) throws IOException {
+        if (((packet.get(0) >> 4) & 0xF) != 4) {
+            return;
+        }
+        if (Packets.isFragment(packet)) {
+            packet = reassembler.add(packet, now);
+            if (packet == null) {
+                return;
+            }
+        }
+
+        int protocol = packet.get(9) & 0xFF;
+        if (protocol == Packets.PROTOCOL_TCP) {
+            handleTcp(packet, now);
+        } else if (protocol == Packets.PROTOCOL_UDP) {
+            handleUdp(packet, now);
+        }
+    }
+
+    private void handleTcp(ByteBuffer packet, long now) throws IOException {
+        int ihl = Packets.ipHeaderLength(packet);
+        int total = Packets.ipTotalLength(packet);
+        if (total < ihl + Packets.TCP_HEADER_LENGTH) {
+            return;
+        }
+
+        int srcIp = packet.getInt(12);
+        int dstIp = packet.getInt(16);
+        int srcPort = packet.getShort(ihl) & 0xFFFF;
+        int dstPort = packet.getShort(ihl + 2) & 0xFFFF;
+        int seq = packet.getInt(ihl + 4);
+        int ack = packet.getInt(ihl + 8);
+        int dataOffset = ((packet.get(ihl + 12) >> 4) & 0xF) * 4;
+        int flags = packet.get(ihl + 13) & 0xFF;
+        int window = packet.getShort(ihl + 14) & 0xFFFF;
+        int payloadOffset = ihl + dataOffset;
+        int payloadLength = Math.max(0, total - payloadOffset);
+
+        long key = flowKey(srcPort, dstIp, dstPort);
+        TcpSession session = tcpSessions.get(key);
+        if (session != null) {
+            session.onSegment(flags, seq, ack, window, packet, payloadOffset, payloadLength, now);
+            return;
+        }
+
+        if ((flags & Packets.TCP_SYN) != 0 && (flags & Packets.TCP_ACK) == 0) {
+            openTcp(key, srcIp, srcPort, dstIp, dstPort, seq, window, now);
+        } else if ((flags & Packets.TCP_RST) == 0) {
+            // Unknown connection, reset it so the app fails fast
+            int rstSeq = (flags & Packets.TCP_ACK) != 0 ? ack : 0;
+            int rstAck = seq + payloadLength + ((flags & Packets.TCP_FIN) != 0 ? 1 : 0);
+            Packets.buildTcp(outPacket, nextIpId(), dstIp, dstPort, srcIp, srcPort, rstSeq, rstAck,
+                Packets.TCP_RST | Packets.TCP_ACK, 0, mss, null, 0, 0);
+            out.write(outPacket);
+        }
+    }
+
+    private void openTcp(long key, int srcIp, int srcPort, int dstIp, int dstPort, int seq, int window, long now) {
+        TcpSession session = new TcpSession(this, key, srcIp, srcPort, dstIp, dstPort, seq, random.nextInt(), window, now);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            session.channel = channel;
+            channel.configureBlocking(false);
+            if (!protector.protect(channel.socket())) {
+                throw new IOException("Could not protect upstream socket");
+            }
+            boolean connected = channel.connect(new InetSocketAddress(toInetAddress(dstIp), dstPort));
+            session.selectionKey = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, session);
+            tcpSessions.put(key, session);
+            if (connected) {
+                session.onConnected(now);
+            } else {
+                schedule(session, now + TcpSession.HANDSHAKE_TIMEOUT_MS);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Upstream connect failed: " + e.getMessage());
+            closeTcp(session, true);
+        }
+    }
+
+    private void handleUdp(ByteBuffer packet, long now) throws IOException {
+        int ihl = Packets.ipHeaderLength(packet);
+        int total = Packets.ipTotalLength(packet);
+        if (total < ihl + Packets.UDP_HEADER_LENGTH) {
+            return;
+        }
+
+        int srcIp = packet.getInt(12);
+        int dstIp = packet.getInt(16);
+        int srcPort = packet.getShort(ihl) & 0xFFFF;
+        int dstPort = packet.getShort(ihl + 2) & 0xFFFF;
+        int payloadOffset = ihl + Packets.UDP_HEADER_LENGTH;
+
+        long key = flowKey(srcPort, dstIp, dstPort);
+        UdpSession session = udpSessions.get(key);
+        if (session == null) {
+            session = openUdp(key, srcIp, srcPort, dstIp, dstPort, now);
+            if (session == null) {
+                return;
+            }
+        }
+        session.lastActive = now;
+
+        int position = packet.position();
+        int limit = packet.limit();
+        packet.limit(total);
+        packet.position(payloadOffset);
+        try {
+            session.channel.write(packet);
+        } catch (IOException e) {
+            closeUdp(session);
+        } finally {
+            packet.limit(limit);
+            packet.position(position);
+        }
+    }
+
+    private UdpSession openUdp(long key, int srcIp, int srcPort, int dstIp, int dstPort, long now) {
+        UdpSession session = new UdpSession(this, key, srcIp, srcPort, dstIp, dstPort, now);
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            session.channel = channel;
+            channel.configureBlocking(false);
+            if (!protector.protect(channel.socket())) {
+                throw new IOException("Could not protect upstream socket");
+            }
+            channel.connect(new InetSocketAddress(toInetAddress(dstIp), dstPort));
+            session.selectionKey = channel.register(selector, SelectionKey.OP_READ, session);
+        } catch (IOException e) {
+            Log.w(TAG, "Upstream UDP open failed: " + e.getMessage());
+            session.close();
+            return null;
+        }
+        udpSessions.put(key, session);
+        schedule(session, now + UdpSession.IDLE_TIMEOUT_MS);
+        return session;
+    }
+
+    private void receiveUdp(UdpSession session, long now) {
+        try {
+            while (true) {
+                datagram.clear();
+                int length = session.channel.read(datagram);
+                if (length <= 0) {
+                    break;
+                }
+                session.lastActive = now;
+                Packets.buildUdp(outPacket, nextIpId(), session.remoteIp, session.remotePort,
+                    session.clientIp, session.clientPort, datagram, 0, length);
+                Packets.writeFragmented(outPacket, mtu, fragment, out);
+            }
+        } catch (IOException e) {
+            closeUdp(session);
+        }
+    }
+
+    // Called back by sessions on the engine thread
+
+    void sendTcp(TcpSession session, int flags, int seq, ByteBuffer data, int offset, int length) {
+        Packets.buildTcp(outPacket, nextIpId(), session.remoteIp, session.remotePort,
+            session.clientIp, session.clientPort, seq, session.appNextSeq, flags,
+            session.advertisedWindow(), mss, data, offset, length);
+        out.write(outPacket);
+    }
+
+    void schedule(TimerWheel.Timer timer, long deadline) {
+        wheel.schedule(timer, deadline);
+    }
+
+    void scheduleNoLaterThan(TimerWheel.Timer timer, long deadline) {
+        if (!timer.isScheduled() || timer.getDeadline() > deadline) {
+            wheel.schedule(timer, deadline);
+        }
+    }
+
+    void closeTcp(TcpSession session, boolean reset) {
+        if (reset) {
+            sendTcp(session, Packets.TCP_RST | Packets.TCP_ACK, session.sendNext, null, 0, 0);
+        }
+        wheel.cancel(session);
+        session.close();
+        if (tcpSessions.get(session.key) == session) {
+            tcpSessions.remove(session.key);
+        }
+    }
+
+    void closeUdp(UdpSession session) {
+        wheel.cancel(session);
+        session.close();
+        if (udpSessions.get(session.key) == session) {
+            udpSessions.remove(session.key);
+        }
+    }
+
+    private int nextIpId() {
+        ipId = (ipId + 1) & 0xFFFF;
+        return ipId;
+    }
+
+    private static long flowKey(int srcPort, int dstIp, int dstPort) {
+        return ((long) srcPort << 48) | ((dstIp & 0xFFFFFFFFL) << 16) | dstPort;
+    }
+
+    private static InetAddress toInetAddress(int ip) throws IOException {
+        return InetAddress.getByAddress(new byte[] {
+            (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip
+        });
+    }
+}
@@ -0,0 +1,171 @@
+package com.fire.firewall;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Reassembles IPv4 fragments from the tunnel so large UDP datagrams (EDNS answers,
+ * QUIC, tunnels in the tunnel) can be forwarded instead of disappearing. Datagrams
+ * are keyed by destination, IP id and protocol and collected into a 64 KB buffer,
+ * tracking which 8 byte units have arrived; the buffers are recycled. Incomplete
+ * datagrams expire through the engine's timer wheel, and at most
+ * {@link #MAX_PENDING} are kept at once; whatever cannot be reassembled is counted.
+ * Only the engine thread touches it.
+ */
+final class FragmentReassembler {
+    static final long TIMEOUT_MS = 30_000;
+    static final int MAX_PENDING = 16;
+    private static final int MAX_PACKET = 65535;
+    private static final int MAX_PAYLOAD = MAX_PACKET - Packets.IP_HEADER_LENGTH;
+    private static final int MAX_HEADER = 60;
+
+    private final class Pending extends TimerWheel.Timer {
+        long key;
+        int srcIp;
+        final byte[] payload = new byte[MAX_PAYLOAD];
+        final long[] received = new long[(MAX_PAYLOAD / 8 + 64) / 64];
+        final byte[] header = new byte[MAX_HEADER];
+        int headerLength;
+        // Known once the last fragment arrives
+        int payloadLength = -1;
+
+        void reset(long key, int srcIp) {
+            this.key = key;
+            this.srcIp = srcIp;
+            Arrays.fill(received, 0);
+            headerLength = 0;
+            payloadLength = -1;
+        }
+
+        @Override
+        void onExpired(long now) {
+            remove(this);
+            free.push(this);
+            dropped++;
+        }
+
+        boolean isComplete() {
+            if (payloadLength < 0 || headerLength == 0) {
+                return false;
+            }
+            int units = (payloadLength + 7) / 8;
+            for (int word = 0; word < units >>> 6; word++) {
+                if (received[word] != -1L) {
+                    return false;
+                }
+            }
+            int rest = units & 63;
+            return rest == 0 || (received[units >>> 6] & ((1L << rest) - 1)) == ((1L << rest) - 1);
+        }
+    }
+
+    private final TimerWheel wheel;
+    private final LongObjectMap<Pending> pending = new LongObjectMap<>(MAX_PENDING);
+    private final ArrayDeque<Pending> free = new ArrayDeque<>();
+    private final ByteBuffer assembled = ByteBuffer.allocate(MAX_PACKET);
+    private long reassembled;
+    private long dropped;
+
+    FragmentReassembler(TimerWheel wheel) {
+        this.wheel = wheel;
+    }
+
+    /**
+     * Takes one fragment and returns the whole datagram once its last missing piece
+     * arrives, or null until then. The returned buffer is reused by the next call.
+     */
+    ByteBuffer add(ByteBuffer fragment, long now) {
+        int ihl = Packets.ipHeaderLength(fragment);
+        int total = Packets.ipTotalLength(fragment);
+        int flagsOffset = fragment.getShort(6) & 0xFFFF;
+        boolean more = (flagsOffset & 0x2000) != 0;
+        int offset = (flagsOffset & 0x1FFF) * 8;
+        int length = total - ihl;
+        // Middle pieces come in 8 byte units, and nothing may end past 64 KB
+        if (ihl < Packets.IP_HEADER_LENGTH || length <= 0 || (more && (length & 7) != 0)
+                || offset + length > MAX_PAYLOAD) {
+            dropped++;
+            return null;
+        }
+
+        int srcIp = fragment.getInt(12);
+        int dstIp = fragment.getInt(16);
+        int protocol = fragment.get(9) & 0xFF;
+        long key = ((dstIp & 0xFFFFFFFFL) << 24) | ((fragment.getShort(4) & 0xFFFFL) << 8) | protocol;
+        Pending datagram = pending.get(key);
+        if (datagram == null) {
+            if (pending.size() >= MAX_PENDING) {
+                dropped++;
+                return null;
+            }
+            datagram = free.isEmpty() ? new Pending() : free.pop();
+            datagram.reset(key, srcIp);
+            pending.put(key, datagram);
+            wheel.schedule(datagram, now + TIMEOUT_MS);
+        } else if (datagram.srcIp != srcIp) {
+            dropped++;
+            return null;
+        }
+
+        copy(fragment, ihl, datagram.payload, offset, length);
+        for (int unit = offset / 8, end = (offset + length + 7) / 8; unit < end; unit++) {
+            datagram.received[unit >>> 6] |= 1L << unit;
+        }
+        if (offset == 0) {
+            copy(fragment, 0, datagram.header, 0, ihl);
+            datagram.headerLength = ihl;
+        }
+        if (!more) {
+            datagram.payloadLength = offset + length;
+        }
+        if (!datagram.isComplete()) {
+            return null;
+        }
+
+        remove(datagram);
+        int headerLength = datagram.headerLength;
+        int packetLength = Math.min(MAX_PACKET, headerLength + datagram.payloadLength);
+        assembled.clear();
+        assembled.put(datagram.header, 0, headerLength);
+        assembled.put(datagram.payload, 0, packetLength - headerLength);
+        assembled.putShort(2, (short) packetLength);
+        assembled.putShort(6, (short) 0);
+        assembled.putShort(10, (short) 0);
+        assembled.putShort(10, (short) Packets.checksum(assembled, 0, headerLength, 0));
+        assembled.flip();
+        free.push(datagram);
+        reassembled++;
+        return assembled;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    long getReassembled() {
+        return reassembled;
+    }
+
+    // Fragments refused plus datagrams that expired incomplete
+    long getDropped() {
+        return dropped;
+    }
+
+    private void remove(Pending datagram) {
+        wheel.cancel(datagram);
+        if (pending.get(datagram.key) == datagram) {
+            pending.remove(datagram.key);
+        }
+    }
+
+    private static void copy(ByteBuffer src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + srcOffset, dst, dstOffset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = src.get(srcOffset + i);
+            }
+        }
+    }
+}
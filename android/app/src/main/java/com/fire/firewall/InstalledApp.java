@@ -0,0 +1,103 @@
+package com.fire.firewall;
+
+import android.content.pm.ApplicationInfo;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONObject;
+
+/**
+ * One entry of the {@link AppCatalog}. updatedAt is the package's last update time,
+ * used to tell whether a stored label is still current.
+ */
+public class InstalledApp {
+    private final String packageName;
+    private final String label;
+    private final int uid;
+    private final int flags;
+    private final boolean internet;
+    private final long updatedAt;
+
+    public InstalledApp(String packageName, String label, int uid, int flags, boolean internet, long updatedAt) {
+        this.packageName = packageName;
+        this.label = label;
+        this.uid = uid;
+        this.flags = flags;
+        this.internet = internet;
+        this.updatedAt = updatedAt;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isSystemApp() {
+        return (flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+    }
+
+    // User apps and system apps updated by the user, as listed by default
+    public boolean isUserVisible() {
+        return !isSystemApp() || (flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) != 0;
+    }
+
+    public boolean hasInternet() {
+        return internet;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public WritableMap toMap() {
+        WritableMap map = Arguments.createMap();
+        map.putString("packageName", packageName);
+        map.putString("appName", label);
+        map.putInt("uid", uid);
+        map.putBoolean("isSystemApp", isSystemApp());
+        map.putBoolean("hasInternet", internet);
+        return map;
+    }
+
+    public JSONObject toJson() {
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("packageName", packageName);
+            obj.put("label", label);
+            obj.put("uid", uid);
+            obj.put("flags", flags);
+            obj.put("internet", internet);
+            obj.put("updatedAt", updatedAt);
+            return obj;
+        } catch (Exception e) {
+            return new JSONObject();
+        }
+    }
+
+    public static InstalledApp fromJson(JSONObject obj) {
+        try {
+            return new InstalledApp(
+                obj.getString("packageName"),
+                obj.getString("label"),
+                obj.getInt("uid"),
+                obj.getInt("flags"),
+                obj.getBoolean("internet"),
+                obj.getLong("updatedAt")
+            );
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -2,16 +2,18 @@ package com.fire.firewall;
 
 import org.json.JSONObject;
 
+import java.util.Objects;
+
 public class IpRule {
     private final String ip;
     private final int prefixLength;
     private final boolean blocked;
+    private final int address;
+    private final boolean valid;
 
     // For simple IP
     public IpRule(String ip, boolean blocked) {
-        this.ip = ip;
-        this.prefixLength = 32;
-        this.blocked = blocked;
+        this(ip, 32, blocked);
     }
 
     // For CIDR notation (e.g., 192.168.1.0/24)
@@ -19,6 +21,17 @@ public class IpRule {
         this.ip = ip;
         this.prefixLength = prefixLength;
         this.blocked = blocked;
+
+        // Parse once so matching never touches the dotted string again
+        int parsed = 0;
+        boolean ok = prefixLength >= 0 && prefixLength <= 32;
+        try {
+            parsed = ipToInt(ip);
+        } catch (Exception e) {
+            ok = false;
+        }
+        this.address = parsed;
+        this.valid = ok;
     }
 
     public String getIp() {
@@ -33,14 +46,20 @@ public class IpRule {
         return blocked;
     }
 
+    public int getAddress() {
+        return address;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
     public boolean matches(int targetIp) {
-        try {
-            int ruleIp = ipToInt(ip);
-            int mask = prefixLength == 0 ? 0 : (0xFFFFFFFF << (32 - prefixLength));
-            return (targetIp & mask) == (ruleIp & mask);
-        } catch (Exception e) {
+        if (!valid) {
             return false;
         }
+        int mask = prefixLength == 0 ? 0 : (0xFFFFFFFF << (32 - prefixLength));
+        return (targetIp & mask) == (address & mask);
     }
 
     public boolean matches(String targetIp) {
@@ -51,9 +70,11 @@ public class IpRule {
         }
     }
 
-    private int ipToInt(String ipString) {
+    static int ipToInt(String ipString) {
         String[] parts = ipString.split("\\.");
-        if (parts.length != 4) return 0;
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid IPv4 address: " + ipString);
+        }
 
         int result = 0;
         for (int i = 0; i < 4; i++) {
@@ -62,6 +83,20 @@ public class IpRule {
         return result;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IpRule)) {
+            return false;
+        }
+        IpRule other = (IpRule) o;
+        return ip.equals(other.ip) && prefixLength == other.prefixLength && blocked == other.blocked;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ip, prefixLength, blocked);
+    }
+
     public JSONObject toJson() {
         try {
             JSONObject obj = new JSONObject();
@@ -0,0 +1,113 @@
+package com.fire.firewall;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of log events with many producers and one consumer. Events
+ * are stored field by field in preallocated arrays, so offering one allocates nothing.
+ * Each slot carries a sequence number (after Vyukov's bounded queue): producers claim
+ * a slot with one CAS on the tail and publish it by advancing its sequence, and the
+ * consumer frees it the same way.
+ */
+final class LogEventQueue {
+    /**
+     * Receives events drained from the queue.
+     */
+    interface Consumer {
+        void accept(long timestamp, int destIp, int destPort, int uid, int action, String domain);
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] timestamps;
+    private final int[] destIps;
+    private final int[] destPorts;
+    private final int[] uids;
+    private final int[] actions;
+    private final String[] domains;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Only touched by the consumer
+    private long head = 0;
+
+    LogEventQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        timestamps = new long[capacity];
+        destIps = new int[capacity];
+        destPorts = new int[capacity];
+        uids = new int[capacity];
+        actions = new int[capacity];
+        domains = new String[capacity];
+    }
+
+    /**
+     * Enqueues an event from any thread. Returns false and counts a drop if the
+     * queue is full.
+     */
+    boolean offer(long timestamp, int destIp, int destPort, int uid, int action, String domain) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            // Another producer claimed this slot first, try the next one
+        }
+
+        timestamps[index] = timestamp;
+        destIps[index] = destIp;
+        destPorts[index] = destPort;
+        uids[index] = uid;
+        actions[index] = action;
+        domains[index] = domain;
+        // Publishes the fields written above to the consumer
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Hands up to max queued events to the consumer. Must only be called from the
+     * consumer thread. Returns the number of events drained.
+     */
+    int drain(Consumer consumer, int max) {
+        int count = 0;
+        while (count < max) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+
+            String domain = domains[index];
+            domains[index] = null;
+            consumer.accept(timestamps[index], destIps[index], destPorts[index], uids[index], actions[index], domain);
+
+            // Frees the slot for the producer that wraps around to it
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    // Returns and resets the number of events dropped since the last call
+    long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+}
@@ -0,0 +1,174 @@
+package com.fire.firewall;
+
+import java.util.Arrays;
+
+/**
+ * In-memory secondary indexes over the records of a {@link LogStore}, kept up to
+ * date on every append and rebuilt from the ring by the log writer after the
+ * store is opened:
+ *
+ * - a posting list of sequence numbers per UID and per action, newest last;
+ * - a summary of every block of {@link #BLOCK_SIZE} consecutive records with its
+ *   time range and the actions it contains, so whole blocks can be skipped.
+ *
+ * Postings hold the low 32 bits of each sequence. The ring never spans more than
+ * its capacity, so the full sequence is recovered from the store's next sequence,
+ * and this halves the memory of a long array. Entries that fell out of the ring
+ * are trimmed each time a block fills. Not thread-safe, guarded by the store.
+ */
+final class LogIndex {
+    static final int BLOCK_SHIFT = 10;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    /**
+     * Sequence numbers of the records with one UID or action, oldest first.
+     */
+    static final class Postings {
+        final long key;
+        private int[] sequences = new int[16];
+        private int start;
+        private int end;
+
+        Postings(long key) {
+            this.key = key;
+        }
+
+        boolean isEmpty() {
+            return start == end;
+        }
+
+        void add(long sequence) {
+            if (end == sequences.length) {
+                if (start > sequences.length / 2) {
+                    // Mostly evicted, reuse the space
+                    System.arraycopy(sequences, start, sequences, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    sequences = Arrays.copyOf(sequences, sequences.length * 2);
+                }
+            }
+            sequences[end++] = (int) sequence;
+        }
+
+        long get(int i, long nextSequence) {
+            return nextSequence - (((int) nextSequence - sequences[i]) & 0xFFFFFFFFL);
+        }
+
+        // Index of the last entry below sequence, or start - 1 if there is none
+        int indexBefore(long sequence, long nextSequence) {
+            int low = start;
+            int high = end - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (get(mid, nextSequence) < sequence) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        int startIndex() {
+            return start;
+        }
+
+        void trim(long firstSequence, long nextSequence) {
+            while (start < end && get(start, nextSequence) < firstSequence) {
+                start++;
+            }
+        }
+    }
+
+    private final LongObjectMap<Postings> byUid = new LongObjectMap<>(256);
+    private final LongObjectMap<Postings> byAction = new LongObjectMap<>(8);
+
+    // Block summaries, a ring addressed by block number
+    private final long[] blockIds;
+    private final long[] blockMinTime;
+    private final long[] blockMaxTime;
+    private final long[] blockActions;
+
+    LogIndex(int capacity) {
+        int blocks = (capacity >> BLOCK_SHIFT) + 2;
+        blockIds = new long[blocks];
+        blockMinTime = new long[blocks];
+        blockMaxTime = new long[blocks];
+        blockActions = new long[blocks];
+        Arrays.fill(blockIds, -1);
+    }
+
+    void add(long sequence, long timestamp, int uid, int action, long firstSequence) {
+        long block = sequence >> BLOCK_SHIFT;
+        int slot = (int) (block % blockIds.length);
+        if (blockIds[slot] != block) {
+            blockIds[slot] = block;
+            blockMinTime[slot] = timestamp;
+            blockMaxTime[slot] = timestamp;
+            blockActions[slot] = 0;
+            trim(firstSequence, sequence);
+        } else {
+            blockMinTime[slot] = Math.min(blockMinTime[slot], timestamp);
+            blockMaxTime[slot] = Math.max(blockMaxTime[slot], timestamp);
+        }
+        blockActions[slot] |= actionBit(action);
+
+        postings(byUid, uid).add(sequence);
+        postings(byAction, action).add(sequence);
+    }
+
+    Postings forUid(int uid) {
+        return byUid.get(uid);
+    }
+
+    Postings forAction(int action) {
+        return byAction.get(action);
+    }
+
+    /**
+     * Returns false if no record of block can fall in [from, to] with the given
+     * action, or any action if action is negative.
+     */
+    boolean blockMayMatch(long block, long from, long to, int action) {
+        int slot = (int) (block % blockIds.length);
+        if (blockIds[slot] != block) {
+            return true;
+        }
+        return blockMaxTime[slot] >= from && blockMinTime[slot] <= to
+            && (action < 0 || (blockActions[slot] & actionBit(action)) != 0);
+    }
+
+    void clear() {
+        byUid.clear();
+        byAction.clear();
+        Arrays.fill(blockIds, -1);
+    }
+
+    private void trim(long firstSequence, long nextSequence) {
+        trim(byUid, firstSequence, nextSequence);
+        trim(byAction, firstSequence, nextSequence);
+    }
+
+    private static void trim(LongObjectMap<Postings> map, long firstSequence, long nextSequence) {
+        map.forEachValue(postings -> {
+            postings.trim(firstSequence, nextSequence);
+            if (postings.isEmpty()) {
+                map.remove(postings.key);
+            }
+        });
+    }
+
+    private static Postings postings(LongObjectMap<Postings> map, long key) {
+        Postings postings = map.get(key);
+        if (postings == null) {
+            postings = new Postings(key);
+            map.put(key, postings);
+        }
+        return postings;
+    }
+
+    private static long actionBit(int action) {
+        return 1L << Math.min(action, 63);
+    }
+}
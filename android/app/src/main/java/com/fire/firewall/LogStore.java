@@ -0,0 +1,469 @@
+package com.fire.firewall;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-size binary ring of connection log records in a memory-mapped file. Appending
+ * writes one 32 byte record and bumps the sequence in the header, so the cost does not
+ * depend on how many records are kept, and the kernel persists the pages even if the
+ * process dies. Domains are stored once in a dictionary file and referenced by id.
+ * When the dictionary is full, ids no record in the ring refers to any more are
+ * reused; records are never rewritten for it.
+ *
+ * Records are addressed by sequence number: the n-th record ever appended has
+ * sequence n, and the ring holds the last {@link #getCapacity()} of them.
+ * A {@link LogIndex} over the ring answers {@link #find} queries by UID, action
+ * and time without reading every record. Indexing the records of earlier runs reads
+ * the whole ring, so it is left to {@link #buildIndex()} on the log writer thread;
+ * until then queries scan.
+ */
+final class LogStore {
+    private static final String TAG = "LogStore";
+    private static final int MAGIC = 0x46574C47; // "FWLG"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+    static final int NO_DOMAIN = -1;
+    private static final int MAX_DOMAINS = 1 << 16;
+
+    // Header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_RECORD_SIZE = 12;
+    private static final int HEADER_NEXT_SEQUENCE = 16;
+
+    // Record layout
+    private static final int RECORD_TIMESTAMP = 0;
+    private static final int RECORD_DEST_IP = 8;
+    private static final int RECORD_UID = 12;
+    private static final int RECORD_DOMAIN = 16;
+    private static final int RECORD_COUNT = 20;
+    private static final int RECORD_DEST_PORT = 24;
+    private static final int RECORD_ACTION = 26;
+
+    /**
+     * Reusable holder for one decoded record.
+     */
+    static final class Record {
+        long sequence;
+        long timestamp;
+        int destIp;
+        int destPort;
+        int uid;
+        int action;
+        int domainId;
+        int count;
+    }
+
+    /**
+     * Filter for {@link #find}; every condition left at its default matches all.
+     */
+    static final class Query {
+        boolean byUid;
+        int uid;
+        int action = -1;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+    }
+
+    private final File domainFile;
+    private final int capacity;
+    private final MappedByteBuffer map;
+    private long nextSequence;
+    private final LogIndex index;
+    // False until buildIndex() has indexed the records found on open
+    private boolean indexed;
+
+    // Domain by id, null for ids free to reuse
+    private final List<String> domains = new ArrayList<>();
+    private final Map<String, Integer> domainIds = new HashMap<>();
+    private final int[] freeIds = new int[MAX_DOMAINS];
+    private int freeCount;
+    // Sequence of the last reclaim, which reads the whole ring
+    private long reclaimedAt = -MAX_DOMAINS;
+    private DataOutputStream domainOut;
+
+    LogStore(File dir, String name, int capacity) throws IOException {
+        this.domainFile = new File(dir, name + ".domains");
+        File file = new File(dir, name + ".bin");
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean fresh = raf.length() != size;
+            if (fresh) {
+                // Also discards a file written with another capacity or format
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (map.getInt(HEADER_MAGIC) != MAGIC || map.getInt(HEADER_VERSION) != FORMAT_VERSION
+                || map.getInt(HEADER_CAPACITY) != capacity || map.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+            map.putInt(HEADER_MAGIC, MAGIC);
+            map.putInt(HEADER_VERSION, FORMAT_VERSION);
+            map.putInt(HEADER_CAPACITY, capacity);
+            map.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+            map.putLong(HEADER_NEXT_SEQUENCE, 0);
+            domainFile.delete();
+        }
+        this.capacity = capacity;
+        this.nextSequence = map.getLong(HEADER_NEXT_SEQUENCE);
+        this.index = new LogIndex(capacity);
+
+        loadDomains();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    // Oldest sequence still held by the ring
+    synchronized long getFirstSequence() {
+        return Math.max(0, nextSequence - capacity);
+    }
+
+    synchronized int size() {
+        return (int) Math.min(nextSequence, capacity);
+    }
+
+    /**
+     * Appends a record and returns its sequence number.
+     */
+    synchronized long append(long timestamp, int destIp, int destPort, int uid, int action, String domain, int count) {
+        long sequence = nextSequence;
+        int offset = offsetOf(sequence);
+        map.putLong(offset + RECORD_TIMESTAMP, timestamp);
+        map.putInt(offset + RECORD_DEST_IP, destIp);
+        map.putInt(offset + RECORD_UID, uid);
+        map.putInt(offset + RECORD_DOMAIN, domainId(domain));
+        map.putInt(offset + RECORD_COUNT, count);
+        map.putShort(offset + RECORD_DEST_PORT, (short) destPort);
+        map.put(offset + RECORD_ACTION, (byte) action);
+
+        // Publish the record only once it is complete
+        nextSequence = sequence + 1;
+        map.putLong(HEADER_NEXT_SEQUENCE, nextSequence);
+        if (indexed) {
+            index.add(sequence, timestamp, uid, action & 0xFF, getFirstSequence());
+        }
+        return sequence;
+    }
+
+    /**
+     * Decodes the record with the given sequence into record. Returns false if it has
+     * not been written yet or was already overwritten.
+     */
+    synchronized boolean read(long sequence, Record record) {
+        if (sequence < getFirstSequence() || sequence >= nextSequence) {
+            return false;
+        }
+        int offset = offsetOf(sequence);
+        record.sequence = sequence;
+        record.timestamp = map.getLong(offset + RECORD_TIMESTAMP);
+        record.destIp = map.getInt(offset + RECORD_DEST_IP);
+        record.uid = map.getInt(offset + RECORD_UID);
+        record.domainId = map.getInt(offset + RECORD_DOMAIN);
+        record.count = map.getInt(offset + RECORD_COUNT);
+        record.destPort = map.getShort(offset + RECORD_DEST_PORT) & 0xFFFF;
+        record.action = map.get(offset + RECORD_ACTION) & 0xFF;
+        return true;
+    }
+
+    /**
+     * Fills out with the sequences of the newest records below before that match
+     * query, newest first, and returns how many were found. Fewer than out.length
+     * means there are no more. Reads only the records listed by the UID or action
+     * index when the query has one, and skips blocks outside its time range. Scans
+     * every record below before while the index is not built yet.
+     */
+    synchronized int find(Query query, long before, long[] out) {
+        long first = getFirstSequence();
+        long end = Math.min(before, nextSequence);
+        LogIndex.Postings postings = null;
+        if (indexed) {
+            if (query.byUid) {
+                postings = index.forUid(query.uid);
+            } else if (query.action >= 0) {
+                postings = index.forAction(query.action);
+            }
+            if (postings == null && (query.byUid || query.action >= 0)) {
+                return 0;
+            }
+        }
+
+        int found = 0;
+        int i = postings != null ? postings.indexBefore(end, nextSequence) : 0;
+        long sequence = end - 1;
+        while (found < out.length) {
+            if (postings != null) {
+                if (i < postings.startIndex()) {
+                    break;
+                }
+                sequence = postings.get(i, nextSequence);
+            }
+            if (sequence < first) {
+                break;
+            }
+
+            long block = sequence >> LogIndex.BLOCK_SHIFT;
+            if (indexed && !index.blockMayMatch(block, query.from, query.to, query.action)) {
+                long blockStart = block << LogIndex.BLOCK_SHIFT;
+                if (postings != null) {
+                    i = postings.indexBefore(blockStart, nextSequence);
+                } else {
+                    sequence = blockStart - 1;
+                }
+                continue;
+            }
+
+            if (matches(offsetOf(sequence), query)) {
+                out[found++] = sequence;
+            }
+            i--;
+            sequence--;
+        }
+        return found;
+    }
+
+    synchronized String getDomain(int id) {
+        return id >= 0 && id < domains.size() ? domains.get(id) : "";
+    }
+
+    /**
+     * Drops every record and the domain dictionary.
+     */
+    synchronized void clear() {
+        nextSequence = 0;
+        map.putLong(HEADER_NEXT_SEQUENCE, 0);
+        index.clear();
+        // Nothing left to index
+        indexed = true;
+        domains.clear();
+        domainIds.clear();
+        freeCount = 0;
+        reclaimedAt = -MAX_DOMAINS;
+        closeDomainOut();
+        domainFile.delete();
+    }
+
+    /**
+     * Asks the kernel to write dirty pages now, e.g. before the service stops.
+     */
+    synchronized void sync() {
+        map.force();
+        if (domainOut != null) {
+            try {
+                domainOut.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Error flushing domain dictionary", e);
+            }
+        }
+    }
+
+    private boolean matches(int offset, Query query) {
+        long timestamp = map.getLong(offset + RECORD_TIMESTAMP);
+        return timestamp >= query.from && timestamp <= query.to
+            && (!query.byUid || map.getInt(offset + RECORD_UID) == query.uid)
+            && (query.action < 0 || (map.get(offset + RECORD_ACTION) & 0xFF) == query.action);
+    }
+
+    /**
+     * Indexes the records kept from earlier runs and from then on every append.
+     * Reads the whole ring, so it is meant for the writer thread rather than
+     * whoever opens the store; queries wait for it to finish.
+     */
+    synchronized void buildIndex() {
+        if (indexed) {
+            return;
+        }
+        long first = getFirstSequence();
+        for (long sequence = first; sequence < nextSequence; sequence++) {
+            int offset = offsetOf(sequence);
+            index.add(sequence, map.getLong(offset + RECORD_TIMESTAMP), map.getInt(offset + RECORD_UID),
+                map.get(offset + RECORD_ACTION) & 0xFF, first);
+        }
+        indexed = true;
+    }
+
+    private int offsetOf(long sequence) {
+        return HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+    }
+
+    private int domainId(String domain) {
+        if (domain == null || domain.isEmpty()) {
+            return NO_DOMAIN;
+        }
+        Integer id = domainIds.get(domain);
+        if (id != null) {
+            return id;
+        }
+        if (freeCount == 0 && domains.size() >= MAX_DOMAINS && !reclaimDomains()) {
+            return NO_DOMAIN;
+        }
+        id = freeCount > 0 ? freeIds[freeCount - 1] : domains.size();
+
+        try {
+            if (domainOut == null) {
+                domainOut = new DataOutputStream(new FileOutputStream(domainFile, true));
+            }
+            writeDomain(domainOut, id, domain);
+            // Written through so the id is on disk before any record refers to it
+            domainOut.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing domain dictionary", e);
+            return NO_DOMAIN;
+        }
+        if (id == domains.size()) {
+            domains.add(domain);
+        } else {
+            freeCount--;
+            domains.set(id, domain);
+        }
+        domainIds.put(domain, id);
+        return id;
+    }
+
+    /**
+     * Frees the ids of domains no record in the ring refers to any more and rewrites
+     * the dictionary without them. Reads every record, so when it frees too few it is
+     * not tried again until MAX_DOMAINS more records were appended; new domains are
+     * left out of their records until then.
+     */
+    private boolean reclaimDomains() {
+        if (nextSequence - reclaimedAt < MAX_DOMAINS) {
+            return false;
+        }
+        reclaimedAt = nextSequence;
+
+        BitSet live = new BitSet(MAX_DOMAINS);
+        for (long sequence = getFirstSequence(); sequence < nextSequence; sequence++) {
+            int id = map.getInt(offsetOf(sequence) + RECORD_DOMAIN);
+            if (id >= 0) {
+                live.set(id);
+            }
+        }
+        // Highest first so the lowest ids are reused first
+        freeCount = 0;
+        for (int id = live.previousClearBit(domains.size() - 1); id >= 0; id = live.previousClearBit(id - 1)) {
+            String domain = domains.set(id, null);
+            if (domain != null) {
+                domainIds.remove(domain);
+            }
+            freeIds[freeCount++] = id;
+        }
+        rewriteDomains();
+        Log.i(TAG, "Reclaimed " + freeCount + " domain ids");
+        return freeCount > 0;
+    }
+
+    // Replaces the dictionary file with the live entries only, so it does not grow
+    // with every reuse. The old file stays valid if this fails since later entries
+    // for an id win on load.
+    private void rewriteDomains() {
+        closeDomainOut();
+        File temp = new File(domainFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for (int id = 0; id < domains.size(); id++) {
+                String domain = domains.get(id);
+                if (domain != null) {
+                    writeDomain(out, id, domain);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error rewriting domain dictionary", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(domainFile)) {
+            Log.e(TAG, "Error replacing domain dictionary");
+            temp.delete();
+        }
+    }
+
+    private static void writeDomain(DataOutputStream out, int id, String domain) throws IOException {
+        out.writeInt(id);
+        out.writeUTF(domain);
+    }
+
+    private void loadDomains() {
+        if (!domainFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        try (FileInputStream file = new FileInputStream(domainFile);
+             DataInputStream in = new DataInputStream(file)) {
+            while (true) {
+                int id = in.readInt();
+                String domain = in.readUTF();
+                if (id < 0 || id >= MAX_DOMAINS) {
+                    break;
+                }
+                while (domains.size() <= id) {
+                    domains.add(null);
+                }
+                // A later entry for an id reuses it
+                String previous = domains.set(id, domain);
+                if (previous != null) {
+                    domainIds.remove(previous);
+                }
+                domainIds.put(domain, id);
+                validLength = file.getChannel().position();
+            }
+        } catch (EOFException e) {
+            // End of dictionary
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading domain dictionary", e);
+        }
+        for (int id = domains.size() - 1; id >= 0; id--) {
+            if (domains.get(id) == null) {
+                freeIds[freeCount++] = id;
+            }
+        }
+
+        // Cut off an entry torn by process death so later appends stay aligned
+        if (domainFile.length() != validLength) {
+            try (RandomAccessFile raf = new RandomAccessFile(domainFile, "rw")) {
+                raf.setLength(validLength);
+            } catch (IOException e) {
+                Log.e(TAG, "Error truncating domain dictionary", e);
+            }
+        }
+    }
+
+    private void closeDomainOut() {
+        if (domainOut != null) {
+            try {
+                domainOut.close();
+            } catch (IOException e) {
+                // Nothing left to flush
+            }
+            domainOut = null;
+        }
+    }
+}
@@ -15,9 +15,9 @@ public class NetworkMonitor {
 
     private final Context context;
     private final ConnectivityManager connectivityManager;
-    private boolean isWifi = false;
-    private boolean isMobile = false;
-    private boolean isConnected = false;
+    private volatile boolean isWifi = false;
+    private volatile boolean isMobile = false;
+    private volatile boolean isConnected = false;
 
     public interface NetworkStateListener {
         void onNetworkStateChanged(boolean isConnected, boolean isWifi, boolean isMobile);
@@ -1,61 +1,47 @@
 package com.fire.firewall;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Set;
 
 public class PacketFilter {
     private static final String TAG = "PacketFilter";
     private final Context context;
     private final RuleManager ruleManager;
-    private Set<Integer> blockedUids = new HashSet<>();
 
     public PacketFilter(Context context) {
         this.context = context;
         this.ruleManager = RuleManager.getInstance(context);
-        loadBlockedUids();
     }
 
-    public void reloadRules() {
-        loadBlockedUids();
+    // Whether a flow's verdict can still depend on an owner that is not known yet
+    boolean hasBlockedApps() {
+        return ruleManager.getSnapshot().getBlockedUidCount() > 0;
     }
 
-    private void loadBlockedUids() {
-        blockedUids.clear();
-        PackageManager pm = context.getPackageManager();
-
-        for (AppRule rule : ruleManager.getAppRules()) {
-            if (rule.isBlocked()) {
-                try {
-                    int uid = pm.getApplicationInfo(rule.getPackageName(), 0).uid;
-                    blockedUids.add(uid);
-                } catch (PackageManager.NameNotFoundException e) {
-                    Log.w(TAG, "Package not found: " + rule.getPackageName());
-                }
-            }
-        }
+    public boolean shouldBlock(ByteBuffer packet, int uid) {
+        return shouldBlock(ruleManager.getSnapshot(), uid, packet.getInt(16));
+    }
 
-        Log.i(TAG, "Loaded " + blockedUids.size() + " blocked UIDs");
+    /**
+     * Returns the flow's cached verdict, deciding it again only when the rules
+     * changed since it was computed.
+     */
+    boolean shouldBlock(FlowTable flows, FlowTable.Flow flow) {
+        RuleSnapshot snapshot = ruleManager.getSnapshot();
+        if (flow.version != snapshot.getVersion()) {
+            flows.setVerdict(flow, snapshot.getVersion(), shouldBlock(snapshot, flow.uid, flow.destIp));
+        }
+        return flow.blocked;
     }
 
-    public boolean shouldBlock(ByteBuffer packet, int uid) {
+    private boolean shouldBlock(RuleSnapshot snapshot, int uid, int destIp) {
         // Block if UID is in blocked list
-        if (uid >= 0 && blockedUids.contains(uid)) {
+        if (uid >= 0 && snapshot.isUidBlocked(uid)) {
             return true;
         }
 
-        // Check IP rules
-        int destIp = packet.getInt(16);
-        for (IpRule rule : ruleManager.getIpRules()) {
-            if (rule.matches(destIp) && rule.isBlocked()) {
-                return true;
-            }
-        }
-
-        return false;
+        // Check IP rules, the longest matching prefix decides
+        return snapshot.lookupIp(destIp) == CidrTree.BLOCK;
     }
 }
@@ -0,0 +1,240 @@
+package com.fire.firewall;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves packets from the tun device through a fixed set of worker threads and back.
+ * One reader hands each packet to the worker owning its flow, so packets of a flow
+ * stay in order, and one writer drains every worker's output ring to the device.
+ * Hand-offs go through preallocated rings; when a worker falls behind its ring fills
+ * up and new packets for it are dropped instead of stalling the reader.
+ */
+public class PacketPipeline {
+    private static final String TAG = "PacketPipeline";
+    private static final int MAX_PACKET_SIZE = 32767;
+    private static final int RING_CAPACITY = 256;
+    private static final int MAX_WORKERS = 4;
+    private static final int READ_BATCH = 32;
+    private static final int WRITE_BATCH = 32;
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+    private static final long STOP_TIMEOUT_MS = 500;
+
+    public interface Handler {
+        void handle(ByteBuffer packet, PacketSink out) throws IOException;
+
+        // Called on the worker thread before each packet and after each idle park, for
+        // work that does not arrive through the input ring
+        default void poll(PacketSink out) throws IOException {
+        }
+
+        // Called on the worker thread once it stops taking packets
+        default void close() {
+        }
+    }
+
+    public interface HandlerFactory {
+        Handler create(int workerIndex);
+    }
+
+    private final TunDevice tun;
+    private final int slotSize;
+    private final Thread readerThread;
+    private final Thread writerThread;
+    private final Thread[] workerThreads;
+    private final PacketRing[] workerInputs;
+    private final Wakeup writerWakeup;
+    private volatile PacketRing[] outputs = new PacketRing[0];
+    private volatile boolean running = false;
+
+    public PacketPipeline(TunDevice tun, int slotSize, HandlerFactory factory) {
+        this.tun = tun;
+        this.slotSize = slotSize;
+
+        int workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+        workerThreads = new Thread[workerCount];
+        workerInputs = new PacketRing[workerCount];
+
+        writerThread = new Thread(this::runWriter, "FirewallTunWriter");
+        writerWakeup = new Wakeup(writerThread);
+
+        for (int i = 0; i < workerCount; i++) {
+            PacketRing input = new PacketRing(RING_CAPACITY, slotSize);
+            PacketRing output = openSink();
+            Handler handler = factory.create(i);
+            workerInputs[i] = input;
+            workerThreads[i] = new Thread(() -> runWorker(input, output, handler), "FirewallWorker-" + i);
+        }
+
+        readerThread = new Thread(this::runReader, "FirewallTunReader");
+    }
+
+    /**
+     * Registers an extra single-producer ring drained by the writer, for components
+     * that inject packets from their own thread.
+     */
+    public synchronized PacketRing openSink() {
+        PacketRing ring = new PacketRing(RING_CAPACITY, slotSize);
+        ring.setConsumer(writerWakeup);
+        PacketRing[] current = outputs;
+        PacketRing[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = ring;
+        outputs = next;
+        return ring;
+    }
+
+    public void start() {
+        running = true;
+        writerThread.start();
+        for (Thread worker : workerThreads) {
+            worker.start();
+        }
+        readerThread.start();
+        Log.i(TAG, "Started with " + workerThreads.length + " workers");
+    }
+
+    // Threads are unparked rather than interrupted, since an interrupt would close the
+    // interruptible channels they use; the reader notices within one poll timeout.
+    // Waits briefly for the workers so their handlers have been closed on return.
+    public void stop() {
+        running = false;
+        for (Thread worker : workerThreads) {
+            LockSupport.unpark(worker);
+        }
+        LockSupport.unpark(writerThread);
+
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+        try {
+            for (Thread worker : workerThreads) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    worker.join(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void runReader() {
+        ByteBuffer[] batch = new ByteBuffer[READ_BATCH];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        }
+
+        while (running) {
+            try {
+                int count = tun.read(batch);
+                for (int i = 0; i < count; i++) {
+                    workerInputs[selectWorker(batch[i])].write(batch[i]);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "Error reading from tun", e);
+                }
+                break;
+            }
+        }
+    }
+
+    private void runWorker(PacketRing input, PacketRing output, Handler handler) {
+        PacketRing[] watched = { input };
+        Wakeup wakeup = new Wakeup(Thread.currentThread());
+        input.setConsumer(wakeup);
+
+        while (running) {
+            try {
+                handler.poll(output);
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing packet", e);
+            }
+
+            ByteBuffer packet = input.peek();
+            if (packet == null) {
+                wakeup.await(watched, IDLE_PARK_NANOS);
+                continue;
+            }
+
+            try {
+                handler.handle(packet, output);
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing packet", e);
+            } finally {
+                input.release();
+            }
+        }
+        handler.close();
+    }
+
+    private void runWriter() {
+        ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+
+        while (running) {
+            PacketRing[] rings = outputs;
+            boolean wrote = false;
+
+            for (PacketRing ring : rings) {
+                int count;
+                do {
+                    count = 0;
+                    ByteBuffer packet;
+                    while (count < batch.length && (packet = ring.peek(count)) != null) {
+                        batch[count++] = packet;
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+
+                    try {
+                        tun.write(batch, count);
+                    } catch (IOException e) {
+                        if (running) {
+                            Log.e(TAG, "Error writing to tun", e);
+                        }
+                    } finally {
+                        ring.release(count);
+                    }
+                    wrote = true;
+                } while (count == batch.length);
+            }
+
+            if (!wrote) {
+                writerWakeup.await(rings, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // Hashes the 5-tuple so every packet of a flow lands on the same worker
+    private int selectWorker(ByteBuffer packet) {
+        if (workerInputs.length == 1 || packet.limit() < 20) {
+            return 0;
+        }
+
+        int hash;
+        int version = (packet.get(0) >> 4) & 0xF;
+        if (version == 4) {
+            int protocol = packet.get(9) & 0xFF;
+            int headerLength = (packet.get(0) & 0x0F) * 4;
+            hash = protocol * 31 + packet.getInt(12);
+            hash = hash * 31 + packet.getInt(16);
+            if ((protocol == 6 || protocol == 17) && packet.limit() >= headerLength + 4) {
+                hash = hash * 31 + packet.getInt(headerLength);
+            }
+        } else if (packet.limit() >= 40) {
+            hash = packet.getInt(20) * 31 + packet.getInt(36);
+        } else {
+            return 0;
+        }
+
+        hash ^= hash >>> 16;
+        return (hash & 0x7FFFFFFF) % workerInputs.length;
+    }
+}
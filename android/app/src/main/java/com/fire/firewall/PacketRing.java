@@ -0,0 +1,119 @@
+package com.fire.firewall;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer / single-consumer ring of preallocated direct packet
+ * buffers. The producer fills a claimed slot in place and publishes it, the consumer
+ * peeks and releases it; nothing is allocated after construction.
+ */
+public final class PacketRing implements PacketSink {
+    private final ByteBuffer[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Signal consumer;
+
+    /**
+     * Notified after every publish so a parked consumer can be woken.
+     */
+    public interface Signal {
+        void signal();
+    }
+
+    public PacketRing(int capacity, int slotSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        slots = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = ByteBuffer.allocateDirect(slotSize);
+        }
+        mask = capacity - 1;
+    }
+
+    public void setConsumer(Signal signal) {
+        this.consumer = signal;
+    }
+
+    // Producer side
+
+    /**
+     * Returns a cleared slot to fill, or null if the ring is full. The caller must
+     * flip the buffer and call {@link #publish()} before claiming again.
+     */
+    public ByteBuffer claim() {
+        long t = tail.get();
+        if (t - head.get() >= slots.length) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        ByteBuffer slot = slots[(int) t & mask];
+        slot.clear();
+        return slot;
+    }
+
+    public void publish() {
+        // Volatile store so a consumer that is about to park sees the new tail
+        tail.set(tail.get() + 1);
+        Signal signal = consumer;
+        if (signal != null) {
+            signal.signal();
+        }
+    }
+
+    /**
+     * Copies a packet into the next slot and publishes it. Returns false if the ring
+     * is full or the packet does not fit a slot.
+     */
+    @Override
+    public boolean write(ByteBuffer packet) {
+        ByteBuffer slot = claim();
+        if (slot == null) {
+            return false;
+        }
+        if (packet.remaining() > slot.capacity()) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int position = packet.position();
+        slot.put(packet);
+        packet.position(position);
+        slot.flip();
+        publish();
+        return true;
+    }
+
+    // Consumer side
+
+    public ByteBuffer peek() {
+        return peek(0);
+    }
+
+    // Returns the index-th unconsumed packet so a batch can be collected before releasing
+    public ByteBuffer peek(int index) {
+        long h = head.get() + index;
+        if (h >= tail.get()) {
+            return null;
+        }
+        return slots[(int) h & mask];
+    }
+
+    public void release() {
+        release(1);
+    }
+
+    public void release(int count) {
+        head.lazySet(head.get() + count);
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,11 @@
+package com.fire.firewall;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for packets headed back into the tunnel. Implementations copy the
+ * packet's remaining bytes and leave its position untouched.
+ */
+public interface PacketSink {
+    boolean write(ByteBuffer packet);
+}
@@ -0,0 +1,179 @@
+package com.fire.firewall;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds IPv4 TCP and UDP packets headed back into the tunnel, checksums included.
+ */
+final class Packets {
+    static final int PROTOCOL_TCP = 6;
+    static final int PROTOCOL_UDP = 17;
+
+    static final int TCP_FIN = 0x01;
+    static final int TCP_SYN = 0x02;
+    static final int TCP_RST = 0x04;
+    static final int TCP_PSH = 0x08;
+    static final int TCP_ACK = 0x10;
+
+    static final int IP_HEADER_LENGTH = 20;
+    static final int TCP_HEADER_LENGTH = 20;
+    static final int UDP_HEADER_LENGTH = 8;
+    private static final int MSS_OPTION_LENGTH = 4;
+
+    private Packets() {
+    }
+
+    static int ipHeaderLength(ByteBuffer packet) {
+        return (packet.get(0) & 0x0F) * 4;
+    }
+
+    // Total length from the IP header, clamped to what was actually read
+    static int ipTotalLength(ByteBuffer packet) {
+        return Math.min(packet.getShort(2) & 0xFFFF, packet.limit());
+    }
+
+    static boolean isFragment(ByteBuffer packet) {
+        int flagsOffset = packet.getShort(6) & 0xFFFF;
+        return (flagsOffset & 0x2000) != 0 || (flagsOffset & 0x1FFF) != 0;
+    }
+
+    /**
+     * Writes a TCP segment carrying data[offset, offset + length) into out, leaving
+     * out flipped. SYN segments advertise the given MSS.
+     */
+    static void buildTcp(ByteBuffer out, int ipId, int srcIp, int srcPort, int dstIp, int dstPort,
+                         int seq, int ack, int flags, int window, int mss,
+                         ByteBuffer data, int offset, int length) {
+        int headerLength = TCP_HEADER_LENGTH + ((flags & TCP_SYN) != 0 ? MSS_OPTION_LENGTH : 0);
+        int tcpLength = headerLength + length;
+        int total = IP_HEADER_LENGTH + tcpLength;
+
+        out.clear();
+        writeIpHeader(out, total, ipId, 0, PROTOCOL_TCP, srcIp, dstIp);
+
+        int t = IP_HEADER_LENGTH;
+        out.putShort(t, (short) srcPort);
+        out.putShort(t + 2, (short) dstPort);
+        out.putInt(t + 4, seq);
+        out.putInt(t + 8, ack);
+        out.put(t + 12, (byte) ((headerLength / 4) << 4));
+        out.put(t + 13, (byte) flags);
+        out.putShort(t + 14, (short) window);
+        out.putShort(t + 16, (short) 0);
+        out.putShort(t + 18, (short) 0);
+        if (headerLength > TCP_HEADER_LENGTH) {
+            out.put(t + 20, (byte) 2);
+            out.put(t + 21, (byte) MSS_OPTION_LENGTH);
+            out.putShort(t + 22, (short) mss);
+        }
+        if (length > 0) {
+            copy(data, offset, out, t + headerLength, length);
+        }
+        out.putShort(t + 16, (short) transportChecksum(out, t, tcpLength, PROTOCOL_TCP, srcIp, dstIp));
+
+        out.position(0);
+        out.limit(total);
+    }
+
+    /**
+     * Writes a complete UDP datagram into out, leaving out flipped. The result may be
+     * larger than the MTU; see {@link #writeFragmented}.
+     */
+    static void buildUdp(ByteBuffer out, int ipId, int srcIp, int srcPort, int dstIp, int dstPort,
+                         ByteBuffer data, int offset, int length) {
+        int udpLength = UDP_HEADER_LENGTH + length;
+        int total = IP_HEADER_LENGTH + udpLength;
+
+        out.clear();
+        writeIpHeader(out, total, ipId, 0, PROTOCOL_UDP, srcIp, dstIp);
+
+        int u = IP_HEADER_LENGTH;
+        out.putShort(u, (short) srcPort);
+        out.putShort(u + 2, (short) dstPort);
+        out.putShort(u + 4, (short) udpLength);
+        out.putShort(u + 6, (short) 0);
+        copy(data, offset, out, u + UDP_HEADER_LENGTH, length);
+
+        int checksum = transportChecksum(out, u, udpLength, PROTOCOL_UDP, srcIp, dstIp);
+        out.putShort(u + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+
+        out.position(0);
+        out.limit(total);
+    }
+
+    /**
+     * Writes a packet built by this class to the sink, splitting it into IPv4
+     * fragments through the scratch buffer when it exceeds the MTU.
+     */
+    static void writeFragmented(ByteBuffer packet, int mtu, ByteBuffer scratch, PacketSink out) {
+        int total = packet.limit();
+        if (total <= mtu) {
+            out.write(packet);
+            return;
+        }
+
+        int chunk = (mtu - IP_HEADER_LENGTH) & ~7;
+        for (int offset = IP_HEADER_LENGTH; offset < total; offset += chunk) {
+            int length = Math.min(chunk, total - offset);
+            boolean more = offset + length < total;
+
+            scratch.clear();
+            copy(packet, 0, scratch, 0, IP_HEADER_LENGTH);
+            copy(packet, offset, scratch, IP_HEADER_LENGTH, length);
+            int flagsOffset = ((offset - IP_HEADER_LENGTH) / 8) | (more ? 0x2000 : 0);
+            scratch.putShort(2, (short) (IP_HEADER_LENGTH + length));
+            scratch.putShort(6, (short) flagsOffset);
+            scratch.putShort(10, (short) 0);
+            scratch.putShort(10, (short) checksum(scratch, 0, IP_HEADER_LENGTH, 0));
+
+            scratch.position(0);
+            scratch.limit(IP_HEADER_LENGTH + length);
+            out.write(scratch);
+        }
+    }
+
+    private static void writeIpHeader(ByteBuffer out, int totalLength, int id, int flagsOffset,
+                                      int protocol, int srcIp, int dstIp) {
+        out.put(0, (byte) 0x45);
+        out.put(1, (byte) 0);
+        out.putShort(2, (short) totalLength);
+        out.putShort(4, (short) id);
+        out.putShort(6, (short) flagsOffset);
+        out.put(8, (byte) 64);
+        out.put(9, (byte) protocol);
+        out.putShort(10, (short) 0);
+        out.putInt(12, srcIp);
+        out.putInt(16, dstIp);
+        out.putShort(10, (short) checksum(out, 0, IP_HEADER_LENGTH, 0));
+    }
+
+    private static int transportChecksum(ByteBuffer buf, int offset, int length, int protocol, int srcIp, int dstIp) {
+        long pseudo = (srcIp >>> 16) + (srcIp & 0xFFFF) + (dstIp >>> 16) + (dstIp & 0xFFFF) + protocol + length;
+        return checksum(buf, offset, length, pseudo);
+    }
+
+    static int checksum(ByteBuffer buf, int offset, int length, long sum) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 1 < end; i += 2) {
+            sum += buf.getShort(i) & 0xFFFF;
+        }
+        if (i < end) {
+            sum += (buf.get(i) & 0xFF) << 8;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) (~sum & 0xFFFF);
+    }
+
+    private static void copy(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int length) {
+        if (src.hasArray() && dst.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + srcOffset, dst.array(), dst.arrayOffset() + dstOffset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst.put(dstOffset + i, src.get(srcOffset + i));
+            }
+        }
+    }
+}
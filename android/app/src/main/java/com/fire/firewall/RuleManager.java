@@ -8,7 +8,14 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RuleManager {
     private static final String TAG = "RuleManager";
@@ -19,13 +26,22 @@ public class RuleManager {
 
     private static RuleManager instance;
     private final Context context;
-    private final List<AppRule> appRules = new ArrayList<>();
-    private final List<DomainRule> domainRules = new ArrayList<>();
-    private final List<IpRule> ipRules = new ArrayList<>();
+    // Keyed by package name, domain and ip/prefix; guarded by lock
+    private final Object lock = new Object();
+    private final Map<String, AppRule> appRules = new LinkedHashMap<>();
+    private final Map<String, DomainRule> domainRules = new LinkedHashMap<>();
+    private final Map<String, IpRule> ipRules = new LinkedHashMap<>();
+    private final ExecutorService compiler = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean rebuildQueued = new AtomicBoolean(false);
+    private final AtomicLong nextVersion = new AtomicLong(1);
+    private volatile RuleSnapshot snapshot = RuleSnapshot.empty();
 
-    private RuleManager(Context context) {
+    RuleManager(Context context) {
         this.context = context.getApplicationContext();
         loadRules();
+        compileSnapshot();
+        // Installs, removals and updates can change the UIDs of blocked apps
+        AppCatalog.getInstance(this.context).addChangeListener(this::rebuildSnapshot);
     }
 
     public static synchronized RuleManager getInstance(Context context) {
@@ -39,41 +55,31 @@ public class RuleManager {
         try {
             SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
 
-            // Load app rules
-            String appJson = prefs.getString(KEY_APP_RULES, "[]");
-            JSONArray appArray = new JSONArray(appJson);
-            synchronized (appRules) {
+            synchronized (lock) {
                 appRules.clear();
+                JSONArray appArray = new JSONArray(prefs.getString(KEY_APP_RULES, "[]"));
                 for (int i = 0; i < appArray.length(); i++) {
                     AppRule rule = AppRule.fromJson(appArray.getJSONObject(i));
                     if (rule != null) {
-                        appRules.add(rule);
+                        appRules.put(rule.getPackageName(), rule);
                     }
                 }
-            }
 
-            // Load domain rules
-            String domainJson = prefs.getString(KEY_DOMAIN_RULES, "[]");
-            JSONArray domainArray = new JSONArray(domainJson);
-            synchronized (domainRules) {
                 domainRules.clear();
+                JSONArray domainArray = new JSONArray(prefs.getString(KEY_DOMAIN_RULES, "[]"));
                 for (int i = 0; i < domainArray.length(); i++) {
                     DomainRule rule = DomainRule.fromJson(domainArray.getJSONObject(i));
                     if (rule != null) {
-                        domainRules.add(rule);
+                        domainRules.put(rule.getDomain(), rule);
                     }
                 }
-            }
 
-            // Load IP rules
-            String ipJson = prefs.getString(KEY_IP_RULES, "[]");
-            JSONArray ipArray = new JSONArray(ipJson);
-            synchronized (ipRules) {
                 ipRules.clear();
+                JSONArray ipArray = new JSONArray(prefs.getString(KEY_IP_RULES, "[]"));
                 for (int i = 0; i < ipArray.length(); i++) {
                     IpRule rule = IpRule.fromJson(ipArray.getJSONObject(i));
                     if (rule != null) {
-                        ipRules.add(rule);
+                        ipRules.put(ipKey(rule), rule);
                     }
                 }
             }
@@ -85,37 +91,75 @@ public class RuleManager {
         }
     }
 
-    private void saveRules() {
+    // Snapshot publication
+
+    public RuleSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Schedules a new snapshot to be compiled off the caller's thread. Requests that
+     * arrive while one is already queued are folded into it.
+     */
+    public void rebuildSnapshot() {
+        if (rebuildQueued.compareAndSet(false, true)) {
+            compiler.execute(() -> {
+                rebuildQueued.set(false);
+                compileSnapshot();
+            });
+        }
+    }
+
+    private void compileSnapshot() {
+        try {
+            RuleSnapshot compiled = RuleSnapshot.compile(
+                nextVersion.getAndIncrement(),
+                AppCatalog.getInstance(context).getIndex(),
+                context.getPackageManager(),
+                getAppRules(),
+                getDomainRules(),
+                getIpRules()
+            );
+            snapshot = compiled;
+            Log.i(TAG, "Published rule snapshot v" + compiled.getVersion() + ": " +
+                  compiled.getBlockedUidCount() + " blocked UIDs");
+        } catch (Exception e) {
+            Log.e(TAG, "Error compiling rule snapshot", e);
+        }
+    }
+
+    /**
+     * Writes the rule lists flagged as changed in one preferences edit. Called with
+     * lock held, so concurrent commits cannot store an older state last.
+     */
+    private void saveRules(boolean apps, boolean domains, boolean ips) {
         try {
             SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
             SharedPreferences.Editor editor = prefs.edit();
 
-            // Save app rules
-            JSONArray appArray = new JSONArray();
-            synchronized (appRules) {
-                for (AppRule rule : appRules) {
+            if (apps) {
+                JSONArray appArray = new JSONArray();
+                for (AppRule rule : appRules.values()) {
                     appArray.put(rule.toJson());
                 }
+                editor.putString(KEY_APP_RULES, appArray.toString());
             }
-            editor.putString(KEY_APP_RULES, appArray.toString());
 
-            // Save domain rules
-            JSONArray domainArray = new JSONArray();
-            synchronized (domainRules) {
-                for (DomainRule rule : domainRules) {
+            if (domains) {
+                JSONArray domainArray = new JSONArray();
+                for (DomainRule rule : domainRules.values()) {
                     domainArray.put(rule.toJson());
                 }
+                editor.putString(KEY_DOMAIN_RULES, domainArray.toString());
             }
-            editor.putString(KEY_DOMAIN_RULES, domainArray.toString());
 
-            // Save IP rules
-            JSONArray ipArray = new JSONArray();
-            synchronized (ipRules) {
-                for (IpRule rule : ipRules) {
+            if (ips) {
+                JSONArray ipArray = new JSONArray();
+                for (IpRule rule : ipRules.values()) {
                     ipArray.put(rule.toJson());
                 }
+                editor.putString(KEY_IP_RULES, ipArray.toString());
             }
-            editor.putString(KEY_IP_RULES, ipArray.toString());
 
             editor.apply();
         } catch (Exception e) {
@@ -123,76 +167,152 @@ public class RuleManager {
         }
     }
 
+    private static String ipKey(IpRule rule) {
+        return rule.getIp() + "/" + rule.getPrefixLength();
+    }
+
+    // Transactions
+
+    /**
+     * Starts a batch of rule changes. Nothing is visible until
+     * {@link Editor#commit()}, which applies them together, persists once and
+     * publishes one new snapshot.
+     */
+    public Editor beginEdit() {
+        return new Editor();
+    }
+
+    /**
+     * Collects rule changes for one commit. Not thread-safe; use one editor per
+     * thread.
+     */
+    public final class Editor {
+        private final List<Runnable> edits = new ArrayList<>();
+        private boolean appsChanged;
+        private boolean domainsChanged;
+        private boolean ipsChanged;
+
+        private Editor() {
+        }
+
+        public Editor putAppRule(AppRule rule) {
+            edits.add(() -> appsChanged |= !rule.equals(appRules.put(rule.getPackageName(), rule)));
+            return this;
+        }
+
+        public Editor removeAppRule(String packageName) {
+            edits.add(() -> appsChanged |= appRules.remove(packageName) != null);
+            return this;
+        }
+
+        // Removes the rules of every app not in packageNames
+        public Editor retainAppRules(Collection<String> packageNames) {
+            edits.add(() -> appsChanged |= appRules.keySet().retainAll(packageNames));
+            return this;
+        }
+
+        public Editor clearAppRules() {
+            edits.add(() -> {
+                appsChanged |= !appRules.isEmpty();
+                appRules.clear();
+            });
+            return this;
+        }
+
+        public Editor putDomainRule(DomainRule rule) {
+            edits.add(() -> domainsChanged |= !rule.equals(domainRules.put(rule.getDomain(), rule)));
+            return this;
+        }
+
+        public Editor removeDomainRule(String domain) {
+            edits.add(() -> domainsChanged |= domainRules.remove(domain) != null);
+            return this;
+        }
+
+        public Editor putIpRule(IpRule rule) {
+            edits.add(() -> ipsChanged |= !rule.equals(ipRules.put(ipKey(rule), rule)));
+            return this;
+        }
+
+        // Removes the rules for ip with any prefix length
+        public Editor removeIpRule(String ip) {
+            edits.add(() -> ipsChanged |= ipRules.values().removeIf(r -> r.getIp().equals(ip)));
+            return this;
+        }
+
+        /**
+         * Applies the collected changes atomically, writes only the rule lists they
+         * touched and schedules one snapshot rebuild. Returns false if nothing
+         * changed, in which case nothing is written or rebuilt.
+         */
+        public boolean commit() {
+            boolean changed;
+            synchronized (lock) {
+                for (Runnable edit : edits) {
+                    edit.run();
+                }
+                edits.clear();
+                changed = appsChanged || domainsChanged || ipsChanged;
+                if (changed) {
+                    saveRules(appsChanged, domainsChanged, ipsChanged);
+                }
+            }
+            appsChanged = false;
+            domainsChanged = false;
+            ipsChanged = false;
+            if (changed) {
+                rebuildSnapshot();
+            }
+            return changed;
+        }
+    }
+
     // App rules
     public List<AppRule> getAppRules() {
-        synchronized (appRules) {
-            return new ArrayList<>(appRules);
-        }
+        return copy(appRules.values());
     }
 
     public void addAppRule(AppRule rule) {
-        synchronized (appRules) {
-            // Remove existing rule for same package
-            appRules.removeIf(r -> r.getPackageName().equals(rule.getPackageName()));
-            appRules.add(rule);
-        }
-        saveRules();
+        beginEdit().putAppRule(rule).commit();
     }
 
     public void removeAppRule(String packageName) {
-        synchronized (appRules) {
-            appRules.removeIf(r -> r.getPackageName().equals(packageName));
-        }
-        saveRules();
+        beginEdit().removeAppRule(packageName).commit();
     }
 
     public void clearAppRules() {
-        synchronized (appRules) {
-            appRules.clear();
-        }
-        saveRules();
+        beginEdit().clearAppRules().commit();
     }
 
     // Domain rules
     public List<DomainRule> getDomainRules() {
-        synchronized (domainRules) {
-            return new ArrayList<>(domainRules);
-        }
+        return copy(domainRules.values());
     }
 
     public void addDomainRule(DomainRule rule) {
-        synchronized (domainRules) {
-            domainRules.removeIf(r -> r.getDomain().equals(rule.getDomain()));
-            domainRules.add(rule);
-        }
-        saveRules();
+        beginEdit().putDomainRule(rule).commit();
     }
 
     public void removeDomainRule(String domain) {
-        synchronized (domainRules) {
-            domainRules.removeIf(r -> r.getDomain().equals(domain));
-        }
-        saveRules();
+        beginEdit().removeDomainRule(domain).commit();
     }
 
     // IP rules
     public List<IpRule> getIpRules() {
-        synchronized (ipRules) {
-            return new ArrayList<>(ipRules);
-        }
+        return copy(ipRules.values());
     }
 
     public void addIpRule(IpRule rule) {
-        synchronized (ipRules) {
-            ipRules.add(rule);
-        }
-        saveRules();
+        beginEdit().putIpRule(rule).commit();
     }
 
     public void removeIpRule(String ip) {
-        synchronized (ipRules) {
-            ipRules.removeIf(r -> r.getIp().equals(ip));
+        beginEdit().removeIpRule(ip).commit();
+    }
+
+    private <T> List<T> copy(Collection<T> rules) {
+        synchronized (lock) {
+            return new ArrayList<>(rules);
         }
-        saveRules();
     }
 }
@@ -0,0 +1,108 @@
+package com.fire.firewall;
+
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable, pre-compiled view of all rules. RuleManager builds a new one off the
+ * packet path whenever rules change and publishes it through a single volatile
+ * reference, so readers never lock and never copy.
+ */
+public final class RuleSnapshot {
+    private static final String TAG = "RuleSnapshot";
+
+    private final long version;
+    private final int[] blockedUids;
+    private final DomainTrie blockedDomains;
+    private final CidrTree ipRules;
+
+    private RuleSnapshot(long version, int[] blockedUids, DomainTrie blockedDomains, CidrTree ipRules) {
+        this.version = version;
+        this.blockedUids = blockedUids;
+        this.blockedDomains = blockedDomains;
+        this.ipRules = ipRules;
+    }
+
+    public static RuleSnapshot empty() {
+        return new RuleSnapshot(0, new int[0], DomainTrie.empty(), CidrTree.empty());
+    }
+
+    /**
+     * Resolves app rules through index, asking pm only for packages the index does
+     * not know yet, e.g. before the app catalog's first scan.
+     */
+    public static RuleSnapshot compile(long version, UidPackageIndex index, PackageManager pm, List<AppRule> appRules,
+                                       List<DomainRule> domainRules, List<IpRule> ipRules) {
+        // Sorted, deduplicated UIDs so lookups are a binary search over primitives
+        int[] uids = new int[appRules.size()];
+        int uidCount = 0;
+        for (AppRule rule : appRules) {
+            if (rule.isBlocked()) {
+                int uid = index.getUid(rule.getPackageName());
+                if (uid >= 0) {
+                    uids[uidCount++] = uid;
+                    continue;
+                }
+                try {
+                    // Stored only once resolved, a missing package must not leave a slot behind
+                    uid = pm.getApplicationInfo(rule.getPackageName(), 0).uid;
+                    uids[uidCount++] = uid;
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(TAG, "Package not found: " + rule.getPackageName());
+                }
+            }
+        }
+        Arrays.sort(uids, 0, uidCount);
+        int unique = 0;
+        for (int i = 0; i < uidCount; i++) {
+            if (unique == 0 || uids[unique - 1] != uids[i]) {
+                uids[unique++] = uids[i];
+            }
+        }
+
+        // "example.com" and "*.example.com" both cover the domain and all its subdomains
+        DomainTrie.Builder domains = new DomainTrie.Builder();
+        for (DomainRule rule : domainRules) {
+            if (rule.isBlocked()) {
+                String domain = rule.getDomain();
+                domains.add(domain.startsWith("*.") ? domain.substring(2) : domain);
+            }
+        }
+
+        CidrTree.Builder cidrs = new CidrTree.Builder();
+        for (IpRule rule : ipRules) {
+            if (rule.isValid()) {
+                cidrs.add(rule.getAddress(), rule.getPrefixLength(), rule.isBlocked());
+            } else {
+                Log.w(TAG, "Skipping invalid IP rule: " + rule.getIp() + "/" + rule.getPrefixLength());
+            }
+        }
+
+        DomainTrie domainTrie = domains.build();
+        return new RuleSnapshot(version, Arrays.copyOf(uids, unique),
+            domainTrie.withFilter(DomainFilter.build(domainTrie)), cidrs.build());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getBlockedUidCount() {
+        return blockedUids.length;
+    }
+
+    public boolean isUidBlocked(int uid) {
+        return Arrays.binarySearch(blockedUids, uid) >= 0;
+    }
+
+    public DomainTrie getBlockedDomains() {
+        return blockedDomains;
+    }
+
+    public byte lookupIp(int ip) {
+        return ipRules.lookup(ip);
+    }
+}
@@ -0,0 +1,13 @@
+package com.fire.firewall;
+
+import java.net.DatagramSocket;
+import java.net.Socket;
+
+/**
+ * Exempts upstream sockets from the tunnel so forwarded traffic does not loop back
+ * into it. Implemented by the VPN service; a no-op works outside of a VPN.
+ */
+public interface SocketProtector {
+    boolean protect(Socket socket);
+    boolean protect(DatagramSocket socket);
+}
@@ -0,0 +1,316 @@
+package com.fire.firewall;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One proxied TCP connection: the app talks TCP to us through the tunnel and we relay
+ * the byte stream over a protected upstream socket. Only the engine thread touches it.
+ */
+final class TcpSession extends TimerWheel.Timer {
+    static final int STATE_CONNECTING = 0;
+    static final int STATE_SYN_RECEIVED = 1;
+    static final int STATE_ESTABLISHED = 2;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final long RETRANSMIT_MS = 1000;
+    static final long HANDSHAKE_TIMEOUT_MS = 30_000;
+    private static final long IDLE_TIMEOUT_MS = 10 * 60_000;
+
+    final long key;
+    final int clientIp;
+    final int clientPort;
+    final int remoteIp;
+    final int remotePort;
+
+    private final ForwardingEngine engine;
+    SocketChannel channel;
+    SelectionKey selectionKey;
+    int state = STATE_CONNECTING;
+
+    // Next sequence number expected from the app, i.e. what we acknowledge
+    int appNextSeq;
+    // Oldest sequence number sent to the app and not yet acknowledged; our SYN's own
+    // number until the app acknowledges it, then the first byte of toApp
+    int sendBase;
+    // Sequence number of the next byte we send to the app
+    int sendNext;
+    private int appWindow;
+
+    // Bytes from the app the upstream socket has not accepted yet, allocated on demand
+    private ByteBuffer toUpstream;
+    // Bytes from upstream starting at sendBase, kept until the app acknowledges them
+    private ByteBuffer toApp;
+
+    private boolean appFin;
+    private boolean upstreamEof;
+    private boolean finSent;
+    private long lastActive;
+    private long lastAckProgress;
+
+    TcpSession(ForwardingEngine engine, long key, int clientIp, int clientPort, int remoteIp, int remotePort,
+               int clientIsn, int serverIsn, int appWindow, long now) {
+        this.engine = engine;
+        this.key = key;
+        this.clientIp = clientIp;
+        this.clientPort = clientPort;
+        this.remoteIp = remoteIp;
+        this.remotePort = remotePort;
+        this.appNextSeq = clientIsn + 1;
+        this.sendBase = serverIsn;
+        this.sendNext = serverIsn;
+        this.appWindow = appWindow;
+        this.lastActive = now;
+        this.lastAckProgress = now;
+    }
+
+    int advertisedWindow() {
+        return toUpstream == null ? BUFFER_SIZE : toUpstream.remaining();
+    }
+
+    // Upstream events
+
+    void onConnected(long now) throws IOException {
+        channel.finishConnect();
+        state = STATE_SYN_RECEIVED;
+        lastActive = now;
+        sendNext = sendBase + 1;
+        engine.sendTcp(this, Packets.TCP_SYN | Packets.TCP_ACK, sendBase, null, 0, 0);
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        engine.schedule(this, now + HANDSHAKE_TIMEOUT_MS);
+    }
+
+    void onReadable(long now) throws IOException {
+        if (toApp == null) {
+            toApp = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        int room = Math.min(toApp.remaining(), appWindow - (sendNext - dataStart()));
+        if (room <= 0) {
+            // The app's window is full; resume reading once it acknowledges data
+            updateInterest();
+            return;
+        }
+
+        int limit = toApp.limit();
+        toApp.limit(toApp.position() + room);
+        int read = channel.read(toApp);
+        toApp.limit(limit);
+
+        if (read < 0) {
+            upstreamEof = true;
+        } else if (read > 0) {
+            lastActive = now;
+        }
+        sendPending(now);
+        updateInterest();
+    }
+
+    void onWritable(long now) throws IOException {
+        flushToUpstream();
+        updateInterest();
+        // Window opened up again, tell the app
+        engine.sendTcp(this, Packets.TCP_ACK, sendNext, null, 0, 0);
+        lastActive = now;
+    }
+
+    // Segments from the app
+
+    void onSegment(int flags, int seq, int ack, int window, ByteBuffer packet, int offset, int length, long now)
+            throws IOException {
+        lastActive = now;
+
+        if ((flags & Packets.TCP_RST) != 0) {
+            engine.closeTcp(this, false);
+            return;
+        }
+        if ((flags & Packets.TCP_SYN) != 0) {
+            // Retransmitted SYN, our SYN-ACK may have been lost
+            if (state == STATE_SYN_RECEIVED) {
+                engine.sendTcp(this, Packets.TCP_SYN | Packets.TCP_ACK, sendBase, null, 0, 0);
+            }
+            return;
+        }
+        if (state == STATE_CONNECTING || (flags & Packets.TCP_ACK) == 0) {
+            return;
+        }
+
+        appWindow = window;
+        int acked = ack - sendBase;
+        if (acked > 0 && acked <= sendNext - sendBase) {
+            if (state == STATE_SYN_RECEIVED) {
+                // The SYN takes a sequence number but no byte of toApp
+                sendBase++;
+                acked--;
+                state = STATE_ESTABLISHED;
+                engine.schedule(this, now + IDLE_TIMEOUT_MS);
+            }
+            int dataAcked = Math.min(acked, toApp == null ? 0 : toApp.position());
+            if (dataAcked > 0) {
+                toApp.flip();
+                toApp.position(dataAcked);
+                toApp.compact();
+            }
+            sendBase = ack;
+            lastAckProgress = now;
+        }
+
+        if (length > 0) {
+            if (seq == appNextSeq && !appFin) {
+                appNextSeq += acceptFromApp(packet, offset, length);
+            }
+            // Acknowledge what we have, which also answers out-of-order segments
+            engine.sendTcp(this, Packets.TCP_ACK, sendNext, null, 0, 0);
+        }
+
+        if ((flags & Packets.TCP_FIN) != 0 && !appFin && seq + length == appNextSeq) {
+            appFin = true;
+            appNextSeq++;
+            engine.sendTcp(this, Packets.TCP_ACK, sendNext, null, 0, 0);
+            if (toUpstream == null || toUpstream.position() == 0) {
+                channel.shutdownOutput();
+            }
+        }
+
+        if (appFin && finSent && sendBase == sendNext) {
+            engine.closeTcp(this, false);
+            return;
+        }
+
+        sendPending(now);
+        updateInterest();
+    }
+
+    @Override
+    void onExpired(long now) {
+        long idleTimeout = state == STATE_ESTABLISHED ? IDLE_TIMEOUT_MS : HANDSHAKE_TIMEOUT_MS;
+        if (now - lastActive >= idleTimeout) {
+            engine.closeTcp(this, true);
+            return;
+        }
+
+        if (sendNext != sendBase && now - lastAckProgress >= RETRANSMIT_MS) {
+            retransmit();
+            lastAckProgress = now;
+        }
+
+        long deadline = lastActive + idleTimeout;
+        if (sendNext != sendBase) {
+            deadline = Math.min(deadline, lastAckProgress + RETRANSMIT_MS);
+        }
+        engine.schedule(this, deadline);
+    }
+
+    void close() {
+        try {
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private int acceptFromApp(ByteBuffer packet, int offset, int length) throws IOException {
+        int position = packet.position();
+        int limit = packet.limit();
+        try {
+            packet.limit(offset + length);
+            packet.position(offset);
+            int written = 0;
+            if (toUpstream == null || toUpstream.position() == 0) {
+                written = channel.write(packet);
+            }
+            if (packet.hasRemaining()) {
+                if (toUpstream == null) {
+                    toUpstream = ByteBuffer.allocate(BUFFER_SIZE);
+                }
+                int room = Math.min(toUpstream.remaining(), packet.remaining());
+                packet.limit(packet.position() + room);
+                toUpstream.put(packet);
+                written += room;
+            }
+            return written;
+        } finally {
+            packet.limit(limit);
+            packet.position(position);
+        }
+    }
+
+    private void flushToUpstream() throws IOException {
+        if (toUpstream == null || toUpstream.position() == 0) {
+            return;
+        }
+        toUpstream.flip();
+        channel.write(toUpstream);
+        toUpstream.compact();
+        if (toUpstream.position() == 0 && appFin) {
+            channel.shutdownOutput();
+        }
+    }
+
+    // Sequence number of the first byte in toApp
+    private int dataStart() {
+        return state == STATE_SYN_RECEIVED ? sendBase + 1 : sendBase;
+    }
+
+    // Sends whatever upstream data the app has not seen yet, then FIN once upstream is done
+    private void sendPending(long now) {
+        int buffered = toApp == null ? 0 : toApp.position();
+        int start = dataStart();
+        int unsent = start + buffered - sendNext;
+        if (unsent > 0 && sendNext == start) {
+            lastAckProgress = now;
+            engine.scheduleNoLaterThan(this, now + RETRANSMIT_MS);
+        }
+
+        while (unsent > 0) {
+            int chunk = Math.min(unsent, engine.getMss());
+            engine.sendTcp(this, Packets.TCP_ACK | Packets.TCP_PSH, sendNext, toApp, sendNext - start, chunk);
+            sendNext += chunk;
+            unsent -= chunk;
+        }
+
+        if (upstreamEof && !finSent && sendNext == start + buffered) {
+            engine.sendTcp(this, Packets.TCP_FIN | Packets.TCP_ACK, sendNext, null, 0, 0);
+            sendNext++;
+            finSent = true;
+        }
+    }
+
+    private void retransmit() {
+        int buffered = toApp == null ? 0 : toApp.position();
+        int start = dataStart();
+        int limit = Math.min(buffered, Math.max(appWindow, engine.getMss()));
+        if (state == STATE_SYN_RECEIVED) {
+            engine.sendTcp(this, Packets.TCP_SYN | Packets.TCP_ACK, sendBase, null, 0, 0);
+        }
+        for (int offset = 0; offset < limit; offset += engine.getMss()) {
+            int chunk = Math.min(limit - offset, engine.getMss());
+            engine.sendTcp(this, Packets.TCP_ACK | Packets.TCP_PSH, start + offset, toApp, offset, chunk);
+        }
+        if (finSent && limit == buffered) {
+            engine.sendTcp(this, Packets.TCP_FIN | Packets.TCP_ACK, start + buffered, null, 0, 0);
+        }
+    }
+
+    private void updateInterest() {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        int ops = 0;
+        int buffered = toApp == null ? 0 : toApp.position();
+        if (!upstreamEof && buffered < BUFFER_SIZE && appWindow - (sendNext - dataStart()) > 0) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (toUpstream != null && toUpstream.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        selectionKey.interestOps(ops);
+    }
+}
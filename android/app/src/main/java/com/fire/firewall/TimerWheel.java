@@ -0,0 +1,98 @@
+package com.fire.firewall;
+
+/**
+ * Hashed timer wheel. Scheduling and cancelling are O(1) and each tick only visits
+ * the timers hashed into its slot, so idle expiry never scans every session.
+ */
+final class TimerWheel {
+
+    abstract static class Timer {
+        private long deadline;
+        private Timer next;
+        private Timer prev;
+        private int slot = -1;
+
+        abstract void onExpired(long now);
+
+        final boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        final long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final Timer[] slots;
+    private final int mask;
+    private final long tickMs;
+    private long currentTick;
+
+    TimerWheel(int slotCount, long tickMs, long now) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        this.slots = new Timer[slotCount];
+        this.mask = slotCount - 1;
+        this.tickMs = tickMs;
+        this.currentTick = now / tickMs;
+    }
+
+    void schedule(Timer timer, long deadline) {
+        cancel(timer);
+        // Round up so a timer never fires before its deadline
+        long tick = Math.max((deadline + tickMs - 1) / tickMs, currentTick + 1);
+        int slot = (int) tick & mask;
+
+        timer.deadline = deadline;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.next = null;
+        timer.prev = null;
+        timer.slot = -1;
+    }
+
+    void advance(long now) {
+        long target = now / tickMs;
+        // After a long stall one full turn of the wheel visits every slot
+        if (target - currentTick > slots.length) {
+            currentTick = target - slots.length;
+        }
+
+        while (currentTick < target) {
+            currentTick++;
+            Timer timer = slots[(int) currentTick & mask];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline <= now) {
+                    cancel(timer);
+                    timer.onExpired(now);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    long millisUntilNextTick(long now) {
+        return Math.max(1, (currentTick + 1) * tickMs - now);
+    }
+}
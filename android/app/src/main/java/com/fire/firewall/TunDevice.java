@@ -0,0 +1,23 @@
+package com.fire.firewall;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packet I/O on the tun interface. Kept behind an interface so the pipeline can run
+ * against a pipe or socketpair instead of a real VPN descriptor.
+ */
+public interface TunDevice extends Closeable {
+    /**
+     * Fills buffers with as many packets as are available, each flipped and ready to
+     * read, waiting a bounded time for the first one. Returns the number of packets
+     * read, possibly 0.
+     */
+    int read(ByteBuffer[] buffers) throws IOException;
+
+    /**
+     * Writes the first count packets in order, one packet per write.
+     */
+    void write(ByteBuffer[] packets, int count) throws IOException;
+}
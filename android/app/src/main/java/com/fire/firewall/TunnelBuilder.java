@@ -9,13 +9,15 @@ public class TunnelBuilder {
     private static final String VPN_ADDRESS = "10.0.0.2";
     private static final String VPN_ROUTE = "0.0.0.0";
     private static final int VPN_PREFIX = 0;
-    private static final String DNS_SERVER = "8.8.8.8";
-    private static final int MTU = 1500;
+    static final String DNS_SERVER = "8.8.8.8";
+    static final int MTU = 1500;
 
     private final VpnService vpnService;
+    private final boolean blocking;
 
-    public TunnelBuilder(VpnService service) {
+    public TunnelBuilder(VpnService service, boolean blocking) {
         this.vpnService = service;
+        this.blocking = blocking;
     }
 
     public ParcelFileDescriptor build() {
@@ -27,7 +29,7 @@ public class TunnelBuilder {
                    .addAddress(VPN_ADDRESS, 32)
                    .addRoute(VPN_ROUTE, VPN_PREFIX)
                    .addDnsServer(DNS_SERVER)
-                   .setBlocking(true);
+                   .setBlocking(blocking);
 
             // Allow apps to bypass VPN if needed
             // builder.allowBypass();
@@ -0,0 +1,56 @@
+package com.fire.firewall;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * One proxied UDP flow, multiplexed by 5-tuple onto its own connected upstream
+ * channel. Only the engine thread touches it.
+ */
+final class UdpSession extends TimerWheel.Timer {
+    static final long IDLE_TIMEOUT_MS = 60_000;
+
+    final long key;
+    final int clientIp;
+    final int clientPort;
+    final int remoteIp;
+    final int remotePort;
+
+    private final ForwardingEngine engine;
+    DatagramChannel channel;
+    SelectionKey selectionKey;
+    long lastActive;
+
+    UdpSession(ForwardingEngine engine, long key, int clientIp, int clientPort, int remoteIp, int remotePort, long now) {
+        this.engine = engine;
+        this.key = key;
+        this.clientIp = clientIp;
+        this.clientPort = clientPort;
+        this.remoteIp = remoteIp;
+        this.remotePort = remotePort;
+        this.lastActive = now;
+    }
+
+    @Override
+    void onExpired(long now) {
+        if (now - lastActive >= IDLE_TIMEOUT_MS) {
+            engine.closeUdp(this);
+        } else {
+            engine.schedule(this, lastActive + IDLE_TIMEOUT_MS);
+        }
+    }
+
+    void close() {
+        try {
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+}
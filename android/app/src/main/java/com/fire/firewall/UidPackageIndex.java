@@ -0,0 +1,72 @@
+package com.fire.firewall;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable two-way map between UIDs and package names, built from the
+ * {@link AppCatalog} so lookups never make a Binder call. UIDs are a sorted int
+ * array searched without boxing. Apps sharing a UID all map to it; the UID maps
+ * back to the first of them by name.
+ */
+public final class UidPackageIndex {
+    private static final UidPackageIndex EMPTY = new UidPackageIndex(new int[0], new String[0], new HashMap<>());
+
+    private final int[] uids;
+    private final String[] packages;
+    private final Map<String, Integer> uidsByPackage;
+
+    private UidPackageIndex(int[] uids, String[] packages, Map<String, Integer> uidsByPackage) {
+        this.uids = uids;
+        this.packages = packages;
+        this.uidsByPackage = uidsByPackage;
+    }
+
+    public static UidPackageIndex empty() {
+        return EMPTY;
+    }
+
+    static UidPackageIndex build(Collection<InstalledApp> apps) {
+        // Sort by (uid, package) so each UID's first package comes first
+        InstalledApp[] byPosition = apps.toArray(new InstalledApp[0]);
+        Arrays.sort(byPosition, (a, b) -> a.getUid() != b.getUid()
+            ? Integer.compare(a.getUid(), b.getUid())
+            : a.getPackageName().compareTo(b.getPackageName()));
+
+        int[] uids = new int[byPosition.length];
+        String[] packages = new String[byPosition.length];
+        Map<String, Integer> uidsByPackage = new HashMap<>(byPosition.length * 2);
+        int count = 0;
+        for (InstalledApp app : byPosition) {
+            uidsByPackage.put(app.getPackageName(), app.getUid());
+            if (count == 0 || uids[count - 1] != app.getUid()) {
+                uids[count] = app.getUid();
+                packages[count] = app.getPackageName();
+                count++;
+            }
+        }
+        return new UidPackageIndex(Arrays.copyOf(uids, count), Arrays.copyOf(packages, count), uidsByPackage);
+    }
+
+    /**
+     * Returns the package owning uid, or an empty string if no installed app has it.
+     */
+    public String getPackage(int uid) {
+        int i = Arrays.binarySearch(uids, uid);
+        return i >= 0 ? packages[i] : "";
+    }
+
+    /**
+     * Returns the UID of packageName, or -1 if it is not installed.
+     */
+    public int getUid(String packageName) {
+        Integer uid = uidsByPackage.get(packageName);
+        return uid != null ? uid : -1;
+    }
+
+    public int size() {
+        return uidsByPackage.size();
+    }
+}
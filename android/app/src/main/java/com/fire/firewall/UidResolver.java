@@ -0,0 +1,275 @@
+package com.fire.firewall;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds the UID owning a connection. API 29+ asks ConnectivityManager, older releases
+ * look the local port up in /proc/net. Both can block, the first on a Binder call, so
+ * lookups run on a small pool instead of the packet worker. A flow is looked up once,
+ * when the flow table first sees it, and its caller is told when the answer arrives.
+ * Later packets are counted as cache hits. The pool runs between start and stop, with
+ * a bounded queue; a lookup it cannot take is tried again on the flow's next packet.
+ */
+public class UidResolver {
+    private static final String TAG = "UidResolver";
+    private static final int UNKNOWN = -1;
+    // A parsed /proc table is reused for misses until it is this old
+    private static final long PROC_REFRESH_MS = 200;
+    private static final int LOOKUP_THREADS = 2;
+    private static final int LOOKUP_QUEUE = 256;
+
+    /**
+     * Told on a lookup thread once a flow's owner lookup has finished.
+     */
+    interface Listener {
+        void onResolved(FlowTable.Flow flow);
+    }
+
+    private static UidResolver instance;
+    private final ConnectivityManager connectivityManager;
+    private volatile ExecutorService lookups;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unresolved = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder procParses = new LongAdder();
+
+    private final ProcTable tcpTable = new ProcTable("/proc/net/tcp", "/proc/net/tcp6");
+    private final ProcTable udpTable = new ProcTable("/proc/net/udp", "/proc/net/udp6");
+
+    private UidResolver(Context context) {
+        this((ConnectivityManager) context.getApplicationContext()
+            .getSystemService(Context.CONNECTIVITY_SERVICE));
+    }
+
+    UidResolver(ConnectivityManager connectivityManager) {
+        this.connectivityManager = connectivityManager;
+    }
+
+    public static synchronized UidResolver getInstance(Context context) {
+        if (instance == null) {
+            instance = new UidResolver(context);
+        }
+        return instance;
+    }
+
+    synchronized void start() {
+        if (lookups == null) {
+            lookups = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(LOOKUP_QUEUE), task -> new Thread(task, "FirewallUidLookup"));
+        }
+    }
+
+    synchronized void stop() {
+        if (lookups != null) {
+            lookups.shutdownNow();
+            lookups = null;
+        }
+    }
+
+    /**
+     * Starts looking up the flow's UID the first time the flow is seen, and fills it in
+     * once the lookup has finished. Returns whether the owner is settled, which for
+     * protocols without one is right away. Never blocks.
+     */
+    boolean resolve(FlowTable flows, FlowTable.Flow flow, Listener listener) {
+        if (flow.uidResolved) {
+            hits.increment();
+            return true;
+        }
+        if (!flow.uidPending) {
+            if (flow.protocol != Packets.PROTOCOL_TCP && flow.protocol != Packets.PROTOCOL_UDP) {
+                misses.increment();
+                unresolved.increment();
+                flow.uidResolved = true;
+                return true;
+            }
+            submit(flow, listener);
+            return false;
+        }
+        int uid = flow.ownerUid;
+        if (uid == FlowTable.UID_PENDING) {
+            return false;
+        }
+        flow.uidResolved = true;
+        if (uid == UNKNOWN) {
+            unresolved.increment();
+        } else {
+            flows.setUid(flow, uid);
+        }
+        return true;
+    }
+
+    private void submit(FlowTable.Flow flow, Listener listener) {
+        ExecutorService pool = lookups;
+        if (pool == null) {
+            rejected.increment();
+            return;
+        }
+        try {
+            pool.execute(() -> {
+                flow.ownerUid = lookup(flow.protocol, flow.sourceIp(), flow.sourcePort(), flow.destIp, flow.destPort);
+                listener.onResolved(flow);
+            });
+            flow.uidPending = true;
+            misses.increment();
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+        }
+    }
+
+    private int lookup(int protocol, int sourceIp, int sourcePort, int destIp, int destPort) {
+        if (protocol != Packets.PROTOCOL_TCP && protocol != Packets.PROTOCOL_UDP) {
+            return UNKNOWN;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            if (connectivityManager == null) {
+                return UNKNOWN;
+            }
+            try {
+                return connectivityManager.getConnectionOwnerUid(
+                    protocol,
+                    new InetSocketAddress(toAddress(sourceIp), sourcePort),
+                    new InetSocketAddress(toAddress(destIp), destPort)
+                );
+            } catch (Exception e) {
+                Log.w(TAG, "getConnectionOwnerUid failed", e);
+                return UNKNOWN;
+            }
+        }
+
+        ProcTable table = protocol == Packets.PROTOCOL_TCP ? tcpTable : udpTable;
+        return table.find(sourcePort);
+    }
+
+    public WritableMap getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + missCount;
+
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("hits", hitCount);
+        stats.putDouble("misses", missCount);
+        stats.putDouble("unresolved", unresolved.sum());
+        stats.putDouble("rejected", rejected.sum());
+        stats.putDouble("procParses", procParses.sum());
+        stats.putDouble("hitRate", total == 0 ? 0 : (double) hitCount / total);
+        return stats;
+    }
+
+    public void logStats() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        Log.i(TAG, "UID cache: " + hitCount + "/" + total + " hits, " +
+            unresolved.sum() + " unresolved, " + rejected.sum() + " rejected, " +
+            procParses.sum() + " /proc parses");
+    }
+
+    private static InetAddress toAddress(int ip) throws IOException {
+        return InetAddress.getByAddress(new byte[] {
+            (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip
+        });
+    }
+
+    /**
+     * Local port to UID snapshot of one protocol's /proc/net files, kept sorted as
+     * (port << 32 | uid) so lookups are a binary search.
+     */
+    private class ProcTable {
+        private final String[] paths;
+        private long[] entries = new long[0];
+        private long parsedAt = -PROC_REFRESH_MS;
+
+        ProcTable(String... paths) {
+            this.paths = paths;
+        }
+
+        synchronized int find(int port) {
+            int uid = search(port);
+            // A miss on a stale table most likely means a socket opened since the last parse
+            if (uid == UNKNOWN && SystemClock.elapsedRealtime() - parsedAt >= PROC_REFRESH_MS) {
+                parse();
+                uid = search(port);
+            }
+            return uid;
+        }
+
+        private int search(int port) {
+            int i = Arrays.binarySearch(entries, (long) port << 32);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            if (i < entries.length && (entries[i] >>> 32) == port) {
+                return (int) entries[i];
+            }
+            return UNKNOWN;
+        }
+
+        private void parse() {
+            long[] parsed = new long[64];
+            int count = 0;
+            for (String path : paths) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+                    String line = reader.readLine(); // Header
+                    while ((line = reader.readLine()) != null) {
+                        long entry = parseLine(line);
+                        if (entry < 0) {
+                            continue;
+                        }
+                        if (count == parsed.length) {
+                            parsed = Arrays.copyOf(parsed, count * 2);
+                        }
+                        parsed[count++] = entry;
+                    }
+                } catch (IOException e) {
+                    // tcp6/udp6 are missing on kernels without IPv6
+                }
+            }
+            entries = Arrays.copyOf(parsed, count);
+            Arrays.sort(entries);
+            parsedAt = SystemClock.elapsedRealtime();
+            procParses.increment();
+        }
+
+        // "  sl  local_address rem_address   st tx_queue:rx_queue tr:tm->when retrnsmt   uid ..."
+        private long parseLine(String line) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 8) {
+                return -1;
+            }
+            int colon = fields[1].lastIndexOf(':');
+            if (colon < 0) {
+                return -1;
+            }
+            try {
+                long port = Long.parseLong(fields[1].substring(colon + 1), 16);
+                long uid = Long.parseLong(fields[7]);
+                return (port << 32) | uid;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
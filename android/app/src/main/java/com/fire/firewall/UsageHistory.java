@@ -0,0 +1,503 @@
+package com.fire.firewall;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Time-bucketed traffic per UID and network type. Traffic is summed in memory for the
+ * current minute, closed minutes are appended to a minute file, and complete hours
+ * and days are rolled up into coarser files, each trimmed to its own retention.
+ *
+ * Every file is a sequence of blocks, one per bucket, with the rows stored column by
+ * column (all UIDs, then all network types, then each counter). An in-memory index of
+ * block start times lets a range query read only the blocks it covers, and only the
+ * value columns of blocks that hold the requested UID.
+ */
+final class UsageHistory {
+    private static final String TAG = "UsageHistory";
+
+    static final int NETWORK_WIFI = 0;
+    static final int NETWORK_MOBILE = 1;
+    static final int NETWORK_OTHER = 2;
+    static final int NETWORKS = 3;
+
+    static final int MINUTE = 0;
+    static final int HOUR = 1;
+    static final int DAY = 2;
+
+    // Matches every UID in a query
+    static final int ALL_UIDS = -1;
+
+    private static final long MINUTE_MS = 60_000;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+    private static final String[] TIER_NAMES = { "minute", "hour", "day" };
+    private static final long[] RETENTION_MS = { 6 * HOUR_MS, 31 * DAY_MS, 730 * DAY_MS };
+
+    // File layout: magic, format version, tier, then blocks of
+    // start, row count, uid[rows], network[rows], allowed[rows], blocked[rows]
+    private static final int MAGIC = 0x46575548; // "FWUH"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final int ROW_SIZE = 4 + 1 + 8 + 8;
+    private static final int MAX_ROWS = 1 << 20;
+
+    /**
+     * Bytes per network type for one bucket, indexed by network * 2 plus 0 for allowed
+     * and 1 for blocked traffic.
+     */
+    static final class Bucket {
+        final long start;
+        final long[] bytes = new long[NETWORKS * 2];
+
+        Bucket(long start) {
+            this.start = start;
+        }
+    }
+
+    private static final class Cell {
+        final int uid;
+        final int network;
+        long allowed;
+        long blocked;
+
+        Cell(int uid, int network) {
+            this.uid = uid;
+            this.network = network;
+        }
+    }
+
+    /**
+     * Sums traffic by UID and network type.
+     */
+    private static final class Rows {
+        final LongObjectMap<Cell> cells = new LongObjectMap<>(64);
+
+        void add(int uid, int network, long allowed, long blocked) {
+            long key = ((long) uid << 2) | network;
+            Cell cell = cells.get(key);
+            if (cell == null) {
+                cell = new Cell(uid, network);
+                cells.put(key, cell);
+            }
+            cell.allowed += allowed;
+            cell.blocked += blocked;
+        }
+
+        void addAll(Rows other) {
+            other.cells.forEachValue(cell -> add(cell.uid, cell.network, cell.allowed, cell.blocked));
+        }
+
+        boolean isEmpty() {
+            return cells.size() == 0;
+        }
+    }
+
+    /**
+     * One append-only block file with the index of its blocks.
+     */
+    private static final class Tier {
+        final int level;
+        final File file;
+        FileChannel channel;
+        long length;
+        long[] starts = new long[64];
+        long[] offsets = new long[64];
+        int[] rowCounts = new int[64];
+        int count = 0;
+
+        Tier(File dir, int level) {
+            this.level = level;
+            this.file = new File(dir, "usage_" + TIER_NAMES[level] + ".bin");
+        }
+
+        void open() throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            length = channel.size();
+            count = 0;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC
+                    || header.getInt(4) != FORMAT_VERSION || header.getInt(8) != level) {
+                header.clear();
+                header.putInt(0, MAGIC).putInt(4, FORMAT_VERSION).putInt(8, level);
+                channel.truncate(0);
+                writeFully(header, 0);
+                length = HEADER_SIZE;
+                return;
+            }
+
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            long position = HEADER_SIZE;
+            while (position + BLOCK_HEADER_SIZE <= length) {
+                blockHeader.clear();
+                readFully(blockHeader, position);
+                long start = blockHeader.getLong(0);
+                int rows = blockHeader.getInt(8);
+                long end = position + BLOCK_HEADER_SIZE + (long) rows * ROW_SIZE;
+                if (rows <= 0 || rows > MAX_ROWS || end > length) {
+                    break;
+                }
+                index(start, position, rows);
+                position = end;
+            }
+            // Cut off a block torn by process death so later appends stay aligned
+            if (position != length) {
+                channel.truncate(position);
+                length = position;
+            }
+        }
+
+        void append(long start, Rows rows) throws IOException {
+            List<Cell> cells = new ArrayList<>(rows.cells.size());
+            rows.cells.forEachValue(cells::add);
+            int n = cells.size();
+            // Blocks stay sorted even if the wall clock steps back
+            if (count > 0 && start < starts[count - 1]) {
+                start = starts[count - 1];
+            }
+
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + n * ROW_SIZE);
+            block.putLong(start).putInt(n);
+            for (Cell cell : cells) block.putInt(cell.uid);
+            for (Cell cell : cells) block.put((byte) cell.network);
+            for (Cell cell : cells) block.putLong(cell.allowed);
+            for (Cell cell : cells) block.putLong(cell.blocked);
+            block.flip();
+
+            writeFully(block, length);
+            index(start, length, n);
+            length += block.capacity();
+        }
+
+        // Index of the first block starting at or after time
+        int firstAtOrAfter(long time) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Adds the rows of block i that belong to uid to rows. Only the UID column is
+         * read unless the block holds a match.
+         */
+        void read(int i, int uid, Rows rows) throws IOException {
+            int n = rowCounts[i];
+            long base = offsets[i] + BLOCK_HEADER_SIZE;
+            ByteBuffer uids = ByteBuffer.allocate(n * 4);
+            readFully(uids, base);
+
+            boolean any = uid == ALL_UIDS;
+            for (int r = 0; r < n && !any; r++) {
+                any = uids.getInt(r * 4) == uid;
+            }
+            if (!any) {
+                return;
+            }
+
+            ByteBuffer values = ByteBuffer.allocate(n * (1 + 8 + 8));
+            readFully(values, base + n * 4L);
+            for (int r = 0; r < n; r++) {
+                int rowUid = uids.getInt(r * 4);
+                if (uid == ALL_UIDS || rowUid == uid) {
+                    rows.add(rowUid, values.get(r), values.getLong(n + r * 8), values.getLong(n * 9 + r * 8));
+                }
+            }
+        }
+
+        // End of the time covered by the newest block, or MIN_VALUE if there is none
+        long coveredUntil() {
+            return count == 0 ? Long.MIN_VALUE : nextBucket(level, starts[count - 1]);
+        }
+
+        /**
+         * Drops the blocks that start before cutoff by copying the rest to a new file.
+         */
+        void trim(long cutoff) throws IOException {
+            int keep = firstAtOrAfter(cutoff);
+            if (keep == 0) {
+                return;
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                out.setLength(0);
+                FileChannel dst = out.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                header.flip();
+                dst.write(header);
+                long from = keep < count ? offsets[keep] : length;
+                long copied = 0;
+                while (copied < length - from) {
+                    copied += channel.transferTo(from + copied, length - from - copied, dst);
+                }
+            }
+            channel.close();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            open();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to write
+            }
+        }
+
+        private void index(long start, long offset, int rows) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                rowCounts = Arrays.copyOf(rowCounts, count * 2);
+            }
+            starts[count] = start;
+            offsets[count] = offset;
+            rowCounts[count] = rows;
+            count++;
+        }
+
+        private void readFully(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+        }
+
+        private void writeFully(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + buf.position());
+            }
+        }
+    }
+
+    private final Tier[] tiers = new Tier[3];
+    private boolean ready = false;
+
+    // Traffic recorded since the last flush, guarded by its own monitor
+    private final Rows pending = new Rows();
+
+    // The minute being filled, guarded by this
+    private Rows open = new Rows();
+    private long openStart;
+    private long lastTrim = 0;
+
+    UsageHistory(File dir, long now) {
+        for (int level = MINUTE; level <= DAY; level++) {
+            tiers[level] = new Tier(dir, level);
+        }
+        openStart = bucketStart(MINUTE, now);
+        try {
+            for (Tier tier : tiers) {
+                tier.open();
+            }
+            ready = true;
+            // Catch up on hours and days that ended while the app was not running
+            rollUp(now);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening usage history", e);
+        }
+    }
+
+    /**
+     * Adds traffic from any thread. It is attributed to the minute of the next flush.
+     */
+    void record(int uid, int network, boolean blocked, long bytes) {
+        synchronized (pending) {
+            pending.add(uid, network, blocked ? 0 : bytes, blocked ? bytes : 0);
+        }
+    }
+
+    /**
+     * Moves recorded traffic into the current minute and writes it out once the
+     * minute is over, rolling up any hour and day that completed. With force the
+     * current minute is written right away; a later block for the same minute is
+     * simply added to it.
+     */
+    synchronized void flush(long now, boolean force) {
+        synchronized (pending) {
+            open.addAll(pending);
+            pending.cells.clear();
+        }
+        if (!ready) {
+            open = new Rows();
+            return;
+        }
+
+        long minute = bucketStart(MINUTE, now);
+        if (minute == openStart && !force) {
+            return;
+        }
+        try {
+            if (!open.isEmpty()) {
+                tiers[MINUTE].append(openStart, open);
+                open = new Rows();
+            }
+            openStart = minute;
+            rollUp(now);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing usage history", e);
+        }
+    }
+
+    /**
+     * Returns the traffic of uid (or ALL_UIDS) per bucket of the given granularity
+     * for buckets starting in [from, to), oldest first. Periods not yet rolled up
+     * into the requested granularity are summed from the finer files and the
+     * unwritten minute.
+     */
+    synchronized List<Bucket> query(int uid, int granularity, long from, long to) throws IOException {
+        TreeMap<Long, Bucket> buckets = new TreeMap<>();
+        Rows rows = new Rows();
+        long start = bucketStart(granularity, from);
+
+        if (ready) {
+            for (int level = granularity; level >= MINUTE; level--) {
+                Tier tier = tiers[level];
+                for (int i = tier.firstAtOrAfter(start); i < tier.count && tier.starts[i] < to; i++) {
+                    tier.read(i, uid, rows);
+                    addTo(buckets, granularity, tier.starts[i], rows);
+                }
+                start = Math.max(start, tier.coveredUntil());
+            }
+        }
+
+        if (openStart >= start && openStart < to) {
+            Rows unwritten = new Rows();
+            unwritten.addAll(open);
+            synchronized (pending) {
+                unwritten.addAll(pending);
+            }
+            Rows matching = new Rows();
+            unwritten.cells.forEachValue(cell -> {
+                if (uid == ALL_UIDS || cell.uid == uid) {
+                    matching.add(cell.uid, cell.network, cell.allowed, cell.blocked);
+                }
+            });
+            addTo(buckets, granularity, openStart, matching);
+        }
+        return new ArrayList<>(buckets.values());
+    }
+
+    synchronized void close() {
+        for (Tier tier : tiers) {
+            if (tier.channel != null) {
+                tier.close();
+            }
+        }
+        ready = false;
+    }
+
+    // Sums rows into the bucket holding time and empties rows
+    private static void addTo(TreeMap<Long, Bucket> buckets, int granularity, long time, Rows rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        long start = bucketStart(granularity, time);
+        Bucket bucket = buckets.get(start);
+        if (bucket == null) {
+            bucket = new Bucket(start);
+            buckets.put(start, bucket);
+        }
+        Bucket target = bucket;
+        rows.cells.forEachValue(cell -> {
+            target.bytes[cell.network * 2] += cell.allowed;
+            target.bytes[cell.network * 2 + 1] += cell.blocked;
+        });
+        rows.cells.clear();
+    }
+
+    private void rollUp(long now) throws IOException {
+        rollUp(tiers[MINUTE], tiers[HOUR], now);
+        rollUp(tiers[HOUR], tiers[DAY], now);
+
+        // Retention is enforced at most once an hour since trimming rewrites files
+        if (now - lastTrim >= HOUR_MS || now < lastTrim) {
+            lastTrim = now;
+            for (int level = MINUTE; level <= DAY; level++) {
+                tiers[level].trim(now - RETENTION_MS[level]);
+            }
+        }
+    }
+
+    // Sums each complete coarse bucket from the fine blocks it covers
+    private static void rollUp(Tier fine, Tier coarse, long now) throws IOException {
+        long rolled = coarse.coveredUntil();
+        while (true) {
+            int i = fine.firstAtOrAfter(rolled);
+            if (i == fine.count) {
+                return;
+            }
+            long start = bucketStart(coarse.level, fine.starts[i]);
+            long end = nextBucket(coarse.level, start);
+            if (end > now) {
+                return;
+            }
+
+            Rows sum = new Rows();
+            for (; i < fine.count && fine.starts[i] < end; i++) {
+                fine.read(i, ALL_UIDS, sum);
+            }
+            if (!sum.isEmpty()) {
+                coarse.append(start, sum);
+            }
+            rolled = end;
+        }
+    }
+
+    /**
+     * Start of the bucket holding time. Minutes and hours are aligned to UTC, days to
+     * local midnight.
+     */
+    static long bucketStart(int granularity, long time) {
+        switch (granularity) {
+            case MINUTE:
+                return Math.floorDiv(time, MINUTE_MS) * MINUTE_MS;
+            case HOUR:
+                return Math.floorDiv(time, HOUR_MS) * HOUR_MS;
+            default:
+                Calendar calendar = Calendar.getInstance();
+                calendar.setTimeInMillis(time);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                return calendar.getTimeInMillis();
+        }
+    }
+
+    // Start of the bucket after the one starting at start; days can be 23 or 25 hours
+    static long nextBucket(int granularity, long start) {
+        switch (granularity) {
+            case MINUTE:
+                return start + MINUTE_MS;
+            case HOUR:
+                return start + HOUR_MS;
+            default:
+                return bucketStart(DAY, start + DAY_MS + 2 * HOUR_MS);
+        }
+    }
+}
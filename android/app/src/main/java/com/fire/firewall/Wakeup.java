@@ -0,0 +1,35 @@
+package com.fire.firewall;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks a consumer thread while its rings are empty and lets producers wake it
+ * without taking a lock. The park is bounded so a missed signal only costs latency.
+ */
+public final class Wakeup implements PacketRing.Signal {
+    private final Thread thread;
+    private volatile boolean parked = false;
+
+    public Wakeup(Thread thread) {
+        this.thread = thread;
+    }
+
+    @Override
+    public void signal() {
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void await(PacketRing[] rings, long timeoutNanos) {
+        parked = true;
+        for (PacketRing ring : rings) {
+            if (!ring.isEmpty()) {
+                parked = false;
+                return;
+            }
+        }
+        LockSupport.parkNanos(this, timeoutNanos);
+        parked = false;
+    }
+}
@@ -0,0 +1,109 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BlockListManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private MemoryPreferences prefs;
+    private File filesDir;
+
+    @Before
+    public void setUp() throws Exception {
+        filesDir = folder.newFolder("files");
+        prefs = new MemoryPreferences();
+        context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        when(context.getFilesDir()).thenReturn(filesDir);
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(prefs);
+    }
+
+    // Waits for everything queued on the manager's executor so far
+    private static void awaitIdle(BlockListManager manager) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        manager.refreshSubscriptions(new BlockListManager.LoadCallback() {
+            @Override
+            public void onSuccess(int count) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private static DomainTrie trie(String... domains) {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        for (String domain : domains) {
+            builder.add(domain);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void loadsCompiledListOffTheCallingThread() throws Exception {
+        trie("ads.example.com", "tracker.net").writeTo(new File(filesDir, "blocklist.trie"));
+
+        BlockListManager manager = new BlockListManager(context);
+        awaitIdle(manager);
+
+        assertTrue(manager.isBlocked("x.ads.example.com"));
+        assertTrue(manager.isBlocked("tracker.net"));
+        assertFalse(manager.isBlocked("example.com"));
+        assertEquals(2, manager.getBlockedCount());
+        // The filter was missing, so it was built and stored next to the list
+        assertTrue(new File(filesDir, "blocklist.filter").exists());
+    }
+
+    @Test
+    public void migratesDomainsFromPreferences() throws Exception {
+        prefs.edit().putStringSet("blocked_domains",
+            new HashSet<>(Arrays.asList("ads.example.com", "tracker.net"))).apply();
+
+        BlockListManager manager = new BlockListManager(context);
+        awaitIdle(manager);
+
+        assertTrue(manager.isBlocked("ads.example.com"));
+        assertEquals(2, manager.getBlockedCount());
+        assertFalse(prefs.contains("blocked_domains"));
+        assertTrue(new File(filesDir, "blocklist.trie").exists());
+    }
+
+    @Test
+    public void manualEditsApplyAfterLoad() throws Exception {
+        trie("example.com").writeTo(new File(filesDir, "blocklist.trie"));
+
+        BlockListManager manager = new BlockListManager(context);
+        // Queued behind the load, so it edits the loaded list
+        manager.addDomain("tracker.net");
+        manager.removeDomain("example.com");
+        awaitIdle(manager);
+
+        assertTrue(manager.isBlocked("tracker.net"));
+        assertFalse(manager.isBlocked("example.com"));
+    }
+}
@@ -0,0 +1,77 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Parses a generated list mixing hosts, plain and AdBlock lines, with comments and
+ * CRLF line ends, and prints the throughput and the bytes allocated per MB.
+ */
+public class BlockListParserBenchmark {
+    private static final int LINES = 400_000;
+    private static final int ROUNDS = 5;
+
+    private static String randomDomain(Random random) {
+        StringBuilder name = new StringBuilder();
+        int labels = 1 + random.nextInt(3);
+        for (int i = 0; i < labels; i++) {
+            name.append(Integer.toString(random.nextInt(1 << 24), 36)).append('.');
+        }
+        return name.append(random.nextBoolean() ? "com" : "net").toString();
+    }
+
+    @Test
+    public void parseThroughput() throws Exception {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int expected = 0;
+        for (int i = 0; i < LINES; i++) {
+            String line;
+            switch (i % 5) {
+                case 0: line = "0.0.0.0 " + randomDomain(random); break;
+                case 1: line = "127.0.0.1\t" + randomDomain(random) + " # tracker"; break;
+                case 2: line = randomDomain(random); break;
+                case 3: line = "||" + randomDomain(random) + "^"; break;
+                default: line = "# comment " + i; expected--; break;
+            }
+            expected++;
+            out.write(line.getBytes(StandardCharsets.US_ASCII));
+            out.write(i % 2 == 0 ? "\r\n".getBytes(StandardCharsets.US_ASCII) : new byte[] { '\n' });
+        }
+        byte[] list = out.toByteArray();
+        double megabytes = list.length / (1024.0 * 1024.0);
+
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            BlockListParser parser = new BlockListParser();
+            int[] count = new int[1];
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            parser.parse(new ByteArrayInputStream(list), (buf, s, e) -> count[0]++);
+            best = Math.min(best, System.nanoTime() - start);
+            allocated = allocatedBytes() - bytes;
+            assertEquals(expected, count[0]);
+            assertEquals(expected, parser.getDomains());
+        }
+
+        System.out.printf("BlockListParser %.1f MB, %d lines: %.1f MB/s, %.0f bytes allocated per MB%n",
+            megabytes, LINES, megabytes / (best / 1e9), allocated < 0 ? Double.NaN : allocated / megabytes);
+    }
+
+    // Bytes allocated by this thread so far, or -1 where the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,148 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BlockListParserTest {
+    private static List<String> parse(BlockListParser parser, String list) throws IOException {
+        return parse(parser, new ByteArrayInputStream(list.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> parse(BlockListParser parser, InputStream in) throws IOException {
+        List<String> domains = new ArrayList<>();
+        parser.parse(in, (buf, start, end) ->
+            domains.add(new String(buf.array(), start, end - start, StandardCharsets.US_ASCII)));
+        return domains;
+    }
+
+    private static List<String> parse(String list) throws IOException {
+        return parse(new BlockListParser(), list);
+    }
+
+    @Test
+    public void parsesHostsEntries() throws IOException {
+        assertEquals(Arrays.asList("ads.example.com", "a.test", "b.test", "tracker.net"), parse(
+            "0.0.0.0 ads.example.com\n" +
+            "127.0.0.1\ta.test  b.test # two names\n" +
+            ":: tracker.net\n"));
+    }
+
+    @Test
+    public void skipsRedirectingAndLocalHostsEntries() throws IOException {
+        BlockListParser parser = new BlockListParser();
+
+        assertEquals(Collections.emptyList(), parse(parser,
+            "192.168.1.10 nas.home.lan\n" +
+            "127.0.0.1 localhost\n" +
+            "0.0.0.0 0.0.0.0\n" +
+            "::1 ip6-localhost\n"));
+        // The local names are counted as invalid, the redirect is not a block
+        assertEquals(3, parser.getInvalid());
+    }
+
+    @Test
+    public void parsesPlainAndAdBlockLines() throws IOException {
+        assertEquals(Arrays.asList("plain.example.com", "wild.example.com", "ads.example.org", "trailing.dot.net"), parse(
+            "plain.example.com\n" +
+            "*.wild.example.com # comment\n" +
+            "||ads.example.org^\n" +
+            "trailing.dot.net.\n" +
+            "||path.example.org^/banner\n" +
+            "||option.example.org^$third-party\n" +
+            "@@||allowed.example.org^\n"));
+    }
+
+    @Test
+    public void skipsComments() throws IOException {
+        BlockListParser parser = new BlockListParser();
+
+        assertEquals(Collections.singletonList("kept.example.com"), parse(parser,
+            "# hosts comment\n" +
+            "! AdBlock comment\n" +
+            "[Adblock Plus 2.0]\n" +
+            "   # indented comment\n" +
+            "\n" +
+            "kept.example.com\n"));
+        assertEquals(6, parser.getLines());
+        assertEquals(0, parser.getInvalid());
+    }
+
+    @Test
+    public void handlesCrlfLineEnds() throws IOException {
+        assertEquals(Arrays.asList("a.example.com", "b.example.com", "c.example.com", "d.example.com"), parse(
+            "0.0.0.0 a.example.com\r\n" +
+            "b.example.com\r\n" +
+            "||c.example.com^\r\n" +
+            "d.example.com\r"));
+    }
+
+    @Test
+    public void lowercasesAndConvertsInternationalNames() throws IOException {
+        assertEquals(Arrays.asList("ads.example.com", "xn--bcher-kva.example", "xn--mnchen-3ya.de"), parse(
+            "ADS.Example.COM\n" +
+            "0.0.0.0 bücher.example\n" +
+            "||MÜNCHEN.de^\n"));
+    }
+
+    @Test
+    public void dropsInvalidNames() throws IOException {
+        BlockListParser parser = new BlockListParser();
+        char[] longLabel = new char[64];
+        Arrays.fill(longLabel, 'a');
+
+        assertEquals(Collections.singletonList("123.example"), parse(parser,
+            "10.0.0.1\n" +               // Bare address, read as a hosts line without names
+            "example.123\n" +            // All-numeric TLD
+            "123.example\n" +            // Numeric labels are fine below the TLD
+            "com\n" +                    // Bare TLD
+            "-bad.example.com\n" +
+            "bad-.example.com\n" +
+            "double..dot.com\n" +
+            "sp$cial.example.com\n" +
+            new String(longLabel) + ".example.com\n"));
+        assertEquals(7, parser.getInvalid());
+    }
+
+    @Test
+    public void skipsLinesLongerThanBuffer() throws IOException {
+        char[] junk = new char[200_000];
+        Arrays.fill(junk, 'x');
+
+        assertEquals(Arrays.asList("before.example.com", "after.example.com"), parse(
+            "before.example.com\n" + new String(junk) + "\nafter.example.com\n"));
+    }
+
+    @Test
+    public void joinsLinesSplitAcrossReads() throws IOException {
+        byte[] list = "0.0.0.0 first.example.com\nsecond.example.com\n".getBytes(StandardCharsets.US_ASCII);
+        // Hands out three bytes per read
+        InputStream trickle = new ByteArrayInputStream(list) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+
+        BlockListParser parser = new BlockListParser();
+        assertEquals(Arrays.asList("first.example.com", "second.example.com"), parse(parser, trickle));
+        assertEquals(list.length, parser.getBytesRead());
+    }
+
+    @Test
+    public void normalizesHandEnteredNames() {
+        assertEquals("xn--bcher-kva.example", BlockListParser.normalize(" Bücher.Example. "));
+        assertEquals("com", BlockListParser.normalize("com"));
+        assertEquals(null, BlockListParser.normalize("1.2.3.4"));
+        assertEquals(null, BlockListParser.normalize("bad name.com"));
+    }
+}
@@ -0,0 +1,231 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs subscriptions against a local HTTP server that serves each list with an
+ * ETag and a Last-Modified date and answers matching conditional requests with
+ * 304 Not Modified.
+ */
+public class BlockListSubscriptionTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private BlockListManager manager;
+    // Served list, version and last request headers per path
+    private final Map<String, String> lists = new ConcurrentHashMap<>();
+    private final Map<String, Integer> versions = new ConcurrentHashMap<>();
+    private final Map<String, Headers> requests = new ConcurrentHashMap<>();
+    private final Map<String, Integer> statuses = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::serve);
+        server.start();
+
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        when(context.getFilesDir()).thenReturn(folder.newFolder("files"));
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(new MemoryPreferences());
+        manager = new BlockListManager(context);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.put(path, exchange.getRequestHeaders());
+        String list = lists.get(path);
+        if (list == null) {
+            respond(exchange, path, 404, null);
+            return;
+        }
+        int version = versions.get(path);
+        String etag = "\"v" + version + "\"";
+        String lastModified = "Mon, 0" + version + " Jun 2026 10:00:00 GMT";
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Last-Modified", lastModified);
+        Headers headers = exchange.getRequestHeaders();
+        if (etag.equals(headers.getFirst("If-None-Match"))
+                && lastModified.equals(headers.getFirst("If-Modified-Since"))) {
+            respond(exchange, path, 304, null);
+            return;
+        }
+        respond(exchange, path, 200, list.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, String path, int status, byte[] body) throws IOException {
+        statuses.put(path, status);
+        exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+        if (body != null) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    private void publishList(String path, String list) {
+        lists.put(path, list);
+        versions.merge(path, 1, Integer::sum);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static int await(Consumer<BlockListManager.LoadCallback> call) throws Exception {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        call.accept(new BlockListManager.LoadCallback() {
+            @Override
+            public void onSuccess(int count) {
+                result.complete(count);
+            }
+
+            @Override
+            public void onError(String error) {
+                result.completeExceptionally(new AssertionError(error));
+            }
+        });
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void unchangedListIsNotDownloadedAgain() throws Exception {
+        publishList("/a", "0.0.0.0 ads.example.com\n");
+        assertEquals(1, await(cb -> manager.addSubscription("A", url("/a"), cb)));
+        assertEquals(200, (int) statuses.get("/a"));
+
+        // Nothing changed, so nothing is reported or recompiled
+        assertEquals(0, await(manager::refreshSubscriptions));
+        assertEquals(304, (int) statuses.get("/a"));
+        assertTrue(manager.isBlocked("ads.example.com"));
+    }
+
+    @Test
+    public void validatorsFromResponseAreSentBack() throws Exception {
+        publishList("/a", "ads.example.com\n");
+        await(cb -> manager.addSubscription("A", url("/a"), cb));
+        // The first download had nothing to validate against
+        assertNull(requests.get("/a").getFirst("If-None-Match"));
+
+        publishList("/a", "ads.example.com\ntracker.example.com\n");
+        assertEquals(1, await(manager::refreshSubscriptions));
+        assertEquals("\"v1\"", requests.get("/a").getFirst("If-None-Match"));
+        assertEquals("Mon, 01 Jun 2026 10:00:00 GMT", requests.get("/a").getFirst("If-Modified-Since"));
+
+        // The validators of the new version replaced the old ones
+        assertEquals(0, await(manager::refreshSubscriptions));
+        assertEquals("\"v2\"", requests.get("/a").getFirst("If-None-Match"));
+        assertEquals("Mon, 02 Jun 2026 10:00:00 GMT", requests.get("/a").getFirst("If-Modified-Since"));
+        assertEquals(304, (int) statuses.get("/a"));
+    }
+
+    @Test
+    public void refreshAppliesAddedAndRemovedDomains() throws Exception {
+        publishList("/a", "0.0.0.0 one.example.com\n0.0.0.0 two.example.com\n");
+        await(cb -> manager.addSubscription("A", url("/a"), cb));
+
+        publishList("/a", "0.0.0.0 two.example.com\n0.0.0.0 three.example.com\n");
+        assertEquals(1, await(manager::refreshSubscriptions));
+
+        assertFalse(manager.isBlocked("one.example.com"));
+        assertTrue(manager.isBlocked("two.example.com"));
+        assertTrue(manager.isBlocked("three.example.com"));
+        assertEquals(2, manager.getBlockedCount());
+    }
+
+    @Test
+    public void sharedDomainStaysWhileAnotherSourceListsIt() throws Exception {
+        publishList("/a", "0.0.0.0 shared.example.com\n0.0.0.0 only-a.example.com\n");
+        publishList("/b", "||shared.example.com^\n||only-b.example.com^\n");
+        await(cb -> manager.addSubscription("A", url("/a"), cb));
+        await(cb -> manager.addSubscription("B", url("/b"), cb));
+
+        // A drops the shared domain, B still lists it
+        publishList("/a", "0.0.0.0 only-a.example.com\n");
+        assertEquals(1, await(manager::refreshSubscriptions));
+        assertTrue(manager.isBlocked("shared.example.com"));
+
+        // Without B nobody lists it any more
+        await(cb -> manager.removeSubscription("B", cb));
+        assertFalse(manager.isBlocked("shared.example.com"));
+        assertFalse(manager.isBlocked("only-b.example.com"));
+        assertTrue(manager.isBlocked("only-a.example.com"));
+    }
+
+    @Test
+    public void droppedParentBringsBackOtherSourcesSubdomains() throws Exception {
+        publishList("/a", "example.com\n");
+        publishList("/b", "ads.example.com\n");
+        await(cb -> manager.addSubscription("A", url("/a"), cb));
+        await(cb -> manager.addSubscription("B", url("/b"), cb));
+        // The compiled list only keeps the parent
+        assertEquals(1, manager.getBlockedCount());
+
+        publishList("/a", "other.net\n");
+        await(manager::refreshSubscriptions);
+
+        assertFalse(manager.isBlocked("www.example.com"));
+        assertTrue(manager.isBlocked("x.ads.example.com"));
+        assertTrue(manager.isBlocked("other.net"));
+    }
+
+    @Test
+    public void failedDownloadKeepsList() throws Exception {
+        publishList("/a", "ads.example.com\n");
+        await(cb -> manager.addSubscription("A", url("/a"), cb));
+
+        lists.remove("/a");
+        CompletableFuture<String> error = new CompletableFuture<>();
+        manager.refreshSubscriptions(new BlockListManager.LoadCallback() {
+            @Override
+            public void onSuccess(int count) {
+                error.complete(null);
+            }
+
+            @Override
+            public void onError(String message) {
+                error.complete(message);
+            }
+        });
+
+        assertEquals("A: HTTP error: 404", error.get(10, TimeUnit.SECONDS));
+        assertTrue(manager.isBlocked("ads.example.com"));
+    }
+}
@@ -0,0 +1,91 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Drives the writer's coalescing directly against a small store.
+ */
+public class ConnectionLoggerTest {
+    private static final int DNS_BLOCKED = 1;
+    private static final int IP = 0x08080808;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LogStore store;
+    private ConnectionLogger logger;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new LogStore(folder.getRoot(), "logs", 64);
+        logger = new ConnectionLogger(store);
+    }
+
+    private void assertRecord(long sequence, long timestamp, String domain, int count) {
+        LogStore.Record record = new LogStore.Record();
+        assertTrue(store.read(sequence, record));
+        assertEquals(timestamp, record.timestamp);
+        assertEquals(domain, store.getDomain(record.domainId));
+        assertEquals(count, record.count);
+    }
+
+    @Test
+    public void eventsCoalesceUntilTheWindowCloses() {
+        logger.coalesce(1000, IP, 53, 10001, DNS_BLOCKED, "ads.example");
+        logger.coalesce(1999, IP, 53, 10001, DNS_BLOCKED, "ads.example");
+        assertEquals(0, store.getNextSequence());
+
+        // Exactly one window later the first record is complete
+        logger.coalesce(2000, IP, 53, 10001, DNS_BLOCKED, "ads.example");
+        assertEquals(1, store.getNextSequence());
+        assertRecord(0, 1000, "ads.example", 2);
+
+        logger.writeExpired(2999, false);
+        assertEquals(1, store.getNextSequence());
+        logger.writeExpired(3000, false);
+        assertEquals(2, store.getNextSequence());
+        assertRecord(1, 2000, "ads.example", 1);
+    }
+
+    @Test
+    public void interleavedEventsAreWrittenInFirstSeenOrder() {
+        logger.coalesce(1000, IP, 53, 10001, DNS_BLOCKED, "a.example");
+        logger.coalesce(1001, IP, 53, 10002, DNS_BLOCKED, "b.example");
+        logger.coalesce(1002, IP, 53, 10001, DNS_BLOCKED, "a.example");
+        logger.coalesce(1003, IP, 53, 10002, DNS_BLOCKED, "b.example");
+        logger.coalesce(1004, IP, 53, 10002, DNS_BLOCKED, "b.example");
+
+        logger.writeExpired(1500, true);
+        assertEquals(2, store.getNextSequence());
+        assertRecord(0, 1000, "a.example", 2);
+        assertRecord(1, 1001, "b.example", 3);
+    }
+
+    @Test
+    public void hashCollisionKeepsEventsApart() {
+        // Equal String hash codes and equal other fields give equal event hashes
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        logger.coalesce(1000, IP, 53, 10001, DNS_BLOCKED, "Aa");
+        logger.coalesce(1001, IP, 53, 10001, DNS_BLOCKED, "BB");
+        // The colliding event pushed out the first one instead of counting as it
+        assertEquals(1, store.getNextSequence());
+        assertRecord(0, 1000, "Aa", 1);
+
+        logger.coalesce(1002, IP, 53, 10001, DNS_BLOCKED, "Aa");
+        logger.writeExpired(1003, true);
+
+        // Written once each, the early write is not repeated by the flush
+        assertEquals(3, store.getNextSequence());
+        assertRecord(1, 1001, "BB", 1);
+        assertRecord(2, 1002, "Aa", 1);
+        LogStore.Record record = new LogStore.Record();
+        assertFalse(store.read(3, record));
+    }
+}
@@ -0,0 +1,150 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Compares DomainTrie lookups against the synchronized HashSet parent walk it
+ * replaced, on the same generated 500k entry list. Checks both give the same
+ * answers and prints their time per lookup, on one thread and on several, and
+ * the bytes each lookup allocates.
+ */
+public class DomainTrieBenchmark {
+    private static final int LIST_SIZE = 500_000;
+    private static final int QUERIES = 1_000_000;
+    private static final int ROUNDS = 5;
+    private static final int THREADS = 4;
+
+    // The lookup used before the trie, including its global lock
+    private static boolean hashSetMatches(Set<String> blockedDomains, String domain) {
+        synchronized (blockedDomains) {
+            if (blockedDomains.contains(domain)) {
+                return true;
+            }
+            String[] parts = domain.split("\\.");
+            for (int i = 1; i < parts.length; i++) {
+                StringBuilder parent = new StringBuilder();
+                for (int j = i; j < parts.length; j++) {
+                    if (parent.length() > 0) parent.append(".");
+                    parent.append(parts[j]);
+                }
+                if (blockedDomains.contains(parent.toString())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String randomDomain(Random random) {
+        StringBuilder name = new StringBuilder();
+        int labels = 1 + random.nextInt(3);
+        for (int i = 0; i < labels; i++) {
+            name.append(Integer.toString(random.nextInt(1 << 20), 36)).append('.');
+        }
+        return name.append(random.nextBoolean() ? "com" : "net").toString();
+    }
+
+    @Test
+    public void compareWithHashSet() throws Exception {
+        Random random = new Random(42);
+        Set<String> set = new HashSet<>();
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        String[] listed = new String[LIST_SIZE];
+        for (int i = 0; i < LIST_SIZE; i++) {
+            listed[i] = randomDomain(random);
+            set.add(listed[i]);
+            builder.add(listed[i]);
+        }
+        DomainTrie trie = builder.build();
+
+        // A third listed, a third below a listed domain, a third not listed
+        String[] queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String domain = listed[random.nextInt(LIST_SIZE)];
+            switch (i % 3) {
+                // A copy, like a name decoded from a packet, without a cached hash
+                case 0: queries[i] = new String(domain.toCharArray()); break;
+                case 1: queries[i] = "www." + domain; break;
+                default: queries[i] = randomDomain(random); break;
+            }
+        }
+
+        for (String query : queries) {
+            assertEquals(query, hashSetMatches(set, query), trie.matches(query));
+        }
+
+        Predicate<String> hashSet = query -> hashSetMatches(set, query);
+        Predicate<String> compiled = trie::matches;
+        System.out.printf("DomainTrie %d entries, %d bytes%n", trie.size(), trie.getSizeBytes());
+        report("HashSet", hashSet, queries);
+        report("trie", compiled, queries);
+    }
+
+    private static void report(String name, Predicate<String> lookup, String[] queries) throws Exception {
+        long single = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            run(lookup, queries, 0, 1);
+            single = Math.min(single, System.nanoTime() - start);
+            allocated = allocatedBytes() - bytes;
+        }
+
+        // Each thread takes every THREADS-th query, so the total work is the same
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        long parallel = Long.MAX_VALUE;
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                List<Future<Integer>> futures = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int t = 0; t < THREADS; t++) {
+                    int first = t;
+                    futures.add(pool.submit(() -> run(lookup, queries, first, THREADS)));
+                }
+                for (Future<Integer> future : futures) {
+                    future.get();
+                }
+                parallel = Math.min(parallel, System.nanoTime() - start);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.printf("  %-8s %6.1f ns/lookup, %6.1f ns/lookup on %d threads, %5.1f bytes/lookup%n", name,
+            (double) single / queries.length, (double) parallel / queries.length, THREADS,
+            allocated < 0 ? Double.NaN : (double) allocated / queries.length);
+    }
+
+    private static int run(Predicate<String> lookup, String[] queries, int first, int step) {
+        int matched = 0;
+        for (int i = first; i < queries.length; i += step) {
+            if (lookup.test(queries[i])) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    // Bytes allocated by this thread so far, or -1 where the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,183 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DomainTrieTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DomainTrie trie(String... domains) {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        for (String domain : domains) {
+            builder.add(domain);
+        }
+        return builder.build();
+    }
+
+    private static List<String> domains(DomainTrie trie) {
+        List<String> result = new ArrayList<>();
+        trie.forEach(result::add);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void matchesExactAndParentDomains() {
+        DomainTrie trie = trie("example.com", "ads.tracker.net");
+
+        assertTrue(trie.matches("example.com"));
+        assertTrue(trie.matches("example.com."));
+        assertTrue(trie.matches("www.example.com"));
+        assertTrue(trie.matches("a.b.example.com"));
+        assertTrue(trie.matches("ads.tracker.net"));
+        assertTrue(trie.matches("x.ads.tracker.net"));
+    }
+
+    @Test
+    public void rejectsNonMatches() {
+        DomainTrie trie = trie("example.com", "ads.tracker.net");
+
+        assertFalse(trie.matches("com"));
+        assertFalse(trie.matches("tracker.net"));
+        assertFalse(trie.matches("notexample.com"));
+        assertFalse(trie.matches("example.org"));
+        assertFalse(trie.matches("example.com.evil.org"));
+        assertFalse(trie.matches(""));
+        assertFalse(DomainTrie.empty().matches("example.com"));
+    }
+
+    @Test
+    public void containsOnlyListedDomains() {
+        DomainTrie trie = trie("example.com");
+
+        assertTrue(trie.contains("example.com"));
+        assertFalse(trie.contains("www.example.com"));
+        assertFalse(trie.contains("com"));
+    }
+
+    @Test
+    public void matchesLabelsStraightFromPacket() {
+        DomainTrie trie = trie("example.com");
+        // Wire format: each label behind its length byte
+        ByteBuffer packet = ByteBuffer.wrap("\u0003www\u0007example\u0003com\u0000".getBytes(StandardCharsets.US_ASCII));
+        int[] labelStarts = { 0, 4, 12 };
+
+        assertTrue(trie.matches(packet, labelStarts, 3));
+        assertTrue(trie.matches(packet, new int[] { 4, 12 }, 2));
+        assertFalse(trie.matches(packet, new int[] { 12 }, 1));
+    }
+
+    @Test
+    public void writeToAndMapRoundTrip() throws Exception {
+        DomainTrie trie = trie("example.com", "ads.tracker.net", "a.b.c.d.org");
+        File file = folder.newFile("list.trie");
+
+        trie.writeTo(file);
+        DomainTrie mapped = DomainTrie.map(file);
+
+        assertEquals(trie.size(), mapped.size());
+        assertEquals(domains(trie), domains(mapped));
+        assertTrue(mapped.matches("www.example.com"));
+        assertTrue(mapped.matches("a.b.c.d.org"));
+        assertFalse(mapped.matches("b.c.d.org"));
+    }
+
+    @Test
+    public void builderStartsFromMappedTrie() throws Exception {
+        File file = folder.newFile("list.trie");
+        trie("example.com").writeTo(file);
+
+        DomainTrie.Builder builder = new DomainTrie.Builder(DomainTrie.map(file));
+        builder.add("other.org");
+        assertTrue(builder.remove("example.com"));
+        DomainTrie trie = builder.build();
+
+        assertEquals(Collections.singletonList("other.org"), domains(trie));
+        assertFalse(trie.matches("example.com"));
+    }
+
+    @Test
+    public void compactDropsCoveredDomains() {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        builder.add("example.com");
+        builder.add("ads.example.com");
+        builder.add("x.ads.example.com");
+        builder.add("tracker.net");
+        builder.add("gone.org");
+        builder.remove("gone.org");
+        DomainTrie trie = builder.build();
+
+        DomainTrie compacted = trie.compact();
+
+        assertEquals(4, trie.size());
+        assertEquals(2, compacted.size());
+        assertEquals(List.of("example.com", "tracker.net"), domains(compacted));
+        assertTrue(compacted.getSizeBytes() < trie.getSizeBytes());
+        for (String name : new String[] { "example.com", "y.ads.example.com", "tracker.net", "gone.org", "net" }) {
+            assertEquals(name, trie.matches(name), compacted.matches(name));
+        }
+    }
+
+    @Test
+    public void addUnderAddsOnlyStrictSubdomains() {
+        DomainTrie source = trie("example.com", "ads.example.com", "x.ads.example.com", "other.net");
+        DomainTrie roots = trie("example.com");
+
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        assertEquals(2, builder.addUnder(source, roots));
+
+        assertEquals(List.of("ads.example.com", "x.ads.example.com"), domains(builder.build()));
+    }
+
+    @Test
+    public void restoreUnderBringsBackSubdomainsOfRemovedParent() {
+        // Two sources; the compiled list only keeps the parent
+        Map<Integer, DomainTrie> sources = new HashMap<>();
+        sources.put(0, trie("example.com"));
+        sources.put(1, trie("ads.example.com", "tracker.net"));
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        for (DomainTrie source : sources.values()) {
+            builder.addAll(source);
+        }
+        DomainTrie.Builder compiled = new DomainTrie.Builder(builder.build().compact());
+        assertEquals(2, compiled.size());
+
+        // The parent goes away from source 0
+        assertTrue(compiled.remove("example.com"));
+        sources.put(0, DomainTrie.empty());
+        BlockListManager.restoreUnder(compiled, trie("example.com"), sources);
+        DomainTrie trie = compiled.build();
+
+        assertEquals(List.of("ads.example.com", "tracker.net"), domains(trie));
+        assertFalse(trie.matches("example.com"));
+        assertTrue(trie.matches("x.ads.example.com"));
+    }
+
+    @Test
+    public void restoreUnderDoesNotReaddRemovedDomain() {
+        Map<Integer, DomainTrie> sources = new HashMap<>();
+        sources.put(0, trie("example.com", "ads.example.com"));
+        DomainTrie.Builder compiled = new DomainTrie.Builder(sources.get(0).compact());
+
+        compiled.remove("example.com");
+        sources.put(0, trie("ads.example.com"));
+        BlockListManager.restoreUnder(compiled, trie("example.com"), sources);
+
+        assertEquals(Collections.singletonList("ads.example.com"), domains(compiled.build()));
+    }
+}
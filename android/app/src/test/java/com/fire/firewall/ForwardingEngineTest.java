@@ -0,0 +1,401 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the forwarding engine the way the tunnel does, with hand-built packets
+ * from a fake app, against local TCP and UDP echo servers.
+ */
+public class ForwardingEngineTest {
+    private static final int MTU = 1500;
+    private static final int CLIENT_IP = 0x0A000002;
+    private static final int SERVER_IP = 0x7F000001;
+    private static final int CLIENT_PORT = 40000;
+
+    private static final SocketProtector NO_PROTECTION = new SocketProtector() {
+        @Override
+        public boolean protect(Socket socket) {
+            return true;
+        }
+
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return true;
+        }
+    };
+
+    private final BlockingQueue<ByteBuffer> toApp = new LinkedBlockingQueue<>();
+    private ForwardingEngine engine;
+    private PacketRing input;
+    private ServerSocket tcpServer;
+    private DatagramSocket udpServer;
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        tcpServer = new ServerSocket(0, 50, loopback);
+        Thread tcpEcho = new Thread(() -> {
+            try (Socket socket = tcpServer.accept()) {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                byte[] buffer = new byte[65536];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, length);
+                }
+            } catch (Exception e) {
+                // Server closed by tearDown
+            }
+        });
+        tcpEcho.setDaemon(true);
+        tcpEcho.start();
+
+        udpServer = new DatagramSocket(0, loopback);
+        Thread udpEcho = new Thread(() -> {
+            byte[] buffer = new byte[65536];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    udpServer.receive(packet);
+                    udpServer.send(new DatagramPacket(buffer, packet.getLength(), packet.getSocketAddress()));
+                }
+            } catch (Exception e) {
+                // Server closed by tearDown
+            }
+        });
+        udpEcho.setDaemon(true);
+        udpEcho.start();
+
+        engine = new ForwardingEngine(NO_PROTECTION, MTU);
+        input = engine.openInput();
+        engine.start(packet -> {
+            ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+            copy.put(packet.duplicate());
+            copy.flip();
+            toApp.add(copy);
+            return true;
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.stop();
+        tcpServer.close();
+        udpServer.close();
+    }
+
+    // Fake app side
+
+    private void sendTcp(int seq, int ack, int flags, int window, byte[] data) {
+        sendTcp(tcpServer.getLocalPort(), seq, ack, flags, window, data);
+    }
+
+    private void sendTcp(int serverPort, int seq, int ack, int flags, int window, byte[] data) {
+        ByteBuffer packet = ByteBuffer.allocate(MTU);
+        byte[] payload = data != null ? data : new byte[0];
+        Packets.buildTcp(packet, 1, CLIENT_IP, CLIENT_PORT, SERVER_IP, serverPort, seq, ack, flags,
+            window, 1460, ByteBuffer.wrap(payload), 0, payload.length);
+        assertTrue(input.write(packet));
+    }
+
+    private void sendUdp(int srcPort, int dstPort, byte[] data) {
+        ByteBuffer packet = ByteBuffer.allocate(65535);
+        Packets.buildUdp(packet, 2, CLIENT_IP, srcPort, SERVER_IP, dstPort, ByteBuffer.wrap(data), 0, data.length);
+        Packets.writeFragmented(packet, MTU, ByteBuffer.allocate(MTU), input);
+    }
+
+    private ByteBuffer receive() throws InterruptedException {
+        ByteBuffer packet = toApp.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No packet from the engine", packet);
+        return packet;
+    }
+
+    private static int tcpFlags(ByteBuffer packet) {
+        return packet.get(33) & 0xFF;
+    }
+
+    private static int tcpSeq(ByteBuffer packet) {
+        return packet.getInt(24);
+    }
+
+    private static int tcpAck(ByteBuffer packet) {
+        return packet.getInt(28);
+    }
+
+    private static int tcpPayloadLength(ByteBuffer packet) {
+        return (packet.getShort(2) & 0xFFFF) - 20 - ((packet.get(32) >> 4) & 0xF) * 4;
+    }
+
+    private static boolean checksumValid(ByteBuffer packet) {
+        return Packets.checksum(packet, 0, 20, 0) == 0;
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+
+    // Returns the engine's initial sequence number
+    private int handshake(int window) throws InterruptedException {
+        sendTcp(1000, 0, Packets.TCP_SYN, window, null);
+        ByteBuffer synAck = receive();
+        assertEquals(Packets.TCP_SYN | Packets.TCP_ACK, tcpFlags(synAck));
+        assertEquals(1001, tcpAck(synAck));
+        assertTrue(checksumValid(synAck));
+        int isn = tcpSeq(synAck);
+        sendTcp(1001, isn + 1, Packets.TCP_ACK, window, null);
+        return isn;
+    }
+
+    @Test
+    public void tcpHandshakeEchoAndFinTeardown() throws Exception {
+        int isn = handshake(65535);
+        byte[] data = pattern(2800);
+
+        sendTcp(1001, isn + 1, Packets.TCP_ACK | Packets.TCP_PSH, 65535, Arrays.copyOf(data, 1400));
+        sendTcp(2401, isn + 1, Packets.TCP_ACK | Packets.TCP_PSH, 65535, Arrays.copyOfRange(data, 1400, 2800));
+
+        // Collect the echo in order, acknowledging as it arrives
+        ByteArrayOutputStream echoed = new ByteArrayOutputStream();
+        int expectedSeq = isn + 1;
+        int highestAck = 0;
+        while (echoed.size() < data.length) {
+            ByteBuffer packet = receive();
+            highestAck = Math.max(highestAck, tcpAck(packet) - 1000);
+            int length = tcpPayloadLength(packet);
+            if (length > 0 && tcpSeq(packet) == expectedSeq) {
+                echoed.write(packet.array(), packet.limit() - length, length);
+                expectedSeq += length;
+                sendTcp(3801, expectedSeq, Packets.TCP_ACK, 65535, null);
+            }
+        }
+        assertArrayEquals(data, echoed.toByteArray());
+        assertEquals(2801, highestAck);
+
+        // App closes; the engine acknowledges the FIN and closes its side too
+        sendTcp(3801, expectedSeq, Packets.TCP_FIN | Packets.TCP_ACK, 65535, null);
+        boolean finAcked = false;
+        ByteBuffer fin = null;
+        while (fin == null) {
+            ByteBuffer packet = receive();
+            if (tcpAck(packet) == 3802) {
+                finAcked = true;
+            }
+            if ((tcpFlags(packet) & Packets.TCP_FIN) != 0) {
+                fin = packet;
+            }
+        }
+        assertTrue(finAcked);
+        sendTcp(3802, tcpSeq(fin) + 1, Packets.TCP_ACK, 65535, null);
+
+        // The session is gone: another segment on it is reset
+        sendTcp(3802, tcpSeq(fin) + 1, Packets.TCP_ACK, 65535, new byte[] { 1 });
+        ByteBuffer reset;
+        do {
+            reset = receive();
+        } while ((tcpFlags(reset) & Packets.TCP_RST) == 0);
+        assertEquals(Packets.TCP_RST | Packets.TCP_ACK, tcpFlags(reset));
+    }
+
+    @Test
+    public void serverDataBeforeHandshakeAckKeepsItsSequence() throws Exception {
+        byte[] banner = "220 mail.example.com ESMTP\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] reply = "250 hello\r\n".getBytes(StandardCharsets.US_ASCII);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            // Speaks first, like SMTP or SSH, then answers one line
+            Thread speaker = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    socket.getOutputStream().write(banner);
+                    socket.getInputStream().read(new byte[256]);
+                    socket.getOutputStream().write(reply);
+                    socket.getInputStream().read();
+                } catch (Exception e) {
+                    // Closed by the test
+                }
+            });
+            speaker.setDaemon(true);
+            speaker.start();
+            int port = server.getLocalPort();
+
+            sendTcp(port, 1000, 0, Packets.TCP_SYN, 65535, null);
+            ByteBuffer synAck = receive();
+            assertEquals(Packets.TCP_SYN | Packets.TCP_ACK, tcpFlags(synAck));
+            int isn = tcpSeq(synAck);
+
+            // The banner arrives before the app acknowledged the SYN-ACK
+            ByteBuffer data = receive();
+            assertEquals(isn + 1, tcpSeq(data));
+            assertArrayEquals(banner, payload(data));
+
+            // Unacknowledged, the SYN-ACK and the whole banner are sent again
+            ByteBuffer resentSyn = receive();
+            assertEquals(Packets.TCP_SYN | Packets.TCP_ACK, tcpFlags(resentSyn));
+            assertEquals(isn, tcpSeq(resentSyn));
+            ByteBuffer resent = receive();
+            assertEquals(isn + 1, tcpSeq(resent));
+            assertArrayEquals(banner, payload(resent));
+
+            // One ACK covers the SYN and the banner, the next data follows on
+            int next = isn + 1 + banner.length;
+            sendTcp(port, 1001, next, Packets.TCP_ACK | Packets.TCP_PSH, 65535,
+                "HELO app\r\n".getBytes(StandardCharsets.US_ASCII));
+            ByteBuffer answer;
+            do {
+                answer = receive();
+            } while (tcpPayloadLength(answer) == 0);
+            assertEquals(next, tcpSeq(answer));
+            assertArrayEquals(reply, payload(answer));
+        }
+    }
+
+    private static byte[] payload(ByteBuffer packet) {
+        int length = tcpPayloadLength(packet);
+        return Arrays.copyOfRange(packet.array(), packet.limit() - length, packet.limit());
+    }
+
+    @Test
+    public void tcpRespectsAppWindow() throws Exception {
+        int window = 1000;
+        int isn = handshake(window);
+        byte[] data = pattern(3000);
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            sendTcp(1001 + offset, isn + 1, Packets.TCP_ACK | Packets.TCP_PSH, window,
+                Arrays.copyOfRange(data, offset, offset + 1000));
+        }
+
+        ByteArrayOutputStream echoed = new ByteArrayOutputStream();
+        int acked = isn + 1;
+        while (echoed.size() < data.length) {
+            // Everything the engine sends before our next ACK stays inside the window
+            int inFlight = 0;
+            ByteBuffer packet;
+            while ((packet = toApp.poll(300, TimeUnit.MILLISECONDS)) != null) {
+                int length = tcpPayloadLength(packet);
+                if (length > 0 && tcpSeq(packet) == acked + inFlight) {
+                    echoed.write(packet.array(), packet.limit() - length, length);
+                    inFlight += length;
+                }
+            }
+            assertTrue("Sent " + inFlight + " bytes into a " + window + " byte window", inFlight <= window);
+            assertTrue("Stalled after " + echoed.size() + " bytes", inFlight > 0);
+            acked += inFlight;
+            sendTcp(1001 + data.length, acked, Packets.TCP_ACK, window, null);
+        }
+        assertArrayEquals(data, echoed.toByteArray());
+    }
+
+    @Test
+    public void closedFlowIsResetAndForgotten() throws Exception {
+        int isn = handshake(65535);
+
+        // The flow became blocked: the app gets a reset and the session is gone
+        engine.closeFlow(Packets.PROTOCOL_TCP, CLIENT_PORT, SERVER_IP, tcpServer.getLocalPort());
+        ByteBuffer reset = receive();
+        assertEquals(Packets.TCP_RST | Packets.TCP_ACK, tcpFlags(reset));
+        assertEquals(isn + 1, tcpSeq(reset));
+
+        sendTcp(1001, isn + 1, Packets.TCP_ACK | Packets.TCP_PSH, 65535, new byte[] { 1 });
+        reset = receive();
+        assertEquals(Packets.TCP_RST | Packets.TCP_ACK, tcpFlags(reset));
+        assertEquals(isn + 1, tcpSeq(reset));
+    }
+
+    @Test
+    public void unknownTcpSegmentIsReset() throws Exception {
+        sendTcp(5000, 7000, Packets.TCP_ACK, 65535, null);
+
+        ByteBuffer reset = receive();
+        assertEquals(Packets.TCP_RST | Packets.TCP_ACK, tcpFlags(reset));
+        assertEquals(7000, tcpSeq(reset));
+    }
+
+    @Test
+    public void udpRepliesReachTheirOwnFlow() throws Exception {
+        int serverPort = udpServer.getLocalPort();
+        sendUdp(5555, serverPort, "first".getBytes());
+        sendUdp(5556, serverPort, "second".getBytes());
+        sendUdp(5555, serverPort, "third".getBytes());
+
+        Map<Integer, StringBuilder> byPort = new HashMap<>();
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer reply = receive();
+            assertEquals(Packets.PROTOCOL_UDP, reply.get(9) & 0xFF);
+            assertEquals(SERVER_IP, reply.getInt(12));
+            assertEquals(CLIENT_IP, reply.getInt(16));
+            assertEquals(serverPort, reply.getShort(20) & 0xFFFF);
+            assertTrue(checksumValid(reply));
+            int port = reply.getShort(22) & 0xFFFF;
+            byPort.computeIfAbsent(port, p -> new StringBuilder())
+                .append(new String(reply.array(), 28, reply.limit() - 28)).append(' ');
+        }
+        assertEquals("first third ", byPort.get(5555).toString());
+        assertEquals("second ", byPort.get(5556).toString());
+    }
+
+    @Test
+    public void fragmentedUdpIsReassembledAndForwarded() throws Exception {
+        byte[] data = pattern(4000);
+        sendUdp(5557, udpServer.getLocalPort(), data);
+
+        // The 4 KB reply comes back as fragments that fit the MTU
+        FragmentReassembler reassembler = new FragmentReassembler(new TimerWheel(16, 250, 0));
+        ByteBuffer reply = null;
+        while (reply == null) {
+            ByteBuffer fragment = receive();
+            assertTrue(fragment.limit() <= MTU);
+            assertTrue(checksumValid(fragment));
+            reply = reassembler.add(fragment, 0);
+        }
+        assertEquals(5557, reply.getShort(22) & 0xFFFF);
+        byte[] echoed = Arrays.copyOfRange(reply.array(), 28, reply.limit());
+        assertArrayEquals(data, echoed);
+        assertEquals(0, engine.getDroppedFragments());
+    }
+
+    @Test
+    public void udpSessionExpiresOnceIdle() throws Exception {
+        // An engine of its own that is not running, so the test thread owns its wheel
+        ForwardingEngine idle = new ForwardingEngine(NO_PROTECTION, MTU);
+        UdpSession session = new UdpSession(idle, 1, CLIENT_IP, 5558, SERVER_IP, 53, 0);
+        session.channel = DatagramChannel.open();
+
+        // Still active: rescheduled for its idle deadline instead of closed
+        session.lastActive = 10_000;
+        session.onExpired(UdpSession.IDLE_TIMEOUT_MS);
+        assertTrue(session.channel.isOpen());
+        assertEquals(10_000 + UdpSession.IDLE_TIMEOUT_MS, session.getDeadline());
+
+        session.onExpired(10_000 + UdpSession.IDLE_TIMEOUT_MS);
+        assertFalse(session.channel.isOpen());
+        assertFalse(session.isScheduled());
+    }
+}
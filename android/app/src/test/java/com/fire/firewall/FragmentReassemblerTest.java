@@ -0,0 +1,148 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class FragmentReassemblerTest {
+    private static final int MTU = 576;
+    private static final long TICK_MS = 250;
+
+    private final TimerWheel wheel = new TimerWheel(256, TICK_MS, 0);
+    private final FragmentReassembler reassembler = new FragmentReassembler(wheel);
+
+    private static byte[] payload(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static List<ByteBuffer> fragments(int ipId, int dstIp, byte[] data) {
+        ByteBuffer packet = ByteBuffer.allocate(65535);
+        Packets.buildUdp(packet, ipId, 0x0A000002, 5000, dstIp, 53, ByteBuffer.wrap(data), 0, data.length);
+        List<ByteBuffer> fragments = new ArrayList<>();
+        Packets.writeFragmented(packet, MTU, ByteBuffer.allocate(MTU), fragment -> {
+            ByteBuffer copy = ByteBuffer.allocate(fragment.remaining());
+            copy.put(fragment.duplicate());
+            copy.flip();
+            fragments.add(copy);
+            return true;
+        });
+        return fragments;
+    }
+
+    private static byte[] udpPayload(ByteBuffer packet) {
+        return Arrays.copyOfRange(packet.array(), 28, packet.limit());
+    }
+
+    private ByteBuffer addAll(List<ByteBuffer> fragments) {
+        ByteBuffer result = null;
+        for (int i = 0; i < fragments.size(); i++) {
+            result = reassembler.add(fragments.get(i), 0);
+            if (i < fragments.size() - 1) {
+                assertNull(result);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void reassemblesInOrder() {
+        byte[] data = payload(3000, 1);
+        List<ByteBuffer> fragments = fragments(7, 0x08080808, data);
+
+        ByteBuffer packet = addAll(fragments);
+
+        assertNotNull(packet);
+        assertEquals(28 + data.length, packet.limit());
+        assertEquals(28 + data.length, packet.getShort(2) & 0xFFFF);
+        assertEquals(0, packet.getShort(6));
+        assertEquals(0, Packets.checksum(packet, 0, 20, 0));
+        assertEquals(5000, packet.getShort(20) & 0xFFFF);
+        assertArrayEquals(data, udpPayload(packet));
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getReassembled());
+    }
+
+    @Test
+    public void reassemblesOutOfOrderWithDuplicates() {
+        byte[] data = payload(5000, 2);
+        List<ByteBuffer> fragments = fragments(8, 0x08080808, data);
+        List<ByteBuffer> shuffled = new ArrayList<>(fragments);
+        Collections.shuffle(shuffled, new Random(3));
+        shuffled.add(1, fragments.get(2).duplicate());
+
+        ByteBuffer packet = addAll(shuffled);
+
+        assertNotNull(packet);
+        assertArrayEquals(data, udpPayload(packet));
+    }
+
+    @Test
+    public void keepsInterleavedDatagramsApart() {
+        byte[] first = payload(2000, 4);
+        byte[] second = payload(2500, 5);
+        List<ByteBuffer> a = fragments(9, 0x08080808, first);
+        List<ByteBuffer> b = fragments(9, 0x01010101, second);
+
+        for (int i = 0; i < a.size() - 1; i++) {
+            assertNull(reassembler.add(a.get(i), 0));
+            assertNull(reassembler.add(b.get(i), 0));
+        }
+        assertEquals(2, reassembler.getPendingCount());
+        assertArrayEquals(first, udpPayload(reassembler.add(a.get(a.size() - 1), 0)));
+        for (int i = a.size() - 1; i < b.size() - 1; i++) {
+            assertNull(reassembler.add(b.get(i), 0));
+        }
+        assertArrayEquals(second, udpPayload(reassembler.add(b.get(b.size() - 1), 0)));
+    }
+
+    @Test
+    public void incompleteDatagramExpiresThroughWheel() {
+        List<ByteBuffer> fragments = fragments(10, 0x08080808, payload(2000, 6));
+        reassembler.add(fragments.get(0), 0);
+        assertEquals(1, reassembler.getPendingCount());
+
+        wheel.advance(FragmentReassembler.TIMEOUT_MS - TICK_MS);
+        assertEquals(1, reassembler.getPendingCount());
+        wheel.advance(FragmentReassembler.TIMEOUT_MS + TICK_MS);
+
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getDropped());
+        // The rest arriving late starts over and never completes without the first piece
+        for (int i = 1; i < fragments.size(); i++) {
+            assertNull(reassembler.add(fragments.get(i), FragmentReassembler.TIMEOUT_MS + TICK_MS));
+        }
+    }
+
+    @Test
+    public void capsPendingDatagrams() {
+        for (int id = 0; id < FragmentReassembler.MAX_PENDING; id++) {
+            assertNull(reassembler.add(fragments(id, 0x08080808, payload(1000, id)).get(0), 0));
+        }
+        assertNull(reassembler.add(fragments(100, 0x08080808, payload(1000, 100)).get(0), 0));
+
+        assertEquals(FragmentReassembler.MAX_PENDING, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getDropped());
+    }
+
+    @Test
+    public void refusesFragmentEndingPast64K() {
+        ByteBuffer fragment = fragments(11, 0x08080808, payload(1000, 7)).get(1);
+        fragment.putShort(6, (short) (0x2000 | 8189));
+
+        assertNull(reassembler.add(fragment, 0));
+        assertEquals(1, reassembler.getDropped());
+        assertEquals(0, reassembler.getPendingCount());
+    }
+}
@@ -0,0 +1,100 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class LogEventQueueTest {
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 50_000;
+
+    @Test
+    public void fullQueueDropsAndCounts() {
+        LogEventQueue queue = new LogEventQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i, 0, 0, 0, 0, null));
+        }
+        assertFalse(queue.offer(4, 0, 0, 0, 0, null));
+        assertEquals(1, queue.takeDropped());
+        assertEquals(0, queue.takeDropped());
+
+        // Draining frees the slots again
+        List<Long> drained = new ArrayList<>();
+        assertEquals(4, queue.drain((timestamp, destIp, destPort, uid, action, domain) -> drained.add(timestamp), 10));
+        assertEquals(List.of(0L, 1L, 2L, 3L), drained);
+        assertTrue(queue.offer(5, 0, 0, 0, 0, null));
+    }
+
+    // Producers tag each event with their index and a counter spread over every field,
+    // so a slot read before it was fully written would show up as a mismatch
+    @Test
+    public void concurrentProducersAreDrainedExactlyOnce() throws Exception {
+        LogEventQueue queue = new LogEventQueue(64);
+        BitSet[] accepted = new BitSet[PRODUCERS];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p;
+            accepted[p] = new BitSet(EVENTS_PER_PRODUCER);
+            producers[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                    if (queue.offer(((long) producer << 32) | i, i, producer, -i, producer, Integer.toString(i))) {
+                        accepted[producer].set(i);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        BitSet[] seen = new BitSet[PRODUCERS];
+        int[] last = new int[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            seen[p] = new BitSet(EVENTS_PER_PRODUCER);
+            last[p] = -1;
+        }
+        LogEventQueue.Consumer consumer = (timestamp, destIp, destPort, uid, action, domain) -> {
+            int producer = (int) (timestamp >>> 32);
+            int i = (int) timestamp;
+            assertEquals(i, destIp);
+            assertEquals(producer, destPort);
+            assertEquals(-i, uid);
+            assertEquals(producer, action);
+            assertEquals(Integer.toString(i), domain);
+            assertFalse("drained twice: " + producer + "/" + i, seen[producer].get(i));
+            // Each producer's events come out in the order it offered them
+            assertTrue(i > last[producer]);
+            last[producer] = i;
+            seen[producer].set(i);
+        };
+
+        start.countDown();
+        boolean producing = true;
+        while (producing) {
+            producing = false;
+            for (Thread producer : producers) {
+                producing |= producer.isAlive();
+            }
+            queue.drain(consumer, 16);
+        }
+        queue.drain(consumer, Integer.MAX_VALUE);
+
+        long acceptedCount = 0;
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(accepted[p], seen[p]);
+            acceptedCount += accepted[p].cardinality();
+        }
+        assertEquals((long) PRODUCERS * EVENTS_PER_PRODUCER - acceptedCount, queue.takeDropped());
+    }
+}
@@ -0,0 +1,144 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class LogStoreTest {
+    private static final int CAPACITY = 4096;
+    private static final int UIDS = 7;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Record i has uid 10000 + i % UIDS, action i % 3 and timestamp 1000 + i
+    private static void fill(LogStore store, int from, int to) {
+        for (int i = from; i < to; i++) {
+            store.append(1000 + i, 0x0A000001, 443, 10000 + i % UIDS, i % 3, i % 2 == 0 ? "d" + i % 5 + ".com" : null, 1);
+        }
+    }
+
+    private static long[] find(LogStore store, LogStore.Query query, long before, int limit) {
+        long[] out = new long[limit];
+        return Arrays.copyOf(out, store.find(query, before, out));
+    }
+
+    // The same query answered by checking every record
+    private static long[] scan(LogStore store, LogStore.Query query, long before, int limit) {
+        LogStore.Record record = new LogStore.Record();
+        long[] out = new long[limit];
+        int found = 0;
+        for (long s = Math.min(before, store.getNextSequence()) - 1; s >= store.getFirstSequence() && found < limit; s--) {
+            assertTrue(store.read(s, record));
+            if (record.timestamp >= query.from && record.timestamp <= query.to
+                    && (!query.byUid || record.uid == query.uid)
+                    && (query.action < 0 || record.action == query.action)) {
+                out[found++] = s;
+            }
+        }
+        return Arrays.copyOf(out, found);
+    }
+
+    private static LogStore.Query[] queries() {
+        LogStore.Query all = new LogStore.Query();
+        LogStore.Query byUid = new LogStore.Query();
+        byUid.byUid = true;
+        byUid.uid = 10003;
+        LogStore.Query byAction = new LogStore.Query();
+        byAction.action = 2;
+        LogStore.Query byTime = new LogStore.Query();
+        byTime.byUid = true;
+        byTime.uid = 10001;
+        byTime.from = 3000;
+        byTime.to = 3500;
+        LogStore.Query unknownUid = new LogStore.Query();
+        unknownUid.byUid = true;
+        unknownUid.uid = 99;
+        return new LogStore.Query[] { all, byUid, byAction, byTime, unknownUid };
+    }
+
+    private static void assertQueriesMatchScan(LogStore store) {
+        for (LogStore.Query query : queries()) {
+            for (long before : new long[] { Long.MAX_VALUE, store.getNextSequence() - 100, 2600 }) {
+                assertArrayEquals(scan(store, query, before, 50), find(store, query, before, 50));
+            }
+        }
+    }
+
+    @Test
+    public void queriesScanUntilIndexIsBuilt() throws Exception {
+        LogStore store = new LogStore(folder.getRoot(), "logs", CAPACITY);
+        fill(store, 0, 3000);
+
+        assertQueriesMatchScan(store);
+        store.buildIndex();
+        assertQueriesMatchScan(store);
+    }
+
+    @Test
+    public void indexCoversEarlierRunAndNewAppends() throws Exception {
+        File dir = folder.getRoot();
+        LogStore first = new LogStore(dir, "logs", CAPACITY);
+        first.buildIndex();
+        // Wraps the ring
+        fill(first, 0, 5000);
+        first.sync();
+
+        LogStore reopened = new LogStore(dir, "logs", CAPACITY);
+        assertEquals(5000, reopened.getNextSequence());
+        assertEquals("d0.com", reopened.getDomain(0));
+        // Appended before the index is built, then picked up by it
+        fill(reopened, 5000, 5200);
+        reopened.buildIndex();
+        fill(reopened, 5200, 6000);
+
+        assertEquals(6000 - CAPACITY, reopened.getFirstSequence());
+        assertQueriesMatchScan(reopened);
+    }
+
+    @Test
+    public void clearLeavesUsableIndex() throws Exception {
+        LogStore store = new LogStore(folder.getRoot(), "logs", CAPACITY);
+        fill(store, 0, 1000);
+        store.clear();
+        fill(store, 0, 3000);
+
+        assertEquals(0, store.getFirstSequence());
+        assertQueriesMatchScan(store);
+    }
+
+    private static void assertDomains(LogStore store, int from, int to) {
+        LogStore.Record record = new LogStore.Record();
+        for (long s = from; s < to; s++) {
+            assertTrue(store.read(s, record));
+            assertEquals("host" + s + ".example", store.getDomain(record.domainId));
+        }
+    }
+
+    @Test
+    public void fullDictionaryReusesIdsOfOverwrittenRecords() throws Exception {
+        File dir = folder.getRoot();
+        LogStore store = new LogStore(dir, "logs", CAPACITY);
+        // More distinct domains than the dictionary holds, most long overwritten
+        int total = (1 << 16) + 2 * CAPACITY;
+        for (int i = 0; i < total; i++) {
+            store.append(i, 0x0A000001, 443, 10000, 0, "host" + i + ".example", 1);
+        }
+        assertDomains(store, total - CAPACITY, total);
+
+        // The dictionary was rewritten without the dead entries, and loads back
+        assertTrue(new File(dir, "logs.domains").length() < (1 << 16) * 20L);
+        store.sync();
+        LogStore reopened = new LogStore(dir, "logs", CAPACITY);
+        assertDomains(reopened, total - CAPACITY, total);
+        reopened.append(total, 0x0A000001, 443, 10000, 0, "host" + total + ".example", 1);
+        assertDomains(reopened, total - CAPACITY + 1, total + 1);
+    }
+}
@@ -0,0 +1,74 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class RuleManagerTest {
+    private RuleManager ruleManager;
+
+    @Before
+    public void setUp() {
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        when(context.getPackageManager()).thenReturn(mock(PackageManager.class));
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(new MemoryPreferences());
+        ruleManager = new RuleManager(context);
+    }
+
+    @Test
+    public void puttingSameRuleChangesNothing() {
+        assertTrue(ruleManager.beginEdit().putAppRule(new AppRule("com.example", true, true)).commit());
+
+        assertFalse(ruleManager.beginEdit().putAppRule(new AppRule("com.example", true, true)).commit());
+        assertTrue(ruleManager.beginEdit().putAppRule(new AppRule("com.example", true, false)).commit());
+    }
+
+    @Test
+    public void puttingSameDomainAndIpRulesChangesNothing() {
+        assertTrue(ruleManager.beginEdit()
+            .putDomainRule(new DomainRule("Ads.Example.com", true))
+            .putIpRule(new IpRule("10.0.0.0", 8, true))
+            .commit());
+
+        assertFalse(ruleManager.beginEdit()
+            .putDomainRule(new DomainRule("ads.example.com", true))
+            .putIpRule(new IpRule("10.0.0.0", 8, true))
+            .commit());
+        assertTrue(ruleManager.beginEdit().putIpRule(new IpRule("10.0.0.0", 16, true)).commit());
+    }
+
+    @Test
+    public void retainingSameAppsChangesNothing() {
+        RuleManager.Editor editor = ruleManager.beginEdit();
+        for (String packageName : Arrays.asList("com.a", "com.b")) {
+            editor.putAppRule(new AppRule(packageName, true, true));
+        }
+        assertTrue(editor.retainAppRules(Arrays.asList("com.a", "com.b")).commit());
+
+        // Setting the same list again
+        editor = ruleManager.beginEdit();
+        for (String packageName : Arrays.asList("com.b", "com.a")) {
+            editor.putAppRule(new AppRule(packageName, true, true));
+        }
+        assertFalse(editor.retainAppRules(Arrays.asList("com.b", "com.a")).commit());
+
+        // Dropping one
+        assertTrue(ruleManager.beginEdit().retainAppRules(Collections.singletonList("com.b")).commit());
+        assertEquals(1, ruleManager.getAppRules().size());
+        assertEquals("com.b", ruleManager.getAppRules().get(0).getPackageName());
+    }
+}
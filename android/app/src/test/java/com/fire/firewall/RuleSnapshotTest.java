@@ -0,0 +1,38 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class RuleSnapshotTest {
+    @Test
+    public void missingPackageDoesNotBlockRoot() throws Exception {
+        PackageManager pm = mock(PackageManager.class);
+        ApplicationInfo info = new ApplicationInfo();
+        info.uid = 10050;
+        when(pm.getApplicationInfo(eq("com.installed"), anyInt())).thenReturn(info);
+        when(pm.getApplicationInfo(eq("com.uninstalled"), anyInt()))
+            .thenThrow(new PackageManager.NameNotFoundException());
+
+        RuleSnapshot snapshot = RuleSnapshot.compile(1, UidPackageIndex.empty(), pm,
+            Arrays.asList(new AppRule("com.uninstalled", true, true), new AppRule("com.installed", true, true),
+                new AppRule("com.uninstalled", true, false)),
+            Collections.emptyList(), Collections.emptyList());
+
+        assertEquals(1, snapshot.getBlockedUidCount());
+        assertTrue(snapshot.isUidBlocked(10050));
+        assertFalse(snapshot.isUidBlocked(0));
+    }
+}
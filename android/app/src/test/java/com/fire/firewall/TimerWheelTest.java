@@ -0,0 +1,87 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest {
+    private static final long TICK_MS = 100;
+
+    private final List<String> fired = new ArrayList<>();
+
+    private final class Named extends TimerWheel.Timer {
+        final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        void onExpired(long now) {
+            fired.add(name + "@" + now);
+        }
+    }
+
+    @Test
+    public void firesAtOrAfterDeadline() {
+        TimerWheel wheel = new TimerWheel(8, TICK_MS, 0);
+        Named a = new Named("a");
+        Named b = new Named("b");
+        wheel.schedule(a, 150);
+        wheel.schedule(b, 300);
+
+        wheel.advance(149);
+        assertTrue(fired.isEmpty());
+        wheel.advance(200);
+        assertEquals(List.of("a@200"), fired);
+        assertFalse(a.isScheduled());
+        assertTrue(b.isScheduled());
+        wheel.advance(300);
+        assertEquals(List.of("a@200", "b@300"), fired);
+    }
+
+    @Test
+    public void deadlinesBeyondOneTurnWaitForTheirRound() {
+        // 8 slots of 100 ms: 1250 shares a slot with 450
+        TimerWheel wheel = new TimerWheel(8, TICK_MS, 0);
+        wheel.schedule(new Named("far"), 1250);
+
+        wheel.advance(500);
+        assertTrue(fired.isEmpty());
+        wheel.advance(1300);
+        assertEquals(List.of("far@1300"), fired);
+    }
+
+    @Test
+    public void cancelledAndRescheduledTimers() {
+        TimerWheel wheel = new TimerWheel(8, TICK_MS, 0);
+        Named cancelled = new Named("cancelled");
+        Named moved = new Named("moved");
+        wheel.schedule(cancelled, 200);
+        wheel.schedule(moved, 200);
+        wheel.cancel(cancelled);
+        wheel.schedule(moved, 600);
+
+        wheel.advance(500);
+        assertTrue(fired.isEmpty());
+        wheel.advance(600);
+        assertEquals(List.of("moved@600"), fired);
+    }
+
+    @Test
+    public void catchesUpAfterLongStall() {
+        TimerWheel wheel = new TimerWheel(8, TICK_MS, 0);
+        for (int i = 1; i <= 5; i++) {
+            wheel.schedule(new Named("t" + i), i * 1000L);
+        }
+
+        wheel.advance(60_000);
+
+        assertEquals(5, fired.size());
+    }
+}
@@ -0,0 +1,253 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+/**
+ * Runs the tun devices against a connected pair of loopback datagram sockets,
+ * which keep packet boundaries like a tun descriptor, and against a pipe.
+ */
+public class TunDeviceTest {
+    private DatagramChannel tunSide;
+    private DatagramChannel peer;
+
+    @Before
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        tunSide = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        peer = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        tunSide.connect(peer.getLocalAddress());
+        peer.connect(tunSide.getLocalAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tunSide.close();
+        peer.close();
+    }
+
+    /**
+     * Readiness through a selector, standing in for poll() on the tun descriptor.
+     */
+    private static class SelectorReadiness implements ChannelTunDevice.Readiness {
+        private final SelectableChannel readable;
+        private final SelectableChannel writable;
+
+        SelectorReadiness(SelectableChannel readable, SelectableChannel writable) {
+            this.readable = readable;
+            this.writable = writable;
+        }
+
+        @Override
+        public boolean awaitReadable(int timeoutMs) throws IOException {
+            return await(readable, SelectionKey.OP_READ, timeoutMs);
+        }
+
+        @Override
+        public boolean awaitWritable(int timeoutMs) throws IOException {
+            return await(writable, SelectionKey.OP_WRITE, timeoutMs);
+        }
+
+        private static boolean await(SelectableChannel channel, int op, int timeoutMs) throws IOException {
+            try (Selector selector = Selector.open()) {
+                channel.register(selector, op);
+                return selector.select(timeoutMs) > 0;
+            }
+        }
+    }
+
+    private ChannelTunDevice channelDevice() throws IOException {
+        tunSide.configureBlocking(false);
+        return new ChannelTunDevice(tunSide, tunSide, new SelectorReadiness(tunSide, tunSide));
+    }
+
+    private static byte[] packet(int id, int length) {
+        byte[] packet = new byte[length];
+        Arrays.fill(packet, (byte) id);
+        return packet;
+    }
+
+    private static ByteBuffer[] buffers(int count) {
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = ByteBuffer.allocate(1500);
+        }
+        return buffers;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private void sendFromPeer(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            peer.write(ByteBuffer.wrap(packet(i, 40 + i)));
+        }
+    }
+
+    @Test
+    public void channelReadDrainsEveryQueuedPacket() throws IOException {
+        ChannelTunDevice device = channelDevice();
+        sendFromPeer(5);
+
+        ByteBuffer[] buffers = buffers(8);
+        int count = device.read(buffers);
+
+        assertEquals(5, count);
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(packet(i, 40 + i), bytes(buffers[i]));
+        }
+    }
+
+    @Test
+    public void channelReadStopsWhenBuffersAreFull() throws IOException {
+        ChannelTunDevice device = channelDevice();
+        sendFromPeer(5);
+
+        ByteBuffer[] buffers = buffers(3);
+        assertEquals(3, device.read(buffers));
+        assertArrayEquals(packet(2, 42), bytes(buffers[2]));
+        assertEquals(2, device.read(buffers));
+        assertArrayEquals(packet(3, 43), bytes(buffers[0]));
+        assertArrayEquals(packet(4, 44), bytes(buffers[1]));
+    }
+
+    @Test
+    public void channelReadReturnsZeroAfterWaiting() throws IOException {
+        ChannelTunDevice device = channelDevice();
+
+        long start = System.nanoTime();
+        assertEquals(0, device.read(buffers(4)));
+        // Waited on readiness instead of spinning or blocking forever
+        assertTrue(System.nanoTime() - start >= 50_000_000L);
+    }
+
+    @Test
+    public void channelWriteSendsBatchInOrder() throws IOException {
+        ChannelTunDevice device = channelDevice();
+        ByteBuffer[] packets = new ByteBuffer[6];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = ByteBuffer.wrap(packet(i, 60 + i));
+        }
+
+        // Only the first count are written
+        device.write(packets, 4);
+
+        ByteBuffer received = ByteBuffer.allocate(1500);
+        for (int i = 0; i < 4; i++) {
+            received.clear();
+            peer.read(received);
+            received.flip();
+            assertArrayEquals(packet(i, 60 + i), bytes(received));
+        }
+        peer.configureBlocking(false);
+        received.clear();
+        assertEquals(0, peer.read(received));
+    }
+
+    @Test
+    public void channelWriteWaitsWhileSinkIsFull() throws Exception {
+        // A pipe fills up long before 4 MB, so writes must wait for the reader
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        ChannelTunDevice device = new ChannelTunDevice(pipe.source(), pipe.sink(),
+            new SelectorReadiness(pipe.source(), pipe.sink()));
+        ByteBuffer[] packets = new ByteBuffer[64];
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < packets.length; i++) {
+            byte[] packet = packet(i, 65_536);
+            expected.write(packet);
+            packets[i] = ByteBuffer.wrap(packet);
+        }
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread reader = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            try {
+                while (received.size() < expected.size()) {
+                    buffer.clear();
+                    int length = pipe.source().read(buffer);
+                    received.write(buffer.array(), 0, length);
+                    Thread.sleep(0, 100_000);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        device.write(packets, packets.length);
+        reader.join(10_000);
+
+        assertArrayEquals(expected.toByteArray(), received.toByteArray());
+        pipe.source().close();
+        pipe.sink().close();
+    }
+
+    @Test(expected = EOFException.class)
+    public void channelReadThrowsOnceClosed() throws IOException {
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        ChannelTunDevice device = new ChannelTunDevice(pipe.source(), pipe.sink(),
+            new SelectorReadiness(pipe.source(), pipe.sink()));
+        pipe.sink().close();
+
+        device.read(buffers(2));
+    }
+
+    @Test
+    public void blockingReadReturnsOnePacketPerCall() throws IOException {
+        BlockingTunDevice device = new BlockingTunDevice(tunSide, tunSide);
+        sendFromPeer(3);
+
+        ByteBuffer[] buffers = buffers(4);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, device.read(buffers));
+            assertArrayEquals(packet(i, 40 + i), bytes(buffers[0]));
+        }
+    }
+
+    @Test
+    public void blockingWriteSendsBatchInOrder() throws IOException {
+        BlockingTunDevice device = new BlockingTunDevice(tunSide, tunSide);
+        ByteBuffer[] packets = { ByteBuffer.wrap(packet(1, 20)), ByteBuffer.wrap(packet(2, 30)) };
+
+        device.write(packets, 2);
+
+        ByteBuffer received = ByteBuffer.allocate(1500);
+        for (int i = 1; i <= 2; i++) {
+            received.clear();
+            peer.read(received);
+            received.flip();
+            assertArrayEquals(packet(i, 10 + 10 * i), bytes(received));
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void blockingReadThrowsOnceClosed() throws IOException {
+        Pipe pipe = Pipe.open();
+        BlockingTunDevice device = new BlockingTunDevice(pipe.source(), pipe.sink());
+        pipe.sink().close();
+
+        device.read(buffers(1));
+    }
+}
@@ -0,0 +1,152 @@
+package com.fire.firewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the owner of a real loopback connection through /proc/net, which is the
+ * path unit tests take since the stubbed SDK version is below Q.
+ */
+public class UidResolverTest {
+    private static final int LOOPBACK = 0x7F000001;
+
+    private static FlowTable.Flow tcpFlow(int sourcePort, int destPort) {
+        long key0 = ((long) LOOPBACK << 32) | (LOOPBACK & 0xFFFFFFFFL);
+        long key1 = ((long) Packets.PROTOCOL_TCP << 32) | ((long) sourcePort << 16) | destPort;
+        return new FlowTable.Flow(key0, key1, Packets.PROTOCOL_TCP, LOOPBACK, destPort);
+    }
+
+    private static int processUid() throws Exception {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+            if (line.startsWith("Uid:")) {
+                return Integer.parseInt(line.split("\\s+")[1]);
+            }
+        }
+        throw new AssertionError("no Uid in /proc/self/status");
+    }
+
+    @Test
+    public void resolvesOwnerOffThePacketThread() throws Exception {
+        UidResolver resolver = new UidResolver(null);
+        resolver.start();
+        FlowTable flows = new FlowTable(null);
+        BlockingQueue<FlowTable.Flow> done = new LinkedBlockingQueue<>();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            FlowTable.Flow flow = tcpFlow(client.getLocalPort(), server.getLocalPort());
+
+            // The first packet only starts the lookup, the owner is not settled yet
+            assertFalse(resolver.resolve(flows, flow, done::add));
+            assertTrue(flow.uidPending);
+            assertFalse(flow.uidResolved);
+            assertEquals(-1, flow.uid);
+
+            assertSame(flow, done.poll(5, TimeUnit.SECONDS));
+            assertTrue(resolver.resolve(flows, flow, done::add));
+            assertTrue(flow.uidResolved);
+            assertEquals(processUid(), flow.uid);
+        } finally {
+            resolver.stop();
+        }
+    }
+
+    @Test
+    public void ownerlessProtocolIsSettledRightAway() {
+        UidResolver resolver = new UidResolver(null);
+        FlowTable flows = new FlowTable(null);
+        // ICMP has no owner to look up
+        FlowTable.Flow flow = new FlowTable.Flow(0, 1L << 32, 1, LOOPBACK, 0);
+
+        assertTrue(resolver.resolve(flows, flow, f -> fail("nothing to look up")));
+        assertTrue(flow.uidResolved);
+        assertEquals(-1, flow.uid);
+    }
+
+    @Test
+    public void lookupIsRetriedWhileThePoolIsStopped() {
+        UidResolver resolver = new UidResolver(null);
+        FlowTable flows = new FlowTable(null);
+        FlowTable.Flow flow = tcpFlow(40001, 443);
+
+        // Not started: nothing runs the lookup, so the next packet asks again
+        assertFalse(resolver.resolve(flows, flow, f -> fail("no pool")));
+        assertFalse(flow.uidPending);
+        assertFalse(resolver.resolve(flows, flow, f -> fail("no pool")));
+        assertFalse(flow.uidResolved);
+    }
+
+    @Test
+    public void heldPacketsComeBackInOrderWithinLimits() {
+        FlowTable flows = new FlowTable(null);
+        FlowTable.Flow flow = tcpFlow(40002, 443);
+        for (int i = 0; i < 6; i++) {
+            ByteBuffer packet = ByteBuffer.allocate(20);
+            packet.putInt(0, i);
+            boolean held = flows.hold(flow, packet);
+            assertEquals(i < 4, held);
+        }
+        assertEquals(4, flows.heldPackets());
+
+        ByteBuffer[] held = flows.takeHeld(flow);
+        assertEquals(4, held.length);
+        for (int i = 0; i < held.length; i++) {
+            assertEquals(i, held[i].getInt(0));
+        }
+        assertFalse(flow.hasHeld());
+        assertEquals(0, flows.heldPackets());
+    }
+
+    @Test
+    public void forgottenFlowsReleaseTheirHeldPackets() {
+        FlowTable flows = new FlowTable(null);
+        ByteBuffer packet = ByteBuffer.allocate(40);
+        packet.put(0, (byte) 0x45);
+        packet.put(9, (byte) Packets.PROTOCOL_UDP);
+        FlowTable.Flow flow = flows.lookup(packet, 0);
+        assertTrue(flows.hold(flow, packet));
+
+        // Idle past every timeout, the sweep drops the flow and what it held
+        flows.sweep(10 * 60_000);
+        assertEquals(0, flows.size());
+        assertEquals(0, flows.heldPackets());
+        assertFalse(flow.hasHeld());
+    }
+
+    @Test
+    public void resolvedOwnerReportsEarlierTrafficAndRedecides() {
+        List<long[]> usage = new ArrayList<>();
+        FlowTable flows = new FlowTable((uid, blocked, bytes, packets) ->
+            usage.add(new long[] { uid, bytes, packets }));
+        FlowTable.Flow flow = tcpFlow(40000, 443);
+        flows.setVerdict(flow, 3, false);
+        flows.count(flow, 100);
+        flows.count(flow, 60);
+
+        flows.setUid(flow, 10123);
+
+        assertEquals(1, usage.size());
+        assertEquals(-1, usage.get(0)[0]);
+        assertEquals(160, usage.get(0)[1]);
+        assertEquals(2, usage.get(0)[2]);
+        assertEquals(10123, flow.uid);
+        // The cached verdict no longer matches any snapshot
+        assertEquals(-1, flow.version);
+    }
+}